@@ -0,0 +1,729 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.springframework.core.io.Resource;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Base class for {@link MetadataService}, holding the properties which tune how results
+ * are cached, rendered, stored and served.
+ *
+ * @param <T> item type of the metadata served
+ */
+abstract class AbstractMetadataService<T> extends AbstractIdentifiableInitializableComponent {
+
+    /**
+     * Maximum total size of the results in the result cache, in bytes.
+     *
+     * Set to zero (default) to leave the cache size unlimited.
+     */
+    @NonNegative
+    private long maximumCacheSize;
+
+    /**
+     * Whether cached results are held through soft references, so that
+     * they can be evicted when the heap is under pressure.
+     */
+    private boolean softCacheValues;
+
+    /** Whether compressed representations are generated for rendered results. */
+    private boolean compression = true;
+
+    /** Whether the representations of rendered results are held outside the Java heap. */
+    private boolean offHeapRepresentations;
+
+    /** Compression level to use for each content encoding. */
+    @Nonnull
+    private Map<String, Integer> compressionLevels = Collections.emptyMap();
+
+    /**
+     * Directory in which rendered results are persisted, or <code>null</code> (default)
+     * if results are not persisted.
+     */
+    @Nullable
+    private String resultStoreDirectory;
+
+    /** Description of the configuration of the render pipeline, recorded with persisted results. */
+    @Nonnull
+    private String renderConfiguration = "";
+
+    /** Resources whose contents affect rendered results, recorded with persisted results. */
+    @Nonnull
+    private List<Resource> renderConfigurationResources = Collections.emptyList();
+
+    /**
+     * Directory to which the all-entities aggregate is written as it is serialized,
+     * or <code>null</code> (default) if it is serialized in memory.
+     */
+    @Nullable
+    private String aggregateSpoolDirectory;
+
+    /**
+     * Assembles the all-entities aggregate in place of the render pipeline,
+     * or <code>null</code> (default) if it is rendered like any other collection.
+     */
+    @Nullable
+    private AggregateAssembler<T> aggregateAssembler;
+
+    /**
+     * Minimum number of items in a collection for them to be rendered without first being
+     * copied, or zero (default) to copy the items of every collection.
+     */
+    @NonNegative
+    private int sharedItemsMinimum;
+
+    /** Whether to render all collections in advance each time the library is refreshed. */
+    private boolean warmUp;
+
+    /** Whether the library should wait for a warm-up to complete before publishing a refresh. */
+    private boolean warmUpBeforePublish;
+
+    /** Whether a warm-up should also generate compressed representations. */
+    private boolean warmUpCompression;
+
+    /** Maximum number of collections rendered in parallel during a warm-up. */
+    @Positive
+    private int warmUpParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum time for which a result from a superseded generation may be served
+     * while the current result is rendered in the background.
+     *
+     * Set to {@link Duration#ZERO} (default) to make callers wait for the current result.
+     */
+    @Nonnull @NonNegative
+    private Duration maxStaleness = Duration.ZERO;
+
+    /**
+     * Validity window of a rendered result, such as the <code>validUntil</code> duration
+     * applied by the render pipeline.
+     *
+     * Set to {@link Duration#ZERO} (default) if results do not expire.
+     */
+    @Nonnull @NonNegative
+    private Duration validityWindow = Duration.ZERO;
+
+    /**
+     * Fraction of its validity window after which a cached result is rendered again,
+     * or zero (default) to leave results unchanged for as long as they are cached.
+     */
+    private double rerenderFraction;
+
+    /**
+     * Maximum number of renders performed at once on behalf of queries, or zero (default)
+     * for no limit.
+     */
+    @NonNegative
+    private int maxConcurrentRenders;
+
+    /** Maximum number of query renders waiting to start when the limit has been reached. */
+    @NonNegative
+    private int maxQueuedRenders = 100;
+
+    /** Maximum time for which a query render waits to start. */
+    @Nonnull @NonNegative
+    private Duration renderQueueTimeout = Duration.ofSeconds(5);
+
+    /** Time after which a client whose query render was not admitted is asked to retry. */
+    @Nonnull @NonNegative
+    private Duration renderRetryAfter = Duration.ofSeconds(5);
+
+    /**
+     * Gets the maximum size of the result cache.
+     *
+     * @return the maximum size of the result cache in bytes, or zero if unlimited
+     */
+    @NonNegative public long getMaximumCacheSize() {
+        return maximumCacheSize;
+    }
+
+    /**
+     * Sets the maximum size of the result cache.
+     *
+     * The size of a cached result is the total size of all of its {@link Representation}s.
+     * When the limit is reached, the least recently used results are evicted.
+     *
+     * @param size the maximum size of the result cache in bytes, or zero for no limit
+     */
+    public void setMaximumCacheSize(@NonNegative final long size) {
+        checkSetterPreconditions();
+        if (size < 0) {
+            throw new ConstraintViolationException("maximum cache size must not be negative");
+        }
+        maximumCacheSize = size;
+    }
+
+    /**
+     * Gets whether cached results are held through soft references.
+     *
+     * @return whether cached results are held through soft references
+     */
+    public boolean isSoftCacheValues() {
+        return softCacheValues;
+    }
+
+    /**
+     * Sets whether cached results are held through soft references, so that the garbage
+     * collector can evict them when the heap is under pressure.
+     *
+     * @param soft whether cached results are held through soft references
+     */
+    public void setSoftCacheValues(final boolean soft) {
+        checkSetterPreconditions();
+        softCacheValues = soft;
+    }
+
+    /**
+     * Gets whether compressed representations are generated for rendered results.
+     *
+     * @return whether compressed representations are generated
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets whether compressed representations are generated for rendered results.
+     *
+     * If this is set (default), each result is compressed in the background, at low
+     * priority, once it has been rendered. Queries are answered with the uncompressed
+     * form until the compressed forms are available.
+     *
+     * @param compress whether compressed representations are generated
+     */
+    public void setCompression(final boolean compress) {
+        checkSetterPreconditions();
+        compression = compress;
+    }
+
+    /**
+     * Gets whether the representations of rendered results are held outside the Java heap.
+     *
+     * @return whether representations are held outside the Java heap
+     */
+    public boolean isOffHeapRepresentations() {
+        return offHeapRepresentations;
+    }
+
+    /**
+     * Sets whether the representations of rendered results are held outside the Java heap.
+     *
+     * If this is set, each {@link Representation} is copied into a direct buffer once it has
+     * been generated, and that buffer is freed as soon as its result is evicted from the cache
+     * or superseded and no response is still being written from it. This keeps large results
+     * out of the garbage-collected heap. The total is limited by <code>-XX:MaxDirectMemorySize</code>,
+     * which defaults to the maximum heap size.
+     *
+     * Defaults to <code>false</code>.
+     *
+     * @param offHeap whether representations are held outside the Java heap
+     */
+    public void setOffHeapRepresentations(final boolean offHeap) {
+        checkSetterPreconditions();
+        offHeapRepresentations = offHeap;
+    }
+
+    /**
+     * Gets the compression level used for each content encoding.
+     *
+     * @return the compression levels, indexed by content encoding
+     */
+    @Nonnull
+    public Map<String, Integer> getCompressionLevels() {
+        return compressionLevels;
+    }
+
+    /**
+     * Sets the compression level used for each content encoding.
+     *
+     * Levels for <code>gzip</code> and <code>deflate</code> range from 0 (no compression) to
+     * 9 (best compression), for <code>br</code> from 0 to 11, and for <code>zstd</code> up to 19.
+     * Encodings not included use a default level.
+     *
+     * @param levels the compression levels, indexed by content encoding
+     */
+    public void setCompressionLevels(@Nonnull final Map<String, Integer> levels) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(levels, "compression levels may not be null");
+        for (final Map.Entry<String, Integer> entry : levels.entrySet()) {
+            if (!RepresentationCompressor.SUPPORTED_ENCODINGS.contains(entry.getKey())) {
+                throw new ConstraintViolationException("unsupported content encoding " + entry.getKey());
+            }
+            if (entry.getValue() == null
+                    || !RepresentationCompressor.isValidLevel(entry.getKey(), entry.getValue())) {
+                throw new ConstraintViolationException("invalid compression level for " + entry.getKey());
+            }
+        }
+        compressionLevels = Map.copyOf(levels);
+    }
+
+    /**
+     * Gets the directory in which rendered results are persisted.
+     *
+     * @return the directory, or <code>null</code> if results are not persisted
+     */
+    @Nullable
+    public String getResultStoreDirectory() {
+        return resultStoreDirectory;
+    }
+
+    /**
+     * Sets the directory in which rendered results are persisted.
+     *
+     * If this is set, each rendered result is written to the directory in the background,
+     * together with its compressed forms. A result which is not in the cache is restored
+     * from the directory, rather than rendered, if the contents of its collection are
+     * unchanged. This allows a restarted service to answer queries without rendering
+     * each result again.
+     *
+     * Only collections with a content digest (see {@link ItemCollectionLibrary#setItemSerializer})
+     * are persisted.
+     *
+     * @param directory the directory, or <code>null</code> or empty to disable persistence
+     */
+    public void setResultStoreDirectory(@Nullable final String directory) {
+        checkSetterPreconditions();
+        resultStoreDirectory = directory == null || directory.isBlank() ? null : directory.trim();
+    }
+
+    /**
+     * Gets the description of the configuration of the render pipeline.
+     *
+     * @return the description of the render configuration
+     */
+    @Nonnull
+    public String getRenderConfiguration() {
+        return renderConfiguration;
+    }
+
+    /**
+     * Sets a description of the configuration of the render pipeline, such as the
+     * <code>cacheDuration</code> and <code>validUntil</code> it applies.
+     *
+     * A fingerprint of the description is recorded with each persisted result, and a result
+     * persisted under a different configuration is rendered again rather than restored.
+     *
+     * @param configuration the description of the render configuration (default empty)
+     */
+    public void setRenderConfiguration(@Nullable final String configuration) {
+        checkSetterPreconditions();
+        renderConfiguration = configuration == null ? "" : configuration;
+    }
+
+    /**
+     * Gets the resources whose contents affect rendered results.
+     *
+     * @return the resources
+     */
+    @Nonnull
+    public List<Resource> getRenderConfigurationResources() {
+        return renderConfigurationResources;
+    }
+
+    /**
+     * Sets resources whose contents affect rendered results, such as the signing certificate.
+     *
+     * The contents of the resources are included in the fingerprint set out in
+     * {@link #setRenderConfiguration}, so that replacing one invalidates the persisted results.
+     *
+     * @param resources the resources (default none)
+     */
+    public void setRenderConfigurationResources(@Nullable final List<Resource> resources) {
+        checkSetterPreconditions();
+        renderConfigurationResources = resources == null ? Collections.emptyList() : List.copyOf(resources);
+    }
+
+    /**
+     * Gets the directory to which the all-entities aggregate is written as it is serialized.
+     *
+     * @return the directory, or <code>null</code> if the aggregate is serialized in memory
+     */
+    @Nullable
+    public String getAggregateSpoolDirectory() {
+        return aggregateSpoolDirectory;
+    }
+
+    /**
+     * Sets the directory to which the all-entities aggregate is written as it is serialized.
+     *
+     * If this is set, the aggregate is serialized directly to a file in the directory rather
+     * than into memory, and served from that file once it is complete. This bounds the heap
+     * needed to serialize the aggregate, however large the federation. The rendered items
+     * are still held in memory while the render pipeline runs, so this is of most benefit
+     * when the render pipeline does not need the serialized form, for example when the
+     * aggregate is not signed.
+     *
+     * Each file is deleted once its result has been evicted or superseded and no response
+     * is still being written from it. Files abandoned by a previous process are deleted
+     * when the service is initialized.
+     *
+     * @param directory the directory, or <code>null</code> or empty to serialize in memory
+     */
+    public void setAggregateSpoolDirectory(@Nullable final String directory) {
+        checkSetterPreconditions();
+        aggregateSpoolDirectory = directory == null || directory.isBlank() ? null : directory.trim();
+    }
+
+    /**
+     * Gets the {@link AggregateAssembler} used in place of the render pipeline for the
+     * all-entities aggregate.
+     *
+     * @return the {@link AggregateAssembler}, or <code>null</code>
+     */
+    @Nullable
+    public AggregateAssembler<T> getAggregateAssembler() {
+        return aggregateAssembler;
+    }
+
+    /**
+     * Sets the {@link AggregateAssembler} used in place of the render pipeline for the
+     * all-entities aggregate.
+     *
+     * An assembler can reuse work from previous aggregates, such as the serialized form of
+     * unchanged entities, rather than copying and rendering every entity again.
+     *
+     * @param assembler the {@link AggregateAssembler}, or <code>null</code> (default) to
+     *      render the aggregate like any other collection
+     */
+    public void setAggregateAssembler(@Nullable final AggregateAssembler<T> assembler) {
+        checkSetterPreconditions();
+        aggregateAssembler = assembler;
+    }
+
+    /**
+     * Gets the minimum number of items in a collection for them to be rendered without
+     * first being copied.
+     *
+     * @return the minimum number of items, or zero if items are always copied
+     */
+    @NonNegative public int getSharedItemsMinimum() {
+        return sharedItemsMinimum;
+    }
+
+    /**
+     * Sets the minimum number of items in a collection for them to be rendered without
+     * first being copied.
+     *
+     * Items are normally copied before the render pipeline is executed, so that the
+     * pipeline can change them without changing the originals. Copying every item of a
+     * large collection is expensive, and unnecessary where the render pipeline leaves its
+     * input items unchanged: for example, where it starts by importing them into a new
+     * <code>EntitiesDescriptor</code>, or does no more than serialize them.
+     *
+     * @param minimum the minimum number of items, or zero (default) to always copy items
+     */
+    public void setSharedItemsMinimum(@NonNegative final int minimum) {
+        checkSetterPreconditions();
+        if (minimum < 0) {
+            throw new ConstraintViolationException("shared items minimum must not be negative");
+        }
+        sharedItemsMinimum = minimum;
+    }
+
+    /**
+     * Gets whether all collections are rendered in advance each time the library is refreshed.
+     *
+     * @return whether all collections are rendered in advance
+     */
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Sets whether all collections are rendered in advance each time the library is refreshed.
+     *
+     * If the result cache size is limited, it should be large enough to hold all of the
+     * results produced by a warm-up.
+     *
+     * @param enable whether to render all collections in advance
+     */
+    public void setWarmUp(final boolean enable) {
+        checkSetterPreconditions();
+        warmUp = enable;
+    }
+
+    /**
+     * Gets whether the library waits for a warm-up to complete before publishing a refresh.
+     *
+     * @return whether the library waits for a warm-up to complete
+     */
+    public boolean isWarmUpBeforePublish() {
+        return warmUpBeforePublish;
+    }
+
+    /**
+     * Sets whether the library waits for a warm-up to complete before publishing a refresh.
+     *
+     * If this is set, queries continue to be answered from the previous generation until
+     * the new generation has been completely rendered. This also applies to initialization,
+     * which does not complete until the initial warm-up has completed.
+     *
+     * @param wait whether the library waits for a warm-up to complete
+     */
+    public void setWarmUpBeforePublish(final boolean wait) {
+        checkSetterPreconditions();
+        warmUpBeforePublish = wait;
+    }
+
+    /**
+     * Gets whether a warm-up also generates compressed representations.
+     *
+     * @return whether a warm-up also generates compressed representations
+     */
+    public boolean isWarmUpCompression() {
+        return warmUpCompression;
+    }
+
+    /**
+     * Sets whether a warm-up also generates compressed representations.
+     *
+     * If this is set, each collection's compressed representations are generated by the
+     * warm-up itself rather than in the background, so that they are included in any
+     * wait for the warm-up to complete.
+     *
+     * @param compress whether a warm-up also generates compressed representations
+     */
+    public void setWarmUpCompression(final boolean compress) {
+        checkSetterPreconditions();
+        warmUpCompression = compress;
+    }
+
+    /**
+     * Gets the maximum number of collections rendered in parallel during a warm-up.
+     *
+     * @return the maximum number of parallel warm-up renders
+     */
+    @Positive public int getWarmUpParallelism() {
+        return warmUpParallelism;
+    }
+
+    /**
+     * Sets the maximum number of collections rendered in parallel during a warm-up.
+     *
+     * Defaults to the number of available processors.
+     *
+     * @param parallelism the maximum number of parallel warm-up renders
+     */
+    public void setWarmUpParallelism(@Positive final int parallelism) {
+        checkSetterPreconditions();
+        if (parallelism <= 0) {
+            throw new ConstraintViolationException("warm-up parallelism must be positive");
+        }
+        warmUpParallelism = parallelism;
+    }
+
+    /**
+     * Gets the maximum time for which a superseded result may be served.
+     *
+     * @return the maximum staleness of a result
+     */
+    @Nonnull @NonNegative public Duration getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Sets the maximum time for which a superseded result may be served.
+     *
+     * If this is non-zero, a query whose current result has not yet been rendered is
+     * answered from the previous generation's result, if that is still cached and the
+     * refresh superseding it happened no longer ago than this. The current result is
+     * rendered in the background and replaces the stale one when it is ready.
+     *
+     * @param staleness the maximum staleness of a result, or {@link Duration#ZERO} to disable
+     */
+    public void setMaxStaleness(@Nonnull @NonNegative final Duration staleness) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(staleness, "maximum staleness may not be null");
+        if (staleness.isNegative()) {
+            throw new ConstraintViolationException("maximum staleness must not be negative");
+        }
+        maxStaleness = staleness;
+    }
+
+    /**
+     * Gets the validity window of a rendered result.
+     *
+     * @return the validity window, or {@link Duration#ZERO} if results do not expire
+     */
+    @Nonnull @NonNegative public Duration getValidityWindow() {
+        return validityWindow;
+    }
+
+    /**
+     * Sets the validity window of a rendered result.
+     *
+     * This should match the validity given to results by the render pipeline, for example
+     * through their <code>validUntil</code> attribute, and is used to decide when to render
+     * a cached result again.
+     *
+     * @param validity the validity window, or {@link Duration#ZERO} if results do not expire
+     */
+    public void setValidityWindow(@Nonnull @NonNegative final Duration validity) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(validity, "validity window may not be null");
+        if (validity.isNegative()) {
+            throw new ConstraintViolationException("validity window must not be negative");
+        }
+        validityWindow = validity;
+    }
+
+    /**
+     * Gets the fraction of its validity window after which a cached result is rendered again.
+     *
+     * @return the fraction of the validity window, or zero if results are not rendered again
+     */
+    public double getRerenderFraction() {
+        return rerenderFraction;
+    }
+
+    /**
+     * Sets the fraction of its validity window after which a cached result is rendered again.
+     *
+     * If this and the validity window are both non-zero, each cached result for a current
+     * collection is rendered again in the background once it has aged by this fraction
+     * of the validity window, plus a delay of up to a quarter of the remaining window which
+     * spreads out results rendered at the same time. This keeps the results for unchanged
+     * collections fresh even if the library is not refreshed.
+     *
+     * @param fraction the fraction of the validity window, from zero (default) to disable
+     *      up to but not including one
+     */
+    public void setRerenderFraction(final double fraction) {
+        checkSetterPreconditions();
+        if (fraction < 0 || fraction >= 1) {
+            throw new ConstraintViolationException("re-render fraction must be at least 0 and less than 1");
+        }
+        rerenderFraction = fraction;
+    }
+
+    /**
+     * Gets the maximum number of renders performed at once on behalf of queries.
+     *
+     * @return the maximum number of renders, or zero if unlimited
+     */
+    @NonNegative public int getMaxConcurrentRenders() {
+        return maxConcurrentRenders;
+    }
+
+    /**
+     * Sets the maximum number of renders performed at once on behalf of queries.
+     *
+     * Once this many queries are rendering results, further queries needing a render
+     * wait for one to finish, up to {@link #setMaxQueuedRenders} at a time and for
+     * at most {@link #setRenderQueueTimeout}. A query whose render is not admitted is
+     * answered from the superseded generation if that is allowed by {@link #setMaxStaleness},
+     * and otherwise with a result asking the client to retry after {@link #setRenderRetryAfter}.
+     *
+     * Queries answered from the cache, and queries waiting for a render of the same
+     * collection already in progress, are never limited. Neither are warm-up, revalidation
+     * or re-rendering, which have their own threads.
+     *
+     * @param renders the maximum number of renders, or zero (default) for no limit
+     */
+    public void setMaxConcurrentRenders(@NonNegative final int renders) {
+        checkSetterPreconditions();
+        if (renders < 0) {
+            throw new ConstraintViolationException("maximum concurrent renders must not be negative");
+        }
+        maxConcurrentRenders = renders;
+    }
+
+    /**
+     * Gets the maximum number of query renders waiting to start.
+     *
+     * @return the maximum number of waiting renders
+     */
+    @NonNegative public int getMaxQueuedRenders() {
+        return maxQueuedRenders;
+    }
+
+    /**
+     * Sets the maximum number of query renders waiting to start when the limit set by
+     * {@link #setMaxConcurrentRenders} has been reached.
+     *
+     * @param renders the maximum number of waiting renders, or zero to reject renders
+     *      as soon as the limit is reached (default 100)
+     */
+    public void setMaxQueuedRenders(@NonNegative final int renders) {
+        checkSetterPreconditions();
+        if (renders < 0) {
+            throw new ConstraintViolationException("maximum queued renders must not be negative");
+        }
+        maxQueuedRenders = renders;
+    }
+
+    /**
+     * Gets the maximum time for which a query render waits to start.
+     *
+     * @return the maximum time to wait
+     */
+    @Nonnull @NonNegative public Duration getRenderQueueTimeout() {
+        return renderQueueTimeout;
+    }
+
+    /**
+     * Sets the maximum time for which a query render waits to start.
+     *
+     * @param timeout the maximum time to wait (default 5 seconds)
+     */
+    public void setRenderQueueTimeout(@Nonnull @NonNegative final Duration timeout) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(timeout, "render queue timeout may not be null");
+        if (timeout.isNegative()) {
+            throw new ConstraintViolationException("render queue timeout must not be negative");
+        }
+        renderQueueTimeout = timeout;
+    }
+
+    /**
+     * Gets the time after which a client whose query render was not admitted is asked to retry.
+     *
+     * @return the time after which to retry
+     */
+    @Nonnull @NonNegative public Duration getRenderRetryAfter() {
+        return renderRetryAfter;
+    }
+
+    /**
+     * Sets the time after which a client whose query render was not admitted is asked to retry.
+     *
+     * @param retryAfter the time after which to retry (default 5 seconds)
+     */
+    public void setRenderRetryAfter(@Nonnull @NonNegative final Duration retryAfter) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(retryAfter, "render retry time may not be null");
+        if (retryAfter.isNegative()) {
+            throw new ConstraintViolationException("render retry time must not be negative");
+        }
+        renderRetryAfter = retryAfter;
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The content codings acceptable to a client, as expressed in an
+ * <code>Accept-Encoding</code> request header field.
+ *
+ * See <a href="https://www.rfc-editor.org/rfc/rfc9110#section-12.5.3">RFC 9110 section 12.5.3</a>.
+ */
+public final class AcceptEncoding {
+
+    /** The "identity" content coding, representing no encoding. */
+    public static final String IDENTITY = "identity";
+
+    /** The wildcard matching any content coding not otherwise listed. */
+    private static final String ANY = "*";
+
+    /** Quality values for each content coding listed, indexed by lower-cased coding name. */
+    @Nonnull
+    private final Map<String, Double> qualities = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * Elements of the header which can not be parsed are ignored.
+     *
+     * An absent header is treated like an empty one, allowing only the <code>identity</code>
+     * coding. RFC 9110 would allow any coding, but many metadata clients send no header and
+     * can not decode what they have not asked for.
+     *
+     * @param header value of the <code>Accept-Encoding</code> header field, or <code>null</code>
+     *      if the header was absent
+     */
+    public AcceptEncoding(@Nullable final String header) {
+        if (header == null) {
+            return;
+        }
+        for (final String element : header.split(",")) {
+            final String[] parts = element.split(";");
+            final String coding = normalize(parts[0].trim());
+            if (coding.isEmpty()) {
+                continue;
+            }
+            double quality = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                final String param = parts[i].trim();
+                if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q')
+                        && param.charAt(1) == '=') {
+                    quality = parseQuality(param.substring(2));
+                }
+            }
+            if (quality >= 0) {
+                qualities.put(coding, quality);
+            }
+        }
+    }
+
+    /**
+     * Normalize a content coding name.
+     *
+     * Coding names are case-insensitive, and <code>x-gzip</code> is equivalent to <code>gzip</code>.
+     *
+     * @param coding the content coding name
+     * @return the normalized name
+     */
+    @Nonnull
+    private static String normalize(@Nonnull final String coding) {
+        final String lower = coding.toLowerCase(Locale.ROOT);
+        return "x-gzip".equals(lower) ? GZIPRepresentation.ENCODING : lower;
+    }
+
+    /**
+     * Parse a quality value.
+     *
+     * @param value the quality value, between 0 and 1 with up to three decimal places
+     * @return the quality value, or -1 if it is invalid
+     */
+    private static double parseQuality(@Nonnull final String value) {
+        if (!value.matches("0(\\.\\d{0,3})?|1(\\.0{0,3})?")) {
+            return -1;
+        }
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * Returns the quality value the client assigns to a content coding.
+     *
+     * A coding not listed takes the quality of the <code>*</code> wildcard if present.
+     * Otherwise, it is unacceptable, except for <code>identity</code>, which is
+     * acceptable unless explicitly excluded but is then less preferred than any
+     * coding which is listed.
+     *
+     * @param coding the content coding, or {@link #IDENTITY}
+     * @return the quality value, from 0 (not acceptable) to 1
+     */
+    public double getQuality(@Nonnull final String coding) {
+        final Double quality = qualities.get(normalize(coding));
+        if (quality != null) {
+            return quality;
+        }
+        final Double any = qualities.get(ANY);
+        if (any != null) {
+            return any;
+        }
+        return IDENTITY.equals(coding) ? Double.MIN_VALUE : 0.0;
+    }
+
+    /**
+     * Select the {@link Representation} of a {@link Result} to send to the client.
+     *
+     * The available representation with the highest quality value is chosen; among those
+     * of equal quality, the smallest is chosen. The uncompressed representation is returned
+     * if no other is acceptable, even if the client has excluded <code>identity</code>.
+     *
+     * @param result the {@link Result} to select a {@link Representation} of
+     * @return the selected {@link Representation}
+     */
+    @Nonnull
+    public Representation select(@Nonnull final Result result) {
+        Representation best = result.getRepresentation();
+        double bestQuality = getQuality(IDENTITY);
+        for (final Representation rep : result.getEncodedRepresentations()) {
+            final double quality = getQuality(rep.getContentEncoding());
+            if (quality <= 0) {
+                continue;
+            }
+            final boolean smaller = quality == bestQuality && rep.getLength() < best.getLength();
+            if (quality > bestQuality || smaller) {
+                best = rep;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.metadata.Item;
+
+/**
+ * Assembles the serialized all-entities aggregate directly from its items, in place
+ * of executing the render pipeline on a copy of every item and serializing the result.
+ *
+ * @param <T> item type of the metadata assembled
+ */
+public interface AggregateAssembler<T> {
+
+    /**
+     * Write the serialized aggregate of a collection of items.
+     *
+     * The items must not be modified.
+     *
+     * @param items the items to include in the aggregate
+     * @param out the output stream to write to
+     *
+     * @throws IOException if the aggregate can not be assembled or written
+     */
+    void assemble(@Nonnull List<Item<T>> items, @Nonnull OutputStream out) throws IOException;
+}
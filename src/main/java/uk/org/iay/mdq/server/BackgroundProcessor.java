@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Generates the compressed {@link Representation}s of rendered results, and persists them,
+ * at low priority in the background.
+ */
+final class BackgroundProcessor {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BackgroundProcessor.class);
+
+    /**
+     * Content encodings for which compressed representations are generated.
+     *
+     * These are the {@link RepresentationCompressor#SUPPORTED_ENCODINGS} whose compressors are
+     * available on this platform, or none if compression is disabled.
+     */
+    @Nonnull
+    private final List<String> compressedEncodings;
+
+    /** Generates compressed representations, or <code>null</code> if compression is disabled. */
+    @Nullable
+    private final RepresentationCompressor compressor;
+
+    /** Store in which rendered results are persisted, or <code>null</code> if persistence is disabled. */
+    @Nullable
+    private final DiskResultStore resultStore;
+
+    /** Greatest age at which a stored result is restored, or <code>null</code> for no limit. */
+    @Nullable
+    private final Duration maximumStoredAge;
+
+    /** Called each time the size of a result changes. */
+    @Nonnull
+    private final Consumer<ServiceResult> resized;
+
+    /** Executor on which results are processed, or <code>null</code> if there is nothing to do. */
+    @Nullable
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param name prefix for the names of the background threads
+     * @param representationCompressor generates compressed representations,
+     *      or <code>null</code> to disable compression
+     * @param store store in which rendered results are persisted, or <code>null</code> to disable persistence
+     * @param maxStoredAge greatest age at which a stored result is restored, or <code>null</code> for no limit
+     * @param resizeListener called each time the size of a result changes
+     */
+    BackgroundProcessor(@Nonnull final String name, @Nullable final RepresentationCompressor representationCompressor,
+            @Nullable final DiskResultStore store, @Nullable final Duration maxStoredAge,
+            @Nonnull final Consumer<ServiceResult> resizeListener) {
+        compressor = representationCompressor;
+        compressedEncodings = compressor == null ? Collections.emptyList()
+                : RepresentationCompressor.getAvailableEncodings();
+        resultStore = store;
+        maximumStoredAge = maxStoredAge;
+        resized = resizeListener;
+        if (compressor != null || resultStore != null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactoryBuilder().setNameFormat(name + "-background-%d").setDaemon(true)
+                        .setPriority(Thread.MIN_PRIORITY).build());
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Generate any compressed {@link Representation}s of a result which do not yet exist,
+     * in the calling thread.
+     *
+     * @param result the result to compress
+     *
+     * @return <code>true</code> if any {@link Representation} was generated
+     */
+    boolean compress(@Nonnull final ServiceResult result) {
+        return compressor != null && result.compress(compressedEncodings, compressor, resized);
+    }
+
+    /**
+     * Generate the compressed {@link Representation}s of a result in the background,
+     * then persist the result if it has changed.
+     *
+     * @param result the result to process
+     * @param persistent whether the result can be persisted
+     * @param stored whether the result has been restored from the persistent store
+     */
+    void process(@Nonnull final ServiceResult result, final boolean persistent, final boolean stored) {
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    final boolean compressed = compress(result);
+                    if (persistent && resultStore != null && (compressed || !stored)) {
+                        result.persist(resultStore);
+                    }
+                } catch (final RuntimeException e) {
+                    log.warn("background processing failed for {}", result.getIdentifiers(), e);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            log.debug("background executor has been shut down");
+        }
+    }
+
+    /**
+     * Restore the result for a collection from the persistent store, if possible.
+     *
+     * A result older than the greatest age given to the constructor is not restored, as it
+     * would soon need to be rendered again.
+     *
+     * @param collection the collection to restore the result for
+     * @param storage moves each restored {@link Representation} to the storage used for the result
+     *
+     * @return the restored result, or <code>null</code> if none is available
+     */
+    @Nullable
+    ServiceResult restore(@Nonnull final IdentifiedItemCollection<?> collection,
+            @Nonnull final UnaryOperator<Representation> storage) {
+        if (resultStore == null || !collection.isContentDigest()) {
+            return null;
+        }
+        final DiskResultStore.StoredResult stored = resultStore.read(collection.getDigest());
+        if (stored == null) {
+            return null;
+        }
+        if (maximumStoredAge != null && stored.getRendered().plus(maximumStoredAge).isBefore(Instant.now())) {
+            log.debug("stored result for {} rendered at {} is too old to restore", collection.getIdentifiers(),
+                    stored.getRendered());
+            return null;
+        }
+        return new ServiceResult(stored.getRepresentation(), stored.getEncodedRepresentations(), collection,
+                stored.getRendered(), storage);
+    }
+
+    /**
+     * Discard persisted results other than those for the given collections.
+     *
+     * @param digests content digests of the collections whose results are retained
+     */
+    void retain(@Nonnull final Set<String> digests) {
+        if (resultStore != null) {
+            resultStore.retain(digests);
+        }
+    }
+
+    /**
+     * Abandon any processing which has not yet been performed.
+     */
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -16,6 +16,12 @@
 
 package uk.org.iay.mdq.server;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
 import javax.annotation.Nonnull;
 
 import org.cryptacular.util.CodecUtil;
@@ -42,6 +48,26 @@ public abstract class BaseRepresentation implements Representation {
         etag = "\"" + CodecUtil.hex(HashUtil.sha1(repBytes)) + "\"";
     }
 
+    /**
+     * Write the remaining content of a buffer to a stream, a little at a time, so that
+     * content held outside the heap is not copied into it as a whole.
+     *
+     * The position of the buffer is not changed.
+     *
+     * @param content the content to write
+     * @param out the stream to write to
+     *
+     * @throws IOException if the content can not be written
+     */
+    protected static void writeContent(@Nonnull final ByteBuffer content, @Nonnull final OutputStream out)
+            throws IOException {
+        final WritableByteChannel channel = Channels.newChannel(out);
+        final ByteBuffer source = content.duplicate();
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
     @Override
     public @Nonnull String getETag() {
         return etag;
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.BrotliOutputStream;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+
+/**
+ * A {@link Representation} constructed by <code>br</code> (Brotli) compression.
+ */
+public class BrotliRepresentation extends BaseRepresentation {
+
+    /** Content encoding for this type of representation. */
+    public static final String ENCODING = "br";
+
+    /** Lowest compression level. */
+    public static final int MIN_LEVEL = 0;
+
+    /** Highest compression level. */
+    public static final int MAX_LEVEL = 11;
+
+    /**
+     * Default compression level.
+     *
+     * This is lower than the encoder's own default, which is very slow for large results.
+     */
+    public static final int DEFAULT_LEVEL = 6;
+
+    /** Class logger. */
+    private static Logger log = LoggerFactory.getLogger(BrotliRepresentation.class);
+
+    /**
+     * Constructor.
+     *
+     * @param repBytes the uncompressed representation
+     */
+    protected BrotliRepresentation(@Nonnull final byte[] repBytes) {
+        this(repBytes, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param repBytes the uncompressed representation
+     * @param level compression level, from {@link #MIN_LEVEL} to {@link #MAX_LEVEL}
+     */
+    protected BrotliRepresentation(@Nonnull final byte[] repBytes, final int level) {
+        this(ByteBuffer.wrap(repBytes), level);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param content the uncompressed representation, which may be held outside the heap
+     * @param level compression level, from {@link #MIN_LEVEL} to {@link #MAX_LEVEL}
+     */
+    protected BrotliRepresentation(@Nonnull final ByteBuffer content, final int level) {
+        super(compress(content, level));
+    }
+
+    /**
+     * Returns whether the native Brotli library is available on this platform.
+     *
+     * @return <code>true</code> if Brotli compression is available
+     */
+    public static boolean isAvailable() {
+        if (!Brotli4jLoader.isAvailable()) {
+            log.warn("Brotli compression unavailable", Brotli4jLoader.getUnavailabilityCause());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compress the content of a buffer, a little at a time.
+     * 
+     * @param content buffer whose remaining content is to be compressed
+     * @param level compression level
+     * @return compressed <code>byte</code> array
+     */
+    private static @Nonnull byte[] compress(@Nonnull final ByteBuffer content, final int level) {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream compos = new BrotliOutputStream(baos,
+                new Encoder.Parameters().setQuality(level).setMode(Encoder.Mode.TEXT))) {
+            writeContent(content, compos);
+        } catch (final IOException e) {
+            // no partial result is usable, so let the caller do without this representation
+            throw new UncheckedIOException("can not construct compressed representation", e);
+        }
+        return baos.toByteArray();
+    }
+    
+    @Override
+    public String getContentEncoding() {
+        return ENCODING;
+    }
+    
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Result} for a query which could not be answered because the service was too
+ * busy to render the result.
+ */
+final class BusyResult implements Result {
+
+    /** How long the client should wait before retrying the query. */
+    @Nonnull
+    private final Duration retryAfter;
+
+    /**
+     * Constructor.
+     *
+     * @param retry how long the client should wait before retrying the query
+     */
+    BusyResult(@Nonnull final Duration retry) {
+        retryAfter = retry;
+    }
+
+    @Override
+    public boolean isNotFound() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>A busy result has no content.</p>
+     */
+    @Override
+    @Nonnull
+    public Representation getRepresentation() {
+        throw new IllegalStateException("busy result has no representation");
+    }
+
+    @Override
+    @Nullable
+    public Representation getGZIPRepresentation() {
+        return null;
+    }
+
+    @Override
+    @Nullable
+    public Representation getDeflateRepresentation() {
+        return null;
+    }
+
+    @Override
+    @Nonnull
+    public Collection<Representation> getEncodedRepresentations() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    @Nullable
+    public Collection<String> getIdentifiers() {
+        return null;
+    }
+
+    @Override
+    @Nonnull
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The byte ranges of a representation requested by a client in a
+ * <code>Range</code> request header field.
+ *
+ * Overlapping and adjacent ranges are coalesced, and the ranges are returned in ascending
+ * order. A request for too many ranges is ignored rather than answered piecemeal.
+ *
+ * See <a href="https://www.rfc-editor.org/rfc/rfc9110#section-14.2">RFC 9110 section 14.2</a>.
+ */
+public final class ByteRanges {
+
+    /** Maximum number of distinct ranges which will be served in a single response. */
+    public static final int MAX_RANGES = 16;
+
+    /** The range unit supported. */
+    private static final String BYTES_UNIT = "bytes=";
+
+    /** Marker for a range specification which could not be parsed. */
+    private static final Range NO_RANGE = new Range(-1, -1);
+
+    /**
+     * A single range of bytes, both ends inclusive.
+     */
+    public static final class Range {
+
+        /** Offset of the first byte in the range. */
+        private final long first;
+
+        /** Offset of the last byte in the range. */
+        private final long last;
+
+        /**
+         * Constructor.
+         *
+         * @param firstByte offset of the first byte in the range
+         * @param lastByte offset of the last byte in the range
+         */
+        private Range(final long firstByte, final long lastByte) {
+            first = firstByte;
+            last = lastByte;
+        }
+
+        /**
+         * Returns the offset of the first byte in the range.
+         *
+         * @return the offset of the first byte
+         */
+        public long getFirst() {
+            return first;
+        }
+
+        /**
+         * Returns the offset of the last byte in the range.
+         *
+         * @return the offset of the last byte
+         */
+        public long getLast() {
+            return last;
+        }
+
+        /**
+         * Returns the number of bytes in the range.
+         *
+         * @return the number of bytes
+         */
+        public long getLength() {
+            return last - first + 1;
+        }
+
+        /**
+         * Returns the value of a <code>Content-Range</code> header field describing this range.
+         *
+         * @param completeLength length of the whole representation
+         * @return the <code>Content-Range</code> value
+         */
+        @Nonnull
+        public String toContentRange(final long completeLength) {
+            return "bytes " + first + "-" + last + "/" + completeLength;
+        }
+    }
+
+    /**
+     * The satisfiable ranges requested, or <code>null</code> if the header should be ignored.
+     */
+    @Nullable
+    private final List<Range> ranges;
+
+    /**
+     * Constructor.
+     *
+     * @param header value of the <code>Range</code> header field, or <code>null</code>
+     *      if the header was absent
+     * @param length length of the representation the ranges apply to
+     */
+    public ByteRanges(@Nullable final String header, final long length) {
+        ranges = parse(header, length);
+    }
+
+    /**
+     * Parse a <code>Range</code> header field.
+     *
+     * @param header value of the <code>Range</code> header field, or <code>null</code>
+     * @param length length of the representation the ranges apply to
+     *
+     * @return the coalesced satisfiable ranges, or <code>null</code> if the header
+     *      was absent, malformed, or requested too many ranges
+     */
+    @Nullable
+    private static List<Range> parse(@Nullable final String header, final long length) {
+        if (header == null || !header.strip().toLowerCase(Locale.ROOT).startsWith(BYTES_UNIT)) {
+            return null;
+        }
+        final List<Range> requested = new ArrayList<>();
+        boolean empty = true;
+        for (final String element : header.strip().substring(BYTES_UNIT.length()).split(",")) {
+            final String spec = element.strip();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            empty = false;
+            final Range range = parseRange(spec, length);
+            if (range == NO_RANGE) {
+                return null;
+            }
+            if (range != null) {
+                requested.add(range);
+            }
+        }
+        if (empty) {
+            return null;
+        }
+        final List<Range> coalesced = coalesce(requested);
+        return coalesced.size() > MAX_RANGES ? null : coalesced;
+    }
+
+    /**
+     * Parse a single range specification.
+     *
+     * @param spec the range specification
+     * @param length length of the representation the range applies to
+     *
+     * @return the range, <code>null</code> if it is valid but not satisfiable,
+     *      or {@link #NO_RANGE} if it is invalid
+     */
+    @Nullable
+    private static Range parseRange(@Nonnull final String spec, final long length) {
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return NO_RANGE;
+        }
+        try {
+            final String firstPart = spec.substring(0, dash).strip();
+            final String lastPart = spec.substring(dash + 1).strip();
+            if (firstPart.isEmpty()) {
+                // suffix range: the final n bytes
+                final long suffix = parseOffset(lastPart);
+                if (suffix == 0 || length == 0) {
+                    return null;
+                }
+                return new Range(Math.max(0, length - suffix), length - 1);
+            }
+            final long first = parseOffset(firstPart);
+            final long last = lastPart.isEmpty() ? Long.MAX_VALUE : parseOffset(lastPart);
+            if (last < first) {
+                return NO_RANGE;
+            }
+            if (first >= length) {
+                return null;
+            }
+            return new Range(first, Math.min(last, length - 1));
+        } catch (final NumberFormatException e) {
+            return NO_RANGE;
+        }
+    }
+
+    /**
+     * Parse a byte offset, which must consist only of digits.
+     *
+     * @param value the offset
+     * @return the offset
+     * @throws NumberFormatException if the offset is invalid
+     */
+    private static long parseOffset(@Nonnull final String value) {
+        if (value.isEmpty() || !value.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            throw new NumberFormatException("invalid byte offset: " + value);
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * Sort ranges and merge any which overlap or are adjacent.
+     *
+     * @param requested the ranges requested
+     * @return the coalesced ranges
+     */
+    @Nonnull
+    private static List<Range> coalesce(@Nonnull final List<Range> requested) {
+        requested.sort(Comparator.comparingLong(Range::getFirst));
+        final List<Range> coalesced = new ArrayList<>();
+        Range current = null;
+        for (final Range range : requested) {
+            if (current != null && range.getFirst() <= current.getLast() + 1) {
+                current = new Range(current.getFirst(), Math.max(current.getLast(), range.getLast()));
+            } else {
+                if (current != null) {
+                    coalesced.add(current);
+                }
+                current = range;
+            }
+        }
+        if (current != null) {
+            coalesced.add(current);
+        }
+        return coalesced;
+    }
+
+    /**
+     * Returns whether a valid <code>Range</code> header field was present.
+     *
+     * If not, the whole representation should be sent.
+     *
+     * @return <code>true</code> if ranges were requested
+     */
+    public boolean isRequested() {
+        return ranges != null;
+    }
+
+    /**
+     * Returns whether any of the requested ranges can be satisfied.
+     *
+     * If not, the response should be <code>416 Range Not Satisfiable</code>.
+     *
+     * @return <code>true</code> if at least one range can be satisfied
+     */
+    public boolean isSatisfiable() {
+        return ranges != null && !ranges.isEmpty();
+    }
+
+    /**
+     * Returns the satisfiable ranges, coalesced and in ascending order.
+     *
+     * @return the ranges
+     */
+    @Nonnull
+    public List<Range> getRanges() {
+        return ranges == null ? Collections.emptyList() : Collections.unmodifiableList(ranges);
+    }
+}
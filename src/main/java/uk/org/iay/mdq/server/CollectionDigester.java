@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.cryptacular.util.CodecUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemSerializer;
+
+/**
+ * Creates the {@link IdentifiedItemCollection}s for one refresh of an {@link ItemCollectionLibrary},
+ * giving each a content digest computed from its identifiers and the serialized forms of its items.
+ *
+ * A collection with the same content digest as one from the previous refresh keeps that
+ * collection's modification time, or is replaced by that collection if refreshes are incremental.
+ *
+ * @param <T> item type of the metadata served
+ */
+final class CollectionDigester<T> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CollectionDigester.class);
+
+    /**
+     * Serializer used to compute a content digest for each collection, or <code>null</code>
+     * to derive each collection's digest from its source generation.
+     */
+    @Nullable
+    private final ItemSerializer<T> itemSerializer;
+
+    /** Pool on which items are digested, or <code>null</code> to digest them on the calling thread. */
+    @Nullable
+    private final ForkJoinPool indexPool;
+
+    /** Source generation of the collections created. */
+    private final long generation;
+
+    /** The previous refresh's collections which have content digests, indexed by content digest. */
+    @Nonnull
+    private final Map<String, IdentifiedItemCollection<T>> previousCollections = new HashMap<>();
+
+    /** Whether collections unchanged since the previous refresh are reused. */
+    private final boolean incrementalRefresh;
+
+    /** Digests of the items seen during this refresh, which may appear in several collections. */
+    @Nonnull
+    private final Map<Item<T>, byte[]> itemDigests = new IdentityHashMap<>();
+
+    /** Number of collections reused from the previous refresh. */
+    private int reused;
+
+    /**
+     * Constructor.
+     *
+     * @param serializer serializer used to compute content digests, or <code>null</code> to derive
+     *      each collection's digest from its source generation
+     * @param pool pool on which items are digested, or <code>null</code> to digest them on the calling thread
+     * @param gen source generation of the collections created
+     * @param previous the previous refresh's collections
+     * @param incremental whether collections unchanged since the previous refresh are reused
+     */
+    CollectionDigester(@Nullable final ItemSerializer<T> serializer, @Nullable final ForkJoinPool pool,
+            final long gen, @Nonnull final Collection<IdentifiedItemCollection<T>> previous,
+            final boolean incremental) {
+        itemSerializer = serializer;
+        indexPool = pool;
+        generation = gen;
+        incrementalRefresh = incremental;
+        for (final IdentifiedItemCollection<T> collection : previous) {
+            if (collection.isContentDigest()) {
+                previousCollections.put(collection.getDigest(), collection);
+            }
+        }
+    }
+
+    /**
+     * Create a new SHA-1 {@link MessageDigest}.
+     *
+     * @return a new {@link MessageDigest}
+     */
+    @Nonnull
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    /**
+     * Compute the digest of a single item's serialized form, and record it in
+     * the item's {@link ItemDigest} metadata.
+     *
+     * @param item the {@link Item} to digest
+     * @return the digest, or <code>null</code> if the item could not be serialized
+     */
+    @Nullable
+    private byte[] digestItem(@Nonnull final Item<T> item) {
+        final MessageDigest digest = newDigest();
+        item.getItemMetadata().removeAll(ItemDigest.class);
+        try (final OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            itemSerializer.serialize(item, out);
+        } catch (final IOException e) {
+            log.warn("could not serialize item for digest", e);
+            return null;
+        }
+        final byte[] value = digest.digest();
+        item.getItemMetadata().put(new ItemDigest(CodecUtil.hex(value)));
+        return value;
+    }
+
+    /**
+     * Compute the digest of each item in advance, in parallel if configured.
+     *
+     * @param items the items to digest
+     */
+    void digestItems(@Nonnull final List<Item<T>> items) {
+        if (itemSerializer == null) {
+            return;
+        }
+
+        // each item's digest is placed by position, so the order of completion does not matter
+        final byte[][] digests = new byte[items.size()][];
+        if (indexPool == null) {
+            for (int i = 0; i < digests.length; i++) {
+                digests[i] = digestItem(items.get(i));
+            }
+        } else {
+            indexPool.submit(() -> IntStream.range(0, digests.length).parallel()
+                    .forEach(i -> digests[i] = digestItem(items.get(i)))).join();
+        }
+
+        for (int i = 0; i < digests.length; i++) {
+            if (digests[i] != null) {
+                itemDigests.put(items.get(i), digests[i]);
+            }
+        }
+    }
+
+    /**
+     * Record that an item carried over from the previous refresh is identical to a new one.
+     *
+     * @param item the item carried over
+     * @param sourceItem the new item
+     */
+    void sameItem(@Nonnull final Item<T> item, @Nonnull final Item<T> sourceItem) {
+        final byte[] digest = itemDigests.get(sourceItem);
+        if (digest != null) {
+            itemDigests.put(item, digest);
+        }
+    }
+
+    /**
+     * Create a new {@link IdentifiedItemCollection}, with a content digest if possible.
+     *
+     * The digest covers the collection's identifiers as well as its items, so that collections
+     * with the same items but different identifiers do not share results.
+     *
+     * If refreshes are incremental and the previous refresh produced a collection with the
+     * same content digest, that collection is returned instead.
+     *
+     * @param items items to be associated with the identifiers
+     * @param ids identifiers to be associated with the items
+     * @return the new {@link IdentifiedItemCollection}
+     */
+    @Nonnull
+    IdentifiedItemCollection<T> newCollection(@Nonnull final List<Item<T>> items,
+            @Nonnull final Collection<String> ids) {
+        if (itemSerializer == null) {
+            return new IdentifiedItemCollection<>(items, ids, generation);
+        }
+
+        final MessageDigest digest = newDigest();
+        for (final String id : ids) {
+            // distinguish the "all entities" identifier from any real identifier
+            if (id == ItemCollectionLibrary.ID_ALL) {
+                digest.update((byte) 1);
+            } else {
+                digest.update((byte) 0);
+                digest.update(id.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        for (final Item<T> item : items) {
+            final byte[] itemDigest = itemDigests.computeIfAbsent(item, this::digestItem);
+            if (itemDigest == null) {
+                // fall back to a digest which changes with every generation
+                return new IdentifiedItemCollection<>(items, ids, generation);
+            }
+            digest.update(itemDigest);
+        }
+        final String hex = CodecUtil.hex(digest.digest());
+        final IdentifiedItemCollection<T> previous = previousCollections.get(hex);
+        if (previous == null) {
+            return new IdentifiedItemCollection<>(items, ids, generation, hex, Instant.now());
+        }
+        if (incrementalRefresh) {
+            reused++;
+            return previous;
+        }
+        // an unchanged collection keeps the modification time of its predecessor
+        return new IdentifiedItemCollection<>(items, ids, generation, hex, previous.getLastModified());
+    }
+
+    /**
+     * Returns the number of collections reused from the previous refresh.
+     *
+     * @return the number of collections reused
+     */
+    int getReused() {
+        return reused;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemCollectionSerializer;
+import net.shibboleth.metadata.pipeline.Pipeline;
+import net.shibboleth.metadata.pipeline.PipelineProcessingException;
+
+/**
+ * Renders an {@link IdentifiedItemCollection} into a {@link Representation}, by executing
+ * a render pipeline on a copy of its items and serializing the result.
+ *
+ * Large collections can be rendered without copying their items, where the render
+ * pipeline is known to leave its input items unchanged.
+ *
+ * @param <T> item type of the metadata rendered
+ */
+final class CollectionRenderer<T> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CollectionRenderer.class);
+
+    /** The pipeline to execute to render metadata for publication. */
+    @Nonnull
+    private final Pipeline<T> renderPipeline;
+
+    /** The serializer to use to convert the rendered metadata into an octet stream. */
+    @Nonnull
+    private final ItemCollectionSerializer<T> serializer;
+
+    /**
+     * Directory to which the all-entities aggregate is written as it is serialized,
+     * or <code>null</code> if it is serialized in memory.
+     */
+    @Nullable
+    private final Path aggregateSpool;
+
+    /**
+     * Assembles the all-entities aggregate in place of the render pipeline,
+     * or <code>null</code> if the aggregate is rendered like any other collection.
+     */
+    @Nullable
+    private final AggregateAssembler<T> aggregateAssembler;
+
+    /**
+     * Minimum number of items in a collection for them to be rendered without first
+     * being copied, or zero if items are always copied.
+     */
+    private final int sharedItemsMinimum;
+
+    /**
+     * Constructor.
+     *
+     * @param pipeline the pipeline to execute to render metadata for publication
+     * @param itemSerializer the serializer to use to convert the rendered metadata into an octet stream
+     * @param spool directory to which the all-entities aggregate is written as it is serialized,
+     *      or <code>null</code> to serialize it in memory
+     * @param assembler assembles the all-entities aggregate in place of the render pipeline,
+     *      or <code>null</code> to render it like any other collection
+     * @param sharedMinimum minimum number of items in a collection for them to be rendered
+     *      without first being copied, or zero to always copy them
+     */
+    CollectionRenderer(@Nonnull final Pipeline<T> pipeline, @Nonnull final ItemCollectionSerializer<T> itemSerializer,
+            @Nullable final Path spool, @Nullable final AggregateAssembler<T> assembler, final int sharedMinimum) {
+        renderPipeline = pipeline;
+        serializer = itemSerializer;
+        aggregateSpool = spool;
+        aggregateAssembler = assembler;
+        sharedItemsMinimum = sharedMinimum;
+    }
+
+    /**
+     * Clones an {@link Item} {@link Collection} so that its elements can be mutated
+     * without changing the originals.
+     * 
+     * @param collection {@link Collection} of {@link Item}s to clone
+     * 
+     * @return cloned {@link Collection} of {@link Item}s
+     */
+    private List<Item<T>> cloneItemCollection(@Nonnull final List<Item<T>> collection) {
+        final List<Item<T>> newItems = new ArrayList<>(collection.size());
+        for (final Item<T> item : collection) {
+            newItems.add(item.copy());
+        }
+        return newItems;
+    }
+
+    /**
+     * Returns the items of a collection in a form which the render pipeline can change.
+     *
+     * The list is always new, but the items themselves are only copied if the collection
+     * is smaller than the shared items minimum.
+     *
+     * @param collection {@link Collection} of {@link Item}s to render
+     *
+     * @return {@link Collection} of {@link Item}s to pass to the render pipeline
+     */
+    private List<Item<T>> renderItems(@Nonnull final List<Item<T>> collection) {
+        if (sharedItemsMinimum > 0 && collection.size() >= sharedItemsMinimum) {
+            return new ArrayList<>(collection);
+        }
+        return cloneItemCollection(collection);
+    }
+
+    /**
+     * Returns whether a collection is the all-entities aggregate.
+     *
+     * @param collection the collection to be rendered
+     *
+     * @return <code>true</code> if the collection is the all-entities aggregate
+     */
+    private boolean isAggregate(@Nonnull final IdentifiedItemCollection<T> collection) {
+        final Collection<String> ids = collection.getIdentifiers();
+        if (ids == null) {
+            return false;
+        }
+        for (final String id : ids) {
+            if (id == ItemCollectionLibrary.ID_ALL) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Render an {@link IdentifiedItemCollection} representing the result of a query.
+     * 
+     * @param collection query result to render
+     * 
+     * @return rendered query result
+     */
+    Representation render(@Nonnull final IdentifiedItemCollection<T> collection) {
+        final boolean aggregate = isAggregate(collection);
+        try {
+            final SpooledRepresentation.ContentWriter writer;
+            if (aggregate && aggregateAssembler != null) {
+                // the assembler leaves the items unchanged, so there is no need to copy them
+                log.debug("assembling aggregate of {} elements", collection.getItems().size());
+                writer = os -> aggregateAssembler.assemble(collection.getItems(), os);
+            } else {
+                final List<Item<T>> items = renderItems(collection.getItems());
+                log.debug("rendering collection of {} elements", items.size());
+                renderPipeline.execute(items);
+                log.debug("items rendered, resulting collection has {} elements", items.size());
+                writer = os -> serializer.serializeCollection(items, os);
+            }
+            if (aggregate && aggregateSpool != null) {
+                return new SpooledRepresentation(aggregateSpool, writer);
+            }
+            try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+                writer.write(os);
+                return new SimpleRepresentation(os.toByteArray());
+            }
+        } catch (final IOException e) {
+            log.debug("problem with output stream: " + e.getMessage());
+            return null;
+        } catch (final PipelineProcessingException e) {
+            log.debug("problem with render pipeline: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -19,6 +19,8 @@ package uk.org.iay.mdq.server;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
 import javax.annotation.Nonnull;
@@ -32,7 +34,7 @@ import org.slf4j.LoggerFactory;
 public class DeflateRepresentation extends BaseRepresentation {
 
     /** Content encoding for this type of representation. */
-    public static final String ENCODING = "compress";
+    public static final String ENCODING = "deflate";
 
     /** Class logger. */
     private static Logger log = LoggerFactory.getLogger(DeflateRepresentation.class);
@@ -43,21 +45,46 @@ public class DeflateRepresentation extends BaseRepresentation {
      * @param repBytes the uncompressed representation
      */
     protected DeflateRepresentation(@Nonnull final byte[] repBytes) {
-        super(compress(repBytes));
+        this(repBytes, Deflater.DEFAULT_COMPRESSION);
     }
 
     /**
-     * Compress a <code>byte</code> array.
+     * Constructor.
+     *
+     * @param repBytes the uncompressed representation
+     * @param level compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    protected DeflateRepresentation(@Nonnull final byte[] repBytes, final int level) {
+        this(ByteBuffer.wrap(repBytes), level);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param content the uncompressed representation, which may be held outside the heap
+     * @param level compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    protected DeflateRepresentation(@Nonnull final ByteBuffer content, final int level) {
+        super(compress(content, level));
+    }
+
+    /**
+     * Compress the content of a buffer, a little at a time.
      * 
-     * @param repBytes <code>byte</code> array to be compressed
+     * @param content buffer whose remaining content is to be compressed
+     * @param level compression level
      * @return compressed <code>byte</code> array
      */
-    private static @Nonnull byte[] compress(@Nonnull final byte[] repBytes) {
+    private static @Nonnull byte[] compress(@Nonnull final ByteBuffer content, final int level) {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (OutputStream compos = new DeflaterOutputStream(baos)) {
-            compos.write(repBytes);
+        final Deflater deflater = new Deflater(level);
+        try (OutputStream compos = new DeflaterOutputStream(baos, deflater)) {
+            writeContent(content, compos);
         } catch (final IOException e) {
             log.error("can not construct compressed representation: {}", e);
+        } finally {
+            // a Deflater supplied to the stream is not released when the stream is closed
+            deflater.end();
         }
         return baos.toByteArray();
     }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Persists the {@link Representation}s of rendered results in a directory, so that they
+ * can be restored in another process rather than rendered again.
+ *
+ * Each result is stored in a single file named after the content digest of the collection
+ * it was rendered from. Each {@link Representation} in the file is recorded with its
+ * content encoding and <code>ETag</code>, and is checked against the <code>ETag</code>
+ * when it is read back. The file's modification time records when the result was rendered.
+ *
+ * Each file also records a fingerprint of the render configuration in use when the result
+ * was rendered. A result rendered under a different configuration, for example with another
+ * signing key, is discarded rather than restored.
+ */
+final class DiskResultStore {
+
+    /** Marker identifying a result file, and the version of its format. */
+    private static final int MAGIC = 0x4d445132;
+
+    /** Suffix of result file names. */
+    private static final String SUFFIX = ".result";
+
+    /** Suffix of files being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Encoding recorded for the uncompressed {@link Representation}. */
+    private static final String IDENTITY = "";
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(DiskResultStore.class);
+
+    /** Directory in which results are stored. */
+    @Nonnull
+    private final Path directory;
+
+    /** Fingerprint of the current render configuration. */
+    @Nonnull
+    private final String fingerprint;
+
+    /**
+     * A result restored from the store.
+     */
+    static final class StoredResult {
+
+        /** The uncompressed {@link Representation}. */
+        @Nonnull
+        private final Representation representation;
+
+        /** The compressed {@link Representation}s. */
+        @Nonnull
+        private final List<Representation> encodedRepresentations;
+
+        /** Time at which the result was rendered. */
+        @Nonnull
+        private final Instant rendered;
+
+        /**
+         * Constructor.
+         *
+         * @param rep the uncompressed {@link Representation}
+         * @param encoded the compressed {@link Representation}s
+         * @param renderTime time at which the result was rendered
+         */
+        private StoredResult(@Nonnull final Representation rep, @Nonnull final List<Representation> encoded,
+                @Nonnull final Instant renderTime) {
+            representation = rep;
+            encodedRepresentations = encoded;
+            rendered = renderTime;
+        }
+
+        /**
+         * Returns the uncompressed {@link Representation}.
+         *
+         * @return the uncompressed {@link Representation}
+         */
+        @Nonnull
+        Representation getRepresentation() {
+            return representation;
+        }
+
+        /**
+         * Returns the compressed {@link Representation}s.
+         *
+         * @return the compressed {@link Representation}s
+         */
+        @Nonnull
+        List<Representation> getEncodedRepresentations() {
+            return encodedRepresentations;
+        }
+
+        /**
+         * Returns the time at which the result was rendered.
+         *
+         * @return the time at which the result was rendered
+         */
+        @Nonnull
+        Instant getRendered() {
+            return rendered;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * Creates the directory if necessary, and removes any files left partly written
+     * by a previous process.
+     *
+     * @param dir directory in which to store results
+     * @param renderFingerprint fingerprint of the current render configuration
+     * @throws IOException if the directory can not be created or read
+     */
+    DiskResultStore(@Nonnull final Path dir, @Nonnull final String renderFingerprint) throws IOException {
+        directory = Files.createDirectories(dir);
+        fingerprint = renderFingerprint;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + TEMP_SUFFIX)) {
+            for (final Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Computes a fingerprint of the configuration of a render pipeline.
+     *
+     * @param configuration description of the configuration of the render pipeline
+     * @param resources resources whose contents affect rendered results
+     * @return the fingerprint
+     * @throws IOException if a resource can not be read
+     */
+    @Nonnull
+    static String fingerprint(@Nonnull final String configuration, @Nonnull final Collection<Resource> resources)
+            throws IOException {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(configuration, StandardCharsets.UTF_8);
+        for (final Resource resource : resources) {
+            try (InputStream in = resource.getInputStream()) {
+                hasher.putByte((byte) 0);
+                ByteStreams.copy(in, Funnels.asOutputStream(hasher));
+            } catch (final IOException e) {
+                throw new IOException("could not read render configuration resource " + resource.getDescription(), e);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Returns the file in which a result is stored.
+     *
+     * @param digest content digest of the result's collection
+     * @return the result file
+     */
+    @Nonnull
+    private Path fileFor(@Nonnull final String digest) {
+        return directory.resolve(digest + SUFFIX);
+    }
+
+    /**
+     * Returns whether a result is stored.
+     *
+     * @param digest content digest of the result's collection
+     * @return <code>true</code> if the result is stored
+     */
+    boolean contains(@Nonnull final String digest) {
+        return Files.isRegularFile(fileFor(digest));
+    }
+
+    /**
+     * Read a stored result.
+     *
+     * A file which can not be read, whose contents do not match their <code>ETag</code>s,
+     * or which was rendered under a different render configuration, is deleted.
+     *
+     * @param digest content digest of the result's collection
+     * @return the stored result, or <code>null</code> if none is available
+     */
+    @Nullable
+    StoredResult read(@Nonnull final String digest) {
+        final Path file = fileFor(digest);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("unrecognised file format");
+            }
+            if (!fingerprint.equals(in.readUTF())) {
+                log.debug("discarding stored result {} rendered under another configuration", digest);
+                delete(file);
+                return null;
+            }
+            final int count = in.readInt();
+            Representation representation = null;
+            final List<Representation> encoded = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final String encoding = in.readUTF();
+                final String etag = in.readUTF();
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                final Representation rep =
+                        new StoredRepresentation(bytes, IDENTITY.equals(encoding) ? null : encoding);
+                if (!rep.getETag().equals(etag)) {
+                    throw new IOException("ETag mismatch for " + encoding);
+                }
+                if (rep.getContentEncoding() == null) {
+                    representation = rep;
+                } else {
+                    encoded.add(rep);
+                }
+            }
+            if (representation == null) {
+                throw new IOException("no uncompressed representation");
+            }
+            log.debug("restored result {} with {} encodings", digest, encoded.size());
+            return new StoredResult(representation, encoded, Files.getLastModifiedTime(file).toInstant());
+        } catch (final IOException | RuntimeException e) {
+            log.warn("discarding unreadable stored result {}: {}", file, e.getMessage());
+            delete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Store a result, replacing any previously stored for the same digest.
+     *
+     * The file is written under a temporary name and then moved into place, so that
+     * readers never see a partly written result.
+     *
+     * The caller must have retained all of the {@link Representation}s.
+     *
+     * @param digest content digest of the result's collection
+     * @param representation the uncompressed {@link Representation}
+     * @param encoded the compressed {@link Representation}s
+     * @param rendered time at which the result was rendered
+     */
+    void write(@Nonnull final String digest, @Nonnull final Representation representation,
+            @Nonnull final Collection<Representation> encoded, @Nonnull final Instant rendered) {
+        final List<Representation> reps = new ArrayList<>();
+        reps.add(representation);
+        reps.addAll(encoded);
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, digest, TEMP_SUFFIX);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+                    WritableByteChannel channel = Channels.newChannel(out)) {
+                out.writeInt(MAGIC);
+                out.writeUTF(fingerprint);
+                out.writeInt(reps.size());
+                for (final Representation rep : reps) {
+                    final String encoding = rep.getContentEncoding();
+                    out.writeUTF(encoding == null ? IDENTITY : encoding);
+                    out.writeUTF(rep.getETag());
+                    out.writeInt(rep.getLength());
+                    channel.write(rep.getByteBuffer());
+                }
+            }
+            Files.setLastModifiedTime(temp, FileTime.from(rendered));
+            Files.move(temp, fileFor(digest), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("stored result {} with {} encodings", digest, encoded.size());
+        } catch (final IOException e) {
+            log.warn("could not store result {}: {}", digest, e.getMessage());
+            if (temp != null) {
+                delete(temp);
+            }
+        }
+    }
+
+    /**
+     * Delete all stored results except those for the given digests.
+     *
+     * @param digests content digests of the results to keep
+     */
+    void retain(@Nonnull final Set<String> digests) {
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (!digests.contains(name.substring(0, name.length() - SUFFIX.length()))) {
+                    delete(file);
+                    deleted++;
+                }
+            }
+        } catch (final IOException e) {
+            log.warn("could not list stored results: {}", e.getMessage());
+        }
+        log.debug("deleted {} superseded stored results", deleted);
+    }
+
+    /**
+     * Delete a file, logging any failure.
+     *
+     * @param file the file to delete
+     */
+    private void delete(@Nonnull final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            log.warn("could not delete {}: {}", file, e.getMessage());
+        }
+    }
+
+}
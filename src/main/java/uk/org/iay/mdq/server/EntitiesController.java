@@ -18,6 +18,7 @@ package uk.org.iay.mdq.server;
 
 import javax.annotation.Nonnull;
 import jakarta.annotation.Resource;
+import jakarta.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,13 +52,16 @@ public class EntitiesController {
      * Returns the aggregate from the "entities" endpoint if no identifier is supplied.
      * 
      * @param model {@link Model} containing attributes for the view
+     * @param response the HTTP response being prepared
      * 
      * @return name of the Spring view to render
      */
     @RequestMapping("")
-    String queryAllEntities(@Nonnull final Model model) {
+    String queryAllEntities(@Nonnull final Model model, @Nonnull final HttpServletResponse response) {
         log.debug("queried for all entities");
-        model.addAttribute("result", metadataService.getAll());
+        final Result result = metadataService.getAll();
+        model.addAttribute("result", result);
+        ResultRawView.markBusy(result, response);
         return "queryAllResult";
     }
     
@@ -66,13 +70,17 @@ public class EntitiesController {
      * 
      * @param model {@link Model} containing attributes for the view
      * @param id identifier to query for
+     * @param response the HTTP response being prepared
      * 
      * @return name of the Spring view to render
      */
     @RequestMapping("/{id:.*}")
-    String queryByIdentifier(@Nonnull final Model model, @PathVariable final @Nonnull String id) {
+    String queryByIdentifier(@Nonnull final Model model, @PathVariable final @Nonnull String id,
+            @Nonnull final HttpServletResponse response) {
         log.debug("query by identifier, id=" + id);
-        model.addAttribute("result", metadataService.get(id));
+        final Result result = metadataService.get(id);
+        model.addAttribute("result", result);
+        ResultRawView.markBusy(result, response);
         return "queryResult";
     }
 
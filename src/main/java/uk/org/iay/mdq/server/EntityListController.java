@@ -19,6 +19,7 @@ package uk.org.iay.mdq.server;
 import javax.annotation.Nonnull;
 import jakarta.annotation.Resource;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,14 +67,17 @@ public class EntityListController {
      * 
      * @param model {@link Model} containing attributes for the view
      * @param request the HTTP request being handled
+     * @param response the HTTP response being prepared
      * 
      * @return name of the Spring view to render
      */
     @RequestMapping(produces={"application/json", "text/html"})
     String queryAllEntities(@Nonnull final Model model,
-            @Nonnull final HttpServletRequest request) {
+            @Nonnull final HttpServletRequest request, @Nonnull final HttpServletResponse response) {
         log.debug("queried for entity list");
-        model.addAttribute("result", metadataService.getAll());
+        final Result result = metadataService.getAll();
+        model.addAttribute("result", result);
+        ResultRawView.markBusy(result, response);
         if (isDefaultMediaType(request)) {
             return "JSONResultRawView";
         } else {
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.google.common.primitives.Bytes;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemSerializer;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.Pipeline;
+import net.shibboleth.metadata.pipeline.PipelineProcessingException;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Assembles a SAML <code>EntitiesDescriptor</code> aggregate by splicing the serialized
+ * form of each entity into a serialized wrapper.
+ *
+ * The serialized form of each entity is cached against its {@link ItemDigest}, so that
+ * after a refresh only new or changed entities are serialized again. Entities without
+ * an {@link ItemDigest} are serialized every time.
+ *
+ * The wrapper is an empty <code>EntitiesDescriptor</code> on which the wrapper pipeline
+ * is executed, for example to set its <code>validUntil</code> and <code>cacheDuration</code>
+ * attributes. Entities are included exactly as they are, so this is only suitable where the
+ * render pipeline does not change the entities themselves and does not sign the aggregate.
+ */
+public class FragmentAggregateAssembler extends AbstractIdentifiableInitializableComponent
+    implements AggregateAssembler<Element> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(FragmentAggregateAssembler.class);
+
+    /** Serializer used for the wrapper and for each entity. */
+    @Nullable
+    private ItemSerializer<Element> serializer;
+
+    /** Pipeline executed on the wrapper, or <code>null</code> to leave it unchanged. */
+    @Nullable
+    private Pipeline<Element> wrapperPipeline;
+
+    /**
+     * Serialized form of each entity included in the most recent aggregate, indexed by
+     * the entity's {@link ItemDigest}.
+     *
+     * This is replaced after each aggregate is assembled, so that the fragments of
+     * entities which have been removed or changed are discarded.
+     */
+    @Nonnull
+    private volatile Map<String, byte[]> fragments = Collections.emptyMap();
+
+    /** Number of entities serialized. */
+    @Nonnull
+    private final AtomicLong serializedCount = new AtomicLong();
+
+    /** Number of entities whose cached serialized form was reused. */
+    @Nonnull
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    /**
+     * Gets the serializer used for the wrapper and for each entity.
+     *
+     * @return the serializer
+     */
+    @Nullable
+    public ItemSerializer<Element> getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Sets the serializer used for the wrapper and for each entity.
+     *
+     * Any XML declaration is removed from the serialized form of each entity.
+     *
+     * @param itemSerializer the serializer
+     */
+    public void setSerializer(@Nonnull final ItemSerializer<Element> itemSerializer) {
+        checkSetterPreconditions();
+        serializer = Constraint.isNotNull(itemSerializer, "serializer may not be null");
+    }
+
+    /**
+     * Gets the pipeline executed on the wrapper.
+     *
+     * @return the pipeline, or <code>null</code>
+     */
+    @Nullable
+    public Pipeline<Element> getWrapperPipeline() {
+        return wrapperPipeline;
+    }
+
+    /**
+     * Sets the pipeline executed on the wrapper.
+     *
+     * The pipeline is given a single item, an empty <code>EntitiesDescriptor</code>,
+     * and must leave a single item.
+     *
+     * @param pipeline the pipeline, or <code>null</code> to leave the wrapper unchanged
+     */
+    public void setWrapperPipeline(@Nullable final Pipeline<Element> pipeline) {
+        checkSetterPreconditions();
+        wrapperPipeline = pipeline;
+    }
+
+    /**
+     * Returns the number of entities serialized.
+     *
+     * @return the number of entities serialized
+     */
+    public long getSerializedCount() {
+        return serializedCount.get();
+    }
+
+    /**
+     * Returns the number of entities whose cached serialized form was reused.
+     *
+     * @return the number of entities whose serialized form was reused
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    @Override
+    public void assemble(@Nonnull final List<Item<Element>> items, @Nonnull final OutputStream out)
+            throws IOException {
+        final String comment = UUID.randomUUID().toString();
+        final byte[] wrapper = serializeWrapper(comment);
+        final byte[] marker = ("<!--" + comment + "-->").getBytes(StandardCharsets.UTF_8);
+        final int index = Bytes.indexOf(wrapper, marker);
+        if (index < 0) {
+            throw new IOException("marker not found in serialized wrapper");
+        }
+        out.write(wrapper, 0, index);
+
+        final Map<String, byte[]> previous = fragments;
+        final Map<String, byte[]> current = new HashMap<>();
+        final long serializedBefore = serializedCount.get();
+        for (final Item<Element> item : items) {
+            out.write(getFragment(item, previous, current));
+        }
+        fragments = current;
+        log.debug("assembled aggregate of {} entities, {} serialized", items.size(),
+                serializedCount.get() - serializedBefore);
+
+        final int end = index + marker.length;
+        out.write(wrapper, end, wrapper.length - end);
+    }
+
+    /**
+     * Returns the serialized form of an entity, from the cache if possible.
+     *
+     * @param item the entity
+     * @param previous fragments cached by the previous aggregate
+     * @param current fragments cached by this aggregate, to which the entity's fragment is added
+     *
+     * @return the serialized form of the entity
+     *
+     * @throws IOException if the entity can not be serialized
+     */
+    @Nonnull
+    private byte[] getFragment(@Nonnull final Item<Element> item, @Nonnull final Map<String, byte[]> previous,
+            @Nonnull final Map<String, byte[]> current) throws IOException {
+        final List<ItemDigest> digests = item.getItemMetadata().get(ItemDigest.class);
+        if (digests.isEmpty()) {
+            return serializeFragment(item);
+        }
+        final String digest = digests.get(0).getDigest();
+        byte[] fragment = current.get(digest);
+        if (fragment == null) {
+            fragment = previous.get(digest);
+            if (fragment == null) {
+                fragment = serializeFragment(item);
+            } else {
+                reusedCount.incrementAndGet();
+            }
+            current.put(digest, fragment);
+        }
+        return fragment;
+    }
+
+    /**
+     * Serialize an entity for inclusion in the aggregate.
+     *
+     * @param item the entity
+     *
+     * @return the serialized form of the entity, without any XML declaration
+     *
+     * @throws IOException if the entity can not be serialized
+     */
+    @Nonnull
+    private byte[] serializeFragment(@Nonnull final Item<Element> item) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(item, out);
+        serializedCount.incrementAndGet();
+        final byte[] bytes = out.toByteArray();
+        return Arrays.copyOfRange(bytes, skipDeclaration(bytes), bytes.length);
+    }
+
+    /**
+     * Locate the start of the content following any XML declaration.
+     *
+     * @param bytes serialized XML
+     *
+     * @return the offset of the first byte after the XML declaration and any following
+     *      white space, or 0 if there is no declaration
+     */
+    private static int skipDeclaration(@Nonnull final byte[] bytes) {
+        final byte[] start = "<?xml".getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < start.length || !Arrays.equals(bytes, 0, start.length, start, 0, start.length)) {
+            return 0;
+        }
+        final int end = Bytes.indexOf(bytes, "?>".getBytes(StandardCharsets.UTF_8));
+        if (end < 0) {
+            return 0;
+        }
+        int offset = end + 2;
+        while (offset < bytes.length && Character.isWhitespace(bytes[offset])) {
+            offset++;
+        }
+        return offset;
+    }
+
+    /**
+     * Build and serialize the wrapper, with a marker comment showing where the entities belong.
+     *
+     * @param comment text of the marker comment
+     *
+     * @return the serialized wrapper
+     *
+     * @throws IOException if the wrapper can not be built or serialized
+     */
+    @Nonnull
+    private byte[] serializeWrapper(@Nonnull final String comment) throws IOException {
+        final Document document;
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            document = factory.newDocumentBuilder().newDocument();
+        } catch (final ParserConfigurationException e) {
+            throw new IOException("could not create wrapper document", e);
+        }
+        final Element element = document.createElementNS(SAMLMetadataSupport.MD_NS, "md:EntitiesDescriptor");
+        element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:md", SAMLMetadataSupport.MD_NS);
+        document.appendChild(element);
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(new DOMElementItem(document));
+        if (wrapperPipeline != null) {
+            try {
+                wrapperPipeline.execute(items);
+            } catch (final PipelineProcessingException e) {
+                throw new IOException("wrapper pipeline failed", e);
+            }
+            if (items.size() != 1) {
+                throw new IOException("wrapper pipeline produced " + items.size() + " items");
+            }
+        }
+
+        final Element wrapper = items.get(0).unwrap();
+        wrapper.appendChild(wrapper.getOwnerDocument().createComment(comment));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(items.get(0), out);
+        return out.toByteArray();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (serializer == null) {
+            throw new ComponentInitializationException("serializer must be supplied");
+        }
+    }
+
+}
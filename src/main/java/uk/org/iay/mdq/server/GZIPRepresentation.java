@@ -19,6 +19,8 @@ package uk.org.iay.mdq.server;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.Nonnull;
@@ -31,6 +33,24 @@ import org.slf4j.LoggerFactory;
  */
 public class GZIPRepresentation extends BaseRepresentation {
 
+    /**
+     * A {@link GZIPOutputStream} using a specified compression level.
+     */
+    private static final class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        /**
+         * Constructor.
+         *
+         * @param out the underlying output stream
+         * @param level compression level
+         * @throws IOException if an I/O error has occurred
+         */
+        private LevelGZIPOutputStream(@Nonnull final OutputStream out, final int level) throws IOException {
+            super(out);
+            def.setLevel(level);
+        }
+    }
+
     /** Content encoding for this type of representation. */
     public static final String ENCODING = "gzip";
 
@@ -43,19 +63,40 @@ public class GZIPRepresentation extends BaseRepresentation {
      * @param repBytes the uncompressed representation
      */
     protected GZIPRepresentation(@Nonnull final byte[] repBytes) {
-        super(compress(repBytes));
+        this(repBytes, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param repBytes the uncompressed representation
+     * @param level compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    protected GZIPRepresentation(@Nonnull final byte[] repBytes, final int level) {
+        this(ByteBuffer.wrap(repBytes), level);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param content the uncompressed representation, which may be held outside the heap
+     * @param level compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    protected GZIPRepresentation(@Nonnull final ByteBuffer content, final int level) {
+        super(compress(content, level));
     }
 
     /**
-     * Compress a <code>byte</code> array.
+     * Compress the content of a buffer, a little at a time.
      * 
-     * @param repBytes <code>byte</code> array to be compressed
+     * @param content buffer whose remaining content is to be compressed
+     * @param level compression level
      * @return compressed <code>byte</code> array
      */
-    private static @Nonnull byte[] compress(@Nonnull final byte[] repBytes) {
+    private static @Nonnull byte[] compress(@Nonnull final ByteBuffer content, final int level) {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (OutputStream compos = new GZIPOutputStream(baos)) {
-            compos.write(repBytes);
+        try (OutputStream compos = new LevelGZIPOutputStream(baos, level)) {
+            writeContent(content, compos);
         } catch (final IOException e) {
             log.error("can not construct compressed representation: {}", e);
         }
@@ -16,6 +16,9 @@
 
 package uk.org.iay.mdq.server;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -24,18 +27,25 @@ import java.util.List;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.cryptacular.util.CodecUtil;
+import org.cryptacular.util.HashUtil;
+
 import net.shibboleth.metadata.Item;
 
 /**
  * Class representing a {@link List} of {@link Item}s
  * associated with a collection of identifiers.
  * 
- * The {@link #generation} is used as part of the cacheing strategy
- * used with this class. Each {@link IdentifiedItemCollection}
- * must ensure that any identically identified collections whose
- * contents are different must have a different {@link #generation}
- * value, but the strategy for generating these values is not
- * specified.
+ * The {@link #digest} is used as part of the cacheing strategy
+ * used with this class. Any two collections whose contents are
+ * different must have different {@link #digest} values, while
+ * collections with the same identifiers and contents should have
+ * the same {@link #digest} value so that rendered results can be
+ * shared between them, even across source generations.
+ *
+ * If no digest of the contents is available, one is derived from
+ * the {@link #generation} and the identifiers. This treats the
+ * collection as distinct from those of every other generation.
  *
  * @param <T> type of {@link Item} in the collection
  */
@@ -51,6 +61,17 @@ class IdentifiedItemCollection<T> {
     
     /** The source generation this collection is derived from. */
     private final long generation;
+
+    /** Digest identifying the contents of the collection. */
+    @Nonnull
+    private final String digest;
+
+    /** Whether {@link #digest} was computed from the contents, rather than derived from {@link #generation}. */
+    private final boolean contentDigest;
+
+    /** Time at which the contents of the collection were first seen, to a whole second. */
+    @Nonnull
+    private final Instant lastModified;
     
     /**
      * Constructor.
@@ -89,9 +110,47 @@ class IdentifiedItemCollection<T> {
      */
     protected IdentifiedItemCollection(@Nonnull final List<Item<T>> collection,
             @Nonnull final Collection<String> keys, final long gen) {
+        this(collection, keys, gen, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param collection {@link Collection} of {@link Item}s to be associated with the identifiers
+     * @param keys identifiers to be associated with the item collection
+     * @param gen source generation corresponding to this instance
+     * @param digestValue digest identifying the contents of the collection, or <code>null</code>
+     *      to derive one from the source generation and identifiers
+     */
+    protected IdentifiedItemCollection(@Nonnull final List<Item<T>> collection,
+            @Nonnull final Collection<String> keys, final long gen, @Nullable final String digestValue) {
+        this(collection, keys, gen, digestValue, Instant.now());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param collection {@link Collection} of {@link Item}s to be associated with the identifiers
+     * @param keys identifiers to be associated with the item collection
+     * @param gen source generation corresponding to this instance
+     * @param digestValue digest identifying the contents of the collection, or <code>null</code>
+     *      to derive one from the source generation and identifiers
+     * @param modified time at which the contents of the collection were first seen
+     */
+    protected IdentifiedItemCollection(@Nonnull final List<Item<T>> collection,
+            @Nonnull final Collection<String> keys, final long gen, @Nullable final String digestValue,
+            @Nonnull final Instant modified) {
         items = collection;
+        lastModified = modified.truncatedTo(ChronoUnit.SECONDS);
         identifiers = new ArrayList<>(keys);
         generation = gen;
+        contentDigest = digestValue != null;
+        if (digestValue != null) {
+            digest = digestValue;
+        } else {
+            final String generationKey = "generation " + gen + " " + identifiers;
+            digest = CodecUtil.hex(HashUtil.sha1(generationKey.getBytes(StandardCharsets.UTF_8)));
+        }
     }
 
     /**
@@ -122,4 +181,40 @@ class IdentifiedItemCollection<T> {
     public long getGeneration() {
         return generation;
     }
+
+    /**
+     * Returns the digest identifying the contents of the collection.
+     *
+     * @return the content digest
+     */
+    @Nonnull
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Returns whether the digest was computed from the contents of the collection.
+     *
+     * Only such a digest identifies the same contents in a different process;
+     * one derived from the source generation does not.
+     *
+     * @return <code>true</code> if the digest was computed from the contents
+     */
+    public boolean isContentDigest() {
+        return contentDigest;
+    }
+
+    /**
+     * Returns the time at which the contents of the collection were first seen.
+     *
+     * This is carried forward from one source generation to the next for as long as the
+     * {@link #digest} is unchanged. It is truncated to a whole second, the resolution
+     * of HTTP dates.
+     *
+     * @return the time the contents were last modified
+     */
+    @Nonnull
+    public Instant getLastModified() {
+        return lastModified;
+    }
 }
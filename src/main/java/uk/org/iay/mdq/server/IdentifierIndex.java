@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An immutable map from identifier to value, compact enough to index every entity
+ * in a large aggregate under several identifiers.
+ *
+ * Identifiers of the form <code>{sha1}</code> followed by the 40 hexadecimal digits
+ * of a SHA-1 hash, which the Metadata Query Protocol uses to look up an entity by a
+ * hash of its entityID, are held as 20-byte binary keys in an open-addressed table
+ * rather than as strings. Such an identifier is looked up by decoding it in place,
+ * without allocation; it is only turned back into a string if the map's entries are
+ * iterated. All other identifiers, including <code>null</code>, are held in a
+ * {@link HashMap}.
+ *
+ * Instances are built using a {@link Builder}.
+ *
+ * @param <V> type of the values
+ */
+final class IdentifierIndex<V> extends AbstractMap<String, V> {
+
+    /** Prefix of an identifier representing a SHA-1 hash. */
+    static final String SHA1_PREFIX = "{sha1}";
+
+    /** Length of a SHA-1 hash, in bytes. */
+    static final int SHA1_LENGTH = 20;
+
+    /** Length of an identifier representing a SHA-1 hash. */
+    private static final int SHA1_IDENTIFIER_LENGTH = SHA1_PREFIX.length() + 2 * SHA1_LENGTH;
+
+    /** Lower-case hexadecimal digits. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Values indexed by identifiers which do not represent a SHA-1 hash. */
+    @Nonnull
+    private final Map<String, V> named;
+
+    /** The SHA-1 keys, packed {@link #SHA1_LENGTH} bytes apiece in the order they were added. */
+    @Nonnull
+    private byte[] hashes;
+
+    /** Values indexed by SHA-1 key, in the same order as {@link #hashes}. */
+    @Nonnull
+    private Object[] hashValues;
+
+    /** Number of SHA-1 keys. */
+    private int hashCount;
+
+    /**
+     * Open-addressed table locating each SHA-1 key. Each element is one more than the
+     * position of a key in {@link #hashes}, or zero if the slot is empty.
+     */
+    @Nonnull
+    private int[] slots;
+
+    /**
+     * Constructor.
+     *
+     * Only used by the {@link Builder}.
+     */
+    private IdentifierIndex() {
+        named = new HashMap<>();
+        hashes = new byte[16 * SHA1_LENGTH];
+        hashValues = new Object[16];
+        slots = new int[32];
+    }
+
+    /**
+     * Returns whether an identifier represents a SHA-1 hash.
+     *
+     * @param identifier the identifier
+     *
+     * @return <code>true</code> if the identifier is <code>{sha1}</code> followed by 40 hexadecimal digits
+     */
+    static boolean isSHA1Identifier(@Nullable final String identifier) {
+        if (identifier == null || identifier.length() != SHA1_IDENTIFIER_LENGTH
+                || !identifier.startsWith(SHA1_PREFIX)) {
+            return false;
+        }
+        for (int i = SHA1_PREFIX.length(); i < SHA1_IDENTIFIER_LENGTH; i++) {
+            if (hexDigit(identifier.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of an ASCII hexadecimal digit.
+     *
+     * @param c the character
+     *
+     * @return the value of the digit, or -1 if the character is not a hexadecimal digit
+     */
+    private static int hexDigit(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the identifier representing a SHA-1 hash.
+     *
+     * @param hash array containing the hash
+     * @param offset offset of the hash within the array
+     *
+     * @return <code>{sha1}</code> followed by the hash in lower-case hexadecimal
+     */
+    @Nonnull
+    static String sha1Identifier(@Nonnull final byte[] hash, final int offset) {
+        final StringBuilder builder = new StringBuilder(SHA1_IDENTIFIER_LENGTH).append(SHA1_PREFIX);
+        for (int i = offset; i < offset + SHA1_LENGTH; i++) {
+            builder.append(HEX_DIGITS[(hash[i] >> 4) & 0xf]).append(HEX_DIGITS[hash[i] & 0xf]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the byte of a SHA-1 hash encoded at a given position in an identifier.
+     *
+     * @param identifier an identifier for which {@link #isSHA1Identifier} is <code>true</code>
+     * @param index position of the byte within the hash
+     *
+     * @return the byte
+     */
+    private static byte hashByte(@Nonnull final String identifier, final int index) {
+        final int pos = SHA1_PREFIX.length() + 2 * index;
+        return (byte) (hexDigit(identifier.charAt(pos)) << 4 | hexDigit(identifier.charAt(pos + 1)));
+    }
+
+    /**
+     * Returns the slot at which to start looking for a SHA-1 key.
+     *
+     * SHA-1 hashes are uniformly distributed, so their leading bytes are used directly.
+     *
+     * @param b0 the first byte of the hash
+     * @param b1 the second byte of the hash
+     * @param b2 the third byte of the hash
+     * @param b3 the fourth byte of the hash
+     * @param mask one less than the size of the table
+     *
+     * @return the first slot to examine
+     */
+    private static int startSlot(final byte b0, final byte b1, final byte b2, final byte b3, final int mask) {
+        return ((b0 & 0xff) << 24 | (b1 & 0xff) << 16 | (b2 & 0xff) << 8 | (b3 & 0xff)) & mask;
+    }
+
+    /**
+     * Returns the position of a SHA-1 key represented by an identifier.
+     *
+     * @param identifier an identifier for which {@link #isSHA1Identifier} is <code>true</code>
+     *
+     * @return the position of the key in {@link #hashes}, or -1 if it is not present
+     */
+    private int find(@Nonnull final String identifier) {
+        final int mask = slots.length - 1;
+        int slot = startSlot(hashByte(identifier, 0), hashByte(identifier, 1),
+                hashByte(identifier, 2), hashByte(identifier, 3), mask);
+        while (slots[slot] != 0) {
+            final int entry = slots[slot] - 1;
+            final int base = entry * SHA1_LENGTH;
+            int i = 0;
+            while (i < SHA1_LENGTH && hashes[base + i] == hashByte(identifier, i)) {
+                i++;
+            }
+            if (i == SHA1_LENGTH) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of a SHA-1 key.
+     *
+     * @param hash array containing the hash
+     * @param offset offset of the hash within the array
+     *
+     * @return the position of the key in {@link #hashes}, or -1 if it is not present
+     */
+    private int find(@Nonnull final byte[] hash, final int offset) {
+        final int mask = slots.length - 1;
+        int slot = startSlot(hash[offset], hash[offset + 1], hash[offset + 2], hash[offset + 3], mask);
+        while (slots[slot] != 0) {
+            final int entry = slots[slot] - 1;
+            if (Arrays.equals(hashes, entry * SHA1_LENGTH, (entry + 1) * SHA1_LENGTH,
+                    hash, offset, offset + SHA1_LENGTH)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add a SHA-1 key which is not already present to the slot table.
+     *
+     * @param entry position of the key in {@link #hashes}
+     */
+    private void addSlot(final int entry) {
+        final int mask = slots.length - 1;
+        final int base = entry * SHA1_LENGTH;
+        int slot = startSlot(hashes[base], hashes[base + 1], hashes[base + 2], hashes[base + 3], mask);
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry + 1;
+    }
+
+    /**
+     * Add a SHA-1 key which is not already present.
+     *
+     * @param hash array containing the hash
+     * @param offset offset of the hash within the array
+     * @param value value to associate with the key
+     */
+    private void addHash(@Nonnull final byte[] hash, final int offset, @Nonnull final V value) {
+        if (hashCount == hashValues.length) {
+            final int capacity = hashCount + (hashCount >> 1);
+            hashes = Arrays.copyOf(hashes, capacity * SHA1_LENGTH);
+            hashValues = Arrays.copyOf(hashValues, capacity);
+        }
+        System.arraycopy(hash, offset, hashes, hashCount * SHA1_LENGTH, SHA1_LENGTH);
+        hashValues[hashCount] = value;
+        hashCount++;
+
+        // keep the table at most half full so that probe sequences stay short
+        if (hashCount * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            for (int entry = 0; entry < hashCount; entry++) {
+                addSlot(entry);
+            }
+        } else {
+            addSlot(hashCount - 1);
+        }
+    }
+
+    /**
+     * Release the spare capacity left over from building the index.
+     */
+    private void trim() {
+        hashes = Arrays.copyOf(hashes, hashCount * SHA1_LENGTH);
+        hashValues = Arrays.copyOf(hashValues, hashCount);
+    }
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V get(@Nullable final Object key) {
+        if (key instanceof String && isSHA1Identifier((String) key)) {
+            final int entry = find((String) key);
+            return entry < 0 ? null : (V) hashValues[entry];
+        }
+        return named.get(key);
+    }
+
+    @Override
+    public boolean containsKey(@Nullable final Object key) {
+        if (key instanceof String && isSHA1Identifier((String) key)) {
+            return find((String) key) >= 0;
+        }
+        return named.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return named.size() + hashCount;
+    }
+
+    @Override
+    @Nonnull
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<>() {
+
+            @Override
+            public int size() {
+                return IdentifierIndex.this.size();
+            }
+
+            @Override
+            @Nonnull
+            public Iterator<Map.Entry<String, V>> iterator() {
+                return new Iterator<>() {
+
+                    /** Iterator over the named entries, followed by the SHA-1 entries. */
+                    private final Iterator<Map.Entry<String, V>> namedEntries = named.entrySet().iterator();
+
+                    /** Position of the next SHA-1 entry. */
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return namedEntries.hasNext() || next < hashCount;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Map.Entry<String, V> next() {
+                        if (namedEntries.hasNext()) {
+                            return namedEntries.next();
+                        }
+                        if (next >= hashCount) {
+                            throw new NoSuchElementException();
+                        }
+                        final int entry = next++;
+                        return new SimpleImmutableEntry<>(sha1Identifier(hashes, entry * SHA1_LENGTH),
+                                (V) hashValues[entry]);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Builds an {@link IdentifierIndex}.
+     *
+     * A builder may only be used to build a single index.
+     *
+     * @param <V> type of the values
+     */
+    static final class Builder<V> {
+
+        /** The index being built, or <code>null</code> once it has been built. */
+        @Nullable
+        private IdentifierIndex<V> index = new IdentifierIndex<>();
+
+        /**
+         * Returns the index being built.
+         *
+         * @return the index being built
+         */
+        @Nonnull
+        private IdentifierIndex<V> index() {
+            if (index == null) {
+                throw new IllegalStateException("index has already been built");
+            }
+            return index;
+        }
+
+        /**
+         * Associate a value with an identifier, replacing any existing value.
+         *
+         * @param identifier the identifier
+         * @param value the value
+         */
+        void put(@Nullable final String identifier, @Nonnull final V value) {
+            final IdentifierIndex<V> idx = index();
+            if (isSHA1Identifier(identifier)) {
+                final int entry = idx.find(identifier);
+                if (entry >= 0) {
+                    idx.hashValues[entry] = value;
+                } else {
+                    final byte[] hash = new byte[SHA1_LENGTH];
+                    for (int i = 0; i < SHA1_LENGTH; i++) {
+                        hash[i] = hashByte(identifier, i);
+                    }
+                    idx.addHash(hash, 0, value);
+                }
+            } else {
+                idx.named.put(identifier, value);
+            }
+        }
+
+        /**
+         * Associate a value with an identifier, unless it already has one.
+         *
+         * @param identifier the identifier
+         * @param value the value
+         *
+         * @return <code>true</code> if the value was added
+         */
+        boolean putIfAbsent(@Nullable final String identifier, @Nonnull final V value) {
+            if (index().containsKey(identifier)) {
+                return false;
+            }
+            put(identifier, value);
+            return true;
+        }
+
+        /**
+         * Associate a value with the identifier representing a SHA-1 hash, unless it
+         * already has one.
+         *
+         * @param hash the SHA-1 hash
+         * @param value the value
+         *
+         * @return <code>true</code> if the value was added
+         */
+        boolean putIfAbsent(@Nonnull final byte[] hash, @Nonnull final V value) {
+            final IdentifierIndex<V> idx = index();
+            if (hash.length != SHA1_LENGTH) {
+                throw new IllegalArgumentException("SHA-1 hash must be " + SHA1_LENGTH + " bytes");
+            }
+            if (idx.find(hash, 0) >= 0) {
+                return false;
+            }
+            idx.addHash(hash, 0, value);
+            return true;
+        }
+
+        /**
+         * Returns the number of identifiers added so far.
+         *
+         * @return the number of identifiers
+         */
+        int size() {
+            return index().size();
+        }
+
+        /**
+         * Build the index.
+         *
+         * @return the index
+         */
+        @Nonnull
+        IdentifierIndex<V> build() {
+            final IdentifierIndex<V> idx = index();
+            idx.trim();
+            index = null;
+            return idx;
+        }
+    }
+}
@@ -16,19 +16,21 @@
 
 package uk.org.iay.mdq.server;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,10 +39,12 @@ import org.springframework.boot.actuate.health.HealthIndicator;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemSerializer;
 import net.shibboleth.metadata.ItemTag;
 import net.shibboleth.metadata.pipeline.Pipeline;
 import net.shibboleth.metadata.pipeline.PipelineProcessingException;
 import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.Positive;
 import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
@@ -61,6 +65,128 @@ import net.shibboleth.shared.logic.ConstraintViolationException;
  */
 public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableComponent
     implements HealthIndicator {
+
+    /**
+     * Receives notification of the new collections produced by each refresh.
+     *
+     * @param <T> item type of the metadata served
+     */
+    public interface RefreshListener<T> {
+
+        /**
+         * Called when a refresh has indexed a new set of collections, before they are
+         * made available through {@link ItemCollectionLibrary#get}.
+         *
+         * The library does not publish the new collections until all listeners have
+         * returned, so a listener can delay publication until it is ready for them.
+         *
+         * @param collections the new collections, indexed by identifier
+         */
+        void collectionsIndexed(@Nonnull Map<String, IdentifiedItemCollection<T>> collections);
+    }
+
+    /**
+     * Determines whether the metadata source has changed, so that a refresh can be skipped
+     * if it has not.
+     */
+    public interface SourceChangeDetector {
+
+        /**
+         * Called before each refresh to determine whether the source may have changed since
+         * the last call to {@link #sourceRefreshed}.
+         *
+         * @return <code>false</code> if the source is known to be unchanged
+         *
+         * @throws IOException if the source could not be checked
+         */
+        boolean isSourceChanged() throws IOException;
+
+        /**
+         * Called when a refresh has succeeded, to record the state of the source seen by the
+         * preceding call to {@link #isSourceChanged} as the one in use.
+         */
+        void sourceRefreshed();
+
+        /**
+         * Called once the library has been initialized, with a callback to be called whenever
+         * the detector notices that the source may have changed.
+         *
+         * The library responds by refreshing soon afterwards. By default, the detector does not
+         * watch the source, and changes are only noticed by scheduled refreshes.
+         *
+         * @param onChange callback to call when the source may have changed
+         */
+        default void watchSource(@Nonnull final Runnable onChange) {
+        }
+    }
+
+    /**
+     * An immutable snapshot of the library's contents.
+     *
+     * A new snapshot is published as a whole at the end of each successful refresh,
+     * so that readers can use the current snapshot without locking.
+     *
+     * @param <T> item type of the metadata served
+     */
+    private static final class Snapshot<T> {
+
+        /** Metadata indexed by unique identifier. */
+        @Nonnull
+        private final Map<String, IdentifiedItemCollection<T>> identifiedItemCollections;
+
+        /** Source generation of the collections in this snapshot. */
+        private final long generation;
+
+        /** Time the refresh operation which produced this snapshot completed. */
+        @Nonnull
+        private final Instant lastRefreshed;
+
+        /** Changes to the entities made by the refresh which produced this snapshot. */
+        @Nonnull
+        private final RefreshChanges changes;
+
+        /**
+         * Constructor.
+         *
+         * @param collections unmodifiable map of metadata indexed by unique identifier
+         * @param gen source generation of the collections
+         * @param refreshed time the refresh operation completed
+         * @param refreshChanges changes to the entities made by the refresh
+         */
+        private Snapshot(@Nonnull final Map<String, IdentifiedItemCollection<T>> collections,
+                final long gen, @Nonnull final Instant refreshed, @Nonnull final RefreshChanges refreshChanges) {
+            identifiedItemCollections = collections;
+            generation = gen;
+            lastRefreshed = refreshed;
+            changes = refreshChanges;
+        }
+    }
+
+    /**
+     * Counts of the entities, that is the items with unique identifiers, changed by a refresh.
+     *
+     * An entity is matched with its predecessor through its first unique identifier.
+     */
+    private static final class RefreshChanges {
+
+        /** Number of entities. */
+        private int entities;
+
+        /** Number of entities with no predecessor. */
+        private int added;
+
+        /** Number of entities whose content differs from their predecessor's. */
+        private int changed;
+
+        /** Number of entities whose content is the same as their predecessor's. */
+        private int unchanged;
+
+        /** Number of previous entities with no successor. */
+        private int removed;
+
+        /** Number of collections reused from the previous refresh. */
+        private int reused;
+    }
     
     /** The identifier used to represent "all entities". */
     public static final String ID_ALL = null;
@@ -74,38 +200,21 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
     private Pipeline<T> sourcePipeline;
     
     /**
-     * Metadata indexed by unique identifier.
+     * The current contents of the library.
+     *
+     * This is <code>null</code> until the first successful refresh.
      */
-    private Map<String, IdentifiedItemCollection<T>> identifiedItemCollections = new HashMap<>();
-    
-    /** Time the last refresh operation completed. */
-    private Instant lastRefreshed;
+    private volatile Snapshot<T> snapshot;
     
-    /** Time the next refresh is expected to occur. */
-    private Instant nextRefresh;
-
-    /**
-     * Lock covering the collections database.
-     * 
-     * Covers {@link #identifiedItemCollections}, {@link #lastRefreshed}, {@link #nextRefresh}
-     * and {@link #generation}.
-     */
-    private ReadWriteLock itemCollectionLock;
-
     /**
      * Current source generation.
      * 
      * This is changed on every {@link #refresh} so that clients receiving updated
-     * results can invalidate their caches.
+     * results can invalidate their caches. It is only accessed by the thread
+     * performing the refresh.
      */
     private long generation;
     
-    /**
-     * Ensures that only one thread can use {@link #doRefresh} at a time. Other threads
-     * wait for that operation to complete, and do not duplicate the work done.
-     */
-    private final Semaphore refreshSemaphore = new Semaphore(1);
-
     /**
      * Refresh interval for the metadata source.
      * 
@@ -114,10 +223,63 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
     @Nonnull @NonNegative
     private Duration refreshInterval = Duration.ZERO;
     
+    /** Schedules refreshes, once the library has been initialized. */
+    private RefreshScheduler refreshScheduler;
+
+    /**
+     * Determines whether the source has changed before each refresh, or <code>null</code> to
+     * execute the source pipeline on every refresh.
+     */
+    @Nullable
+    private SourceChangeDetector sourceChangeDetector;
+
+    /** Number of refreshes skipped because the source was unchanged. */
+    private volatile long skippedRefreshes;
+
+    /** Delay between a change to the source being noticed and the refresh which follows it. */
+    @Nonnull @NonNegative
+    private Duration changeRefreshDelay = Duration.ofSeconds(5);
+
+    /** Minimum interval between refreshes which follow changes to the source. */
+    @Nonnull @NonNegative
+    private Duration minChangeRefreshInterval = Duration.ofMinutes(1);
+
+    /** Listeners to be notified of the new collections produced by each refresh. */
+    @Nonnull
+    private final List<RefreshListener<T>> refreshListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Serializer used to compute a content digest for each collection.
+     *
+     * If this is <code>null</code> (default), each collection's digest is derived
+     * from its source generation, so that every refresh is treated as changing
+     * every collection.
+     */
+    @Nullable
+    private ItemSerializer<T> itemSerializer;
+
     /**
-     * Executor on which to schedule metadata source refreshes.
+     * Whether collections whose content is unchanged by a refresh are carried over from
+     * the previous refresh rather than replaced.
      */
-    private ScheduledThreadPoolExecutor executor;
+    private boolean incrementalRefresh;
+
+    /** Number of threads across which items are digested during each refresh. */
+    @Positive
+    private int indexParallelism = 1;
+
+    /**
+     * Pool on which items are digested, or <code>null</code> if they are digested
+     * on the refreshing thread.
+     */
+    @Nullable
+    private ForkJoinPool indexPool;
+
+    /**
+     * Whether each item is also indexed under the <code>{sha1}</code> form of each of its
+     * unique identifiers.
+     */
+    private boolean sha1Identifiers;
     
     /**
      * Gets the metadata source refresh interval.
@@ -151,6 +313,235 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
         sourcePipeline = Constraint.isNotNull(pipeline, "source pipeline may not be null");
     }
 
+    /**
+     * Gets the {@link SourceChangeDetector} consulted before each refresh.
+     *
+     * @return the {@link SourceChangeDetector}, or <code>null</code>
+     */
+    @Nullable
+    public SourceChangeDetector getSourceChangeDetector() {
+        return sourceChangeDetector;
+    }
+
+    /**
+     * Sets the {@link SourceChangeDetector} consulted before each refresh.
+     *
+     * A refresh is skipped if the detector reports that the source is unchanged. The current
+     * collections and their source generation are kept, so that clients' caches remain valid,
+     * but the refresh still counts as successful. The initial refresh is never skipped.
+     *
+     * @param detector the {@link SourceChangeDetector}, or <code>null</code> to execute the
+     *      source pipeline on every refresh
+     */
+    public void setSourceChangeDetector(@Nullable final SourceChangeDetector detector) {
+        checkSetterPreconditions();
+        sourceChangeDetector = detector;
+    }
+
+    /**
+     * Gets the delay between a change to the source being noticed and the refresh which follows it.
+     *
+     * @return the delay
+     */
+    @Nonnull @NonNegative public Duration getChangeRefreshDelay() {
+        return changeRefreshDelay;
+    }
+
+    /**
+     * Sets the delay between a change to the source being noticed and the refresh which follows it.
+     *
+     * Each further change noticed during the delay starts it again, so that a source written
+     * in several steps is only refreshed once the writes have finished.
+     *
+     * @param delay the delay (default 5 seconds)
+     */
+    public void setChangeRefreshDelay(@Nonnull @NonNegative final Duration delay) {
+        checkSetterPreconditions();
+        if (delay.isNegative()) {
+            throw new ConstraintViolationException("change refresh delay must not be negative");
+        }
+        changeRefreshDelay = delay;
+    }
+
+    /**
+     * Gets the minimum interval between refreshes which follow changes to the source.
+     *
+     * @return the minimum interval
+     */
+    @Nonnull @NonNegative public Duration getMinChangeRefreshInterval() {
+        return minChangeRefreshInterval;
+    }
+
+    /**
+     * Sets the minimum interval between refreshes which follow changes to the source.
+     *
+     * A refresh following a change is postponed until this long after the previous one, or
+     * after the initial refresh, so that a source which changes repeatedly is not refreshed
+     * continually. Scheduled refreshes are not affected.
+     *
+     * @param interval the minimum interval (default 1 minute)
+     */
+    public void setMinChangeRefreshInterval(@Nonnull @NonNegative final Duration interval) {
+        checkSetterPreconditions();
+        if (interval.isNegative()) {
+            throw new ConstraintViolationException("minimum change refresh interval must not be negative");
+        }
+        minChangeRefreshInterval = interval;
+    }
+
+    /**
+     * Returns the number of refreshes performed following changes to the source.
+     *
+     * @return the number of refreshes following changes
+     */
+    public long getChangeRefreshCount() {
+        final RefreshScheduler scheduler = refreshScheduler;
+        return scheduler == null ? 0 : scheduler.getChangeRefreshCount();
+    }
+
+    /**
+     * Returns the number of refreshes skipped because the source was unchanged.
+     *
+     * @return the number of skipped refreshes
+     */
+    public long getSkippedRefreshCount() {
+        return skippedRefreshes;
+    }
+
+    /**
+     * Gets the {@link ItemSerializer} used to compute content digests.
+     *
+     * @return the {@link ItemSerializer}, or <code>null</code>
+     */
+    @Nullable
+    public ItemSerializer<T> getItemSerializer() {
+        return itemSerializer;
+    }
+
+    /**
+     * Sets the {@link ItemSerializer} used to compute content digests.
+     *
+     * Collections whose items serialize identically from one refresh to the next
+     * keep the same digest, so that clients can retain results derived from them.
+     * Each item's own digest is recorded in its {@link ItemDigest} metadata.
+     *
+     * @param serializer the {@link ItemSerializer}, or <code>null</code> to
+     *      treat every refresh as changing every collection
+     */
+    public void setItemSerializer(@Nullable final ItemSerializer<T> serializer) {
+        checkSetterPreconditions();
+        itemSerializer = serializer;
+    }
+
+    /**
+     * Gets whether collections unchanged by a refresh are carried over from the previous refresh.
+     *
+     * @return whether refreshes are incremental
+     */
+    public boolean isIncrementalRefresh() {
+        return incrementalRefresh;
+    }
+
+    /**
+     * Sets whether collections unchanged by a refresh are carried over from the previous refresh.
+     *
+     * Each item is still digested, but a collection whose content digest matches one from the
+     * previous refresh is reused, along with its items, rather than replaced by an identical
+     * new collection. Unchanged items from the source are then discarded immediately, and
+     * collections holding only unchanged items are not rebuilt.
+     *
+     * This has no effect unless an {@link ItemSerializer} has been set.
+     *
+     * @param incremental whether refreshes are incremental (default <code>false</code>)
+     */
+    public void setIncrementalRefresh(final boolean incremental) {
+        checkSetterPreconditions();
+        incrementalRefresh = incremental;
+    }
+
+    /**
+     * Gets the number of threads across which items are digested during each refresh.
+     *
+     * @return the number of threads
+     */
+    @Positive public int getIndexParallelism() {
+        return indexParallelism;
+    }
+
+    /**
+     * Sets the number of threads across which items are digested during each refresh.
+     *
+     * Serializing each item to compute its digest is the largest part of indexing a refresh.
+     * With more than one thread, the items are divided between the threads, and the results
+     * are then indexed in source order as before, so that the first item with a given unique
+     * identifier still takes precedence. The {@link ItemSerializer} must be thread-safe.
+     *
+     * @param parallelism the number of threads (default 1)
+     */
+    public void setIndexParallelism(@Positive final int parallelism) {
+        checkSetterPreconditions();
+        if (parallelism <= 0) {
+            throw new ConstraintViolationException("index parallelism must be positive");
+        }
+        indexParallelism = parallelism;
+    }
+
+    /**
+     * Gets whether items are also indexed under the <code>{sha1}</code> form of their unique identifiers.
+     *
+     * @return whether items are indexed under the <code>{sha1}</code> form of their identifiers
+     */
+    public boolean isSHA1Identifiers() {
+        return sha1Identifiers;
+    }
+
+    /**
+     * Sets whether items are also indexed under the <code>{sha1}</code> form of their unique identifiers.
+     *
+     * This has the same effect as adding those identifiers to each item in the source pipeline,
+     * but each is held only as a binary SHA-1 hash, rather than as a string on the item,
+     * in its collection's identifiers and in the index.
+     *
+     * @param sha1 whether to index items under the <code>{sha1}</code> form of their identifiers
+     *      (default <code>false</code>)
+     */
+    public void setSHA1Identifiers(final boolean sha1) {
+        checkSetterPreconditions();
+        sha1Identifiers = sha1;
+    }
+
+    /**
+     * Adds a {@link RefreshListener} to be notified of the collections produced by each refresh.
+     *
+     * @param listener the {@link RefreshListener} to add
+     */
+    public void addRefreshListener(@Nonnull final RefreshListener<T> listener) {
+        refreshListeners.add(Constraint.isNotNull(listener, "refresh listener may not be null"));
+    }
+
+    /**
+     * Removes a previously added {@link RefreshListener}.
+     *
+     * @param listener the {@link RefreshListener} to remove
+     */
+    public void removeRefreshListener(@Nonnull final RefreshListener<T> listener) {
+        refreshListeners.remove(listener);
+    }
+
+    /**
+     * Returns all of the current collections, indexed by identifier.
+     *
+     * @return an unmodifiable map of the current collections
+     */
+    @Nonnull
+    public Map<String, IdentifiedItemCollection<T>> getIdentifiedItemCollections() {
+        final Snapshot<T> current = snapshot;
+        if (current == null) {
+            return Collections.emptyMap();
+        }
+        return current.identifiedItemCollections;
+    }
+
     /**
      * Query for metadata for all known entities.
      * 
@@ -169,11 +560,34 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
      * @return metadata associated with the particular identifier
      */
     @Nonnull public IdentifiedItemCollection<T> get(@Nonnull final String identifier) {
-        itemCollectionLock.readLock().lock();
-        try {
-            return identifiedItemCollections.get(identifier);
-        } finally {
-            itemCollectionLock.readLock().unlock();
+        final Snapshot<T> current = snapshot;
+        if (current == null) {
+            return null;
+        }
+        return current.identifiedItemCollections.get(identifier);
+    }
+
+    /**
+     * Count the changes to an entity since the previous refresh.
+     *
+     * @param collection the entity's new collection
+     * @param ids the entity's unique identifiers
+     * @param previous the previous refresh's collections, indexed by identifier
+     * @param changes updated with the change to the entity
+     */
+    private void countChange(@Nonnull final IdentifiedItemCollection<T> collection, @Nonnull final List<String> ids,
+            @Nonnull final Map<String, IdentifiedItemCollection<T>> previous, @Nonnull final RefreshChanges changes) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        changes.entities++;
+        final IdentifiedItemCollection<T> predecessor = previous.get(ids.get(0));
+        if (predecessor == null) {
+            changes.added++;
+        } else if (predecessor.getDigest().equals(collection.getDigest())) {
+            changes.unchanged++;
+        } else {
+            changes.changed++;
         }
     }
 
@@ -181,34 +595,72 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
      * Index a collection of items into a collection of identified item collections.
      * 
      * @param items collection of items to be indexed
+     * @param changes updated with the changes made by this refresh
      * @return collection of identified item collections
      */
     @Nonnull
-    private Map<String, IdentifiedItemCollection<T>> indexItems(final List<Item<T>> items) {
+    private IdentifierIndex<IdentifiedItemCollection<T>> indexItems(final List<Item<T>> items,
+            @Nonnull final RefreshChanges changes) {
         // all identified collections by name
-        final Map<String, IdentifiedItemCollection<T>> newIdentifiedItemCollections = new HashMap<>();
-        
+        final IdentifierIndex.Builder<IdentifiedItemCollection<T>> newIdentifiedItemCollections =
+                new IdentifierIndex.Builder<>();
+
+        // hashes unique identifiers into their {sha1} form
+        final MessageDigest sha1 = sha1Identifiers ? CollectionDigester.newDigest() : null;
+
+        // unchanged collections are reused, or keep the modification times of their predecessors
+        final Map<String, IdentifiedItemCollection<T>> previousIdentified = getIdentifiedItemCollections();
+        final CollectionDigester<T> digester = new CollectionDigester<>(itemSerializer, indexPool, generation,
+                previousIdentified.values(), incrementalRefresh);
+        digester.digestItems(items);
+
+        // the items indexed, including any carried over from the previous refresh in place of new ones
+        final List<Item<T>> indexedItems = new ArrayList<>(items.size());
+
         // temporary map of tagged collections being built
         final Map<String, List<Item<T>>> taggedCollections = new HashMap<>();
         
-        for (final Item<T> item : items) {
+        for (final Item<T> sourceItem : items) {
             // process the item's unique identifiers
-            final List<ItemId> uniqueIds = item.getItemMetadata().get(ItemId.class);
+            final List<ItemId> uniqueIds = sourceItem.getItemMetadata().get(ItemId.class);
             final List<String> ids = new ArrayList<>();
             for (final ItemId uniqueId : uniqueIds) {
                 ids.add(uniqueId.getId());
             }
-            final IdentifiedItemCollection<T> newCollection = new IdentifiedItemCollection<>(item, ids, generation);
+            final IdentifiedItemCollection<T> newCollection =
+                    digester.newCollection(Collections.singletonList(sourceItem), ids);
+            countChange(newCollection, ids, previousIdentified, changes);
+
+            // a reused collection brings its own copy of the item, identical to the new one
+            final Item<T> item = newCollection.getItems().get(0);
+            if (item != sourceItem) {
+                digester.sameItem(item, sourceItem);
+            }
+            indexedItems.add(item);
+
             for (final String id : ids) {
-                if (newIdentifiedItemCollections.containsKey(id)) {
+                if (!newIdentifiedItemCollections.putIfAbsent(id, newCollection)) {
                     log.warn("duplicate unique identifier {} ignored", id);
-                } else {
-                    newIdentifiedItemCollections.put(id, newCollection);
+                }
+            }
+            if (sha1 != null) {
+                for (final String id : ids) {
+                    if (IdentifierIndex.isSHA1Identifier(id)) {
+                        continue;
+                    }
+                    final byte[] hash = sha1.digest(id.getBytes(StandardCharsets.UTF_8));
+                    if (!newIdentifiedItemCollections.putIfAbsent(hash, newCollection)) {
+                        // the source may already have given the item this identifier
+                        final String sha1Id = IdentifierIndex.sha1Identifier(hash, 0);
+                        if (!ids.contains(sha1Id)) {
+                            log.warn("duplicate unique identifier {} ignored", sha1Id);
+                        }
+                    }
                 }
             }
             
             // process the item's item tags (non-unique identifiers)
-            final List<ItemTag> tags = item.getItemMetadata().get(ItemTag.class);
+            final List<ItemTag> tags = sourceItem.getItemMetadata().get(ItemTag.class);
             for (final ItemTag tag : tags) {
                 final String tagName = tag.getTag();
                 
@@ -228,17 +680,25 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
             log.debug("tagged collection identifiers: {}", taggedCollections.size());
             for (final Map.Entry<String, List<Item<T>>> entry : taggedCollections.entrySet()) {
                 final IdentifiedItemCollection<T> newColl =
-                        new IdentifiedItemCollection<>(entry.getValue(), entry.getKey(), generation);
+                        digester.newCollection(entry.getValue(), Collections.singletonList(entry.getKey()));
                 newIdentifiedItemCollections.put(entry.getKey(), newColl);
                 log.debug("... collection: {} ({})", entry.getKey(), entry.getValue().size());
             }
         }
         
         // add in the "all entities" collection
-        newIdentifiedItemCollections.put(ID_ALL, new IdentifiedItemCollection<>(items, ID_ALL, generation));
+        newIdentifiedItemCollections.put(ID_ALL,
+                digester.newCollection(indexedItems, Collections.singletonList(ID_ALL)));
+        changes.reused = digester.getReused();
         log.debug("total identifiers: {}", newIdentifiedItemCollections.size());
-        
-        return newIdentifiedItemCollections;
+
+        final Snapshot<T> previous = snapshot;
+        changes.removed = Math.max(0,
+                (previous == null ? 0 : previous.changes.entities) - changes.changed - changes.unchanged);
+        log.info("indexed {} entities: {} added, {} changed, {} removed; {} collections reused",
+                changes.entities, changes.added, changes.changed, changes.removed, changes.reused);
+
+        return newIdentifiedItemCollections.build();
     }
 
     /**
@@ -246,6 +706,17 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
      * replaces any existing item collection with the results.
      */
     private void doRefresh() {
+        // leave the current collections in place if the source has not changed
+        final Snapshot<T> current = snapshot;
+        final boolean changed = isSourceChanged();
+        if (current != null && !changed) {
+            log.debug("source unchanged, refresh skipped");
+            skippedRefreshes++;
+            snapshot = new Snapshot<>(current.identifiedItemCollections, current.generation, Instant.now(),
+                    current.changes);
+            return;
+        }
+
         // this is a new source generation
         generation++;
 
@@ -261,15 +732,41 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
         log.debug("source pipeline executed; {} results", newItemCollection.size());
         
         // index the retrieved items
-        final Map<String, IdentifiedItemCollection<T>> newIdentifiedItemCollections = indexItems(newItemCollection);
+        final RefreshChanges changes = new RefreshChanges();
+        final Map<String, IdentifiedItemCollection<T>> newIdentifiedItemCollections =
+                indexItems(newItemCollection, changes);
+        
+        // allow listeners to prepare for the new collections before they are published
+        for (final RefreshListener<T> listener : refreshListeners) {
+            try {
+                listener.collectionsIndexed(newIdentifiedItemCollections);
+            } catch (final RuntimeException e) {
+                log.error("uncaught exception in refresh listener", e);
+            }
+        }
         
         // atomically update the collection we expose
-        itemCollectionLock.writeLock().lock();
+        snapshot = new Snapshot<>(newIdentifiedItemCollections, generation, Instant.now(), changes);
+
+        if (sourceChangeDetector != null) {
+            sourceChangeDetector.sourceRefreshed();
+        }
+    }
+
+    /**
+     * Determine whether the source may have changed since the last successful refresh.
+     *
+     * @return <code>false</code> if the source is known to be unchanged
+     */
+    private boolean isSourceChanged() {
+        if (sourceChangeDetector == null) {
+            return true;
+        }
         try {
-            identifiedItemCollections = newIdentifiedItemCollections;
-            lastRefreshed = Instant.now();
-        } finally {
-            itemCollectionLock.writeLock().unlock();
+            return sourceChangeDetector.isSourceChanged();
+        } catch (final IOException | RuntimeException e) {
+            log.warn("could not check source for changes, refreshing anyway", e);
+            return true;
         }
     }
     
@@ -281,36 +778,7 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
      * duplicating the work.
      */
     public void refresh() {
-        final boolean acquired = refreshSemaphore.tryAcquire();
-        try {
-            /*
-             * If we were *not* able to acquire the semaphore, some other thread
-             * must be refreshing already. Instead of duplicating that work,
-             * wait for it to complete and then exit without doing anything.
-             */
-            if (!acquired) {
-                refreshSemaphore.acquireUninterruptibly();
-                return;
-            }
-            
-            doRefresh();
-        } finally {
-            refreshSemaphore.release();
-        }
-    }
-    
-    /**
-     * Estimate when the next refresh is expected to occur.
-     */
-    private void computeNextRefresh() {
-        final Instant next = Instant.now().plus(refreshInterval);
-        itemCollectionLock.writeLock().lock();
-        try {
-            nextRefresh = next;
-        } finally {
-            itemCollectionLock.writeLock().unlock();
-        }
-        log.debug("next refresh estimated at {}", next);
+        refreshScheduler.refresh();
     }
 
     /** {@inheritDoc} */
@@ -322,49 +790,32 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
             throw new ComponentInitializationException("source pipeline must be supplied");
         }
         
-        itemCollectionLock = new ReentrantReadWriteLock();
-        
+        if (indexParallelism > 1) {
+            indexPool = new ForkJoinPool(indexParallelism);
+        }
+
+        refreshScheduler = new RefreshScheduler(this::doRefresh, refreshInterval, changeRefreshDelay,
+                minChangeRefreshInterval);
+
         // perform initial metadata refresh
         refresh();        
 
-        // Schedule regular metadata refresh if enabled.
-        if (!refreshInterval.isZero()) {
-            executor = new ScheduledThreadPoolExecutor(1);
-            executor.scheduleWithFixedDelay(
-                    new Runnable() {
-
-                        public void run() {
-                            try {
-                                refresh();
-                                computeNextRefresh();
-                            } catch (final Throwable e) {
-                                log.error("uncaught exception in refresh", e);
-                            }
-                        }
-                        
-                    },
-                    refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
-            computeNextRefresh();
-        }
+        // schedule later refreshes, including any following changes to the source
+        refreshScheduler.start(sourceChangeDetector);
     }
 
     /** {@inheritDoc} */
     @Override
     protected void doDestroy() {
-        if (executor != null) {
-            executor.shutdownNow();
-            try {
-                executor.awaitTermination(30, TimeUnit.SECONDS);
-            } catch (final InterruptedException e) {
-                log.debug("ignored InterruptedException while winding down executor");
-            } finally {
-                executor = null;
-            }
+        if (refreshScheduler != null) {
+            refreshScheduler.shutdown();
+        }
+        if (indexPool != null) {
+            indexPool.shutdownNow();
+            indexPool = null;
         }
-        identifiedItemCollections = null;
+        snapshot = null;
         sourcePipeline = null;
-        itemCollectionLock = null;
-        lastRefreshed = null;
         super.doDestroy();
     }
 
@@ -377,33 +828,43 @@ public class ItemCollectionLibrary<T> extends AbstractIdentifiableInitializableC
             return builder.down().build();
         }
 
-        itemCollectionLock.readLock().lock();
-        try {
-            final var age = Duration.between(lastRefreshed, Instant.now());
+        // return immediately if no refresh has ever succeeded
+        final Snapshot<T> current = snapshot;
+        if (current == null) {
+            return builder.down().build();
+        }
 
-            builder.up();
-            builder.withDetail("generation", generation);
-            builder.withDetail("identifiers", identifiedItemCollections.size());
-            builder.withDetail("lastRefreshed", lastRefreshed.toString());
-            builder.withDetail("age", age.toString());
-            
-            if (!refreshInterval.isZero()) {
-                builder.withDetail("nextRefresh", nextRefresh.toString());
-
-                /*
-                 * Work out whether a refresh has succeeded recently, or if we're running
-                 * in a degraded mode with out-of-date collections.
-                 */
-                final var ageThreshold = refreshInterval.multipliedBy(2);
-                if (age.compareTo(ageThreshold) > 0) {
-                    builder.status("DEGRADED");
-                }
-            }
+        final var age = Duration.between(current.lastRefreshed, Instant.now());
 
-            return builder.build();
-        } finally {
-            itemCollectionLock.readLock().unlock();
+        builder.up();
+        builder.withDetail("generation", current.generation);
+        builder.withDetail("identifiers", current.identifiedItemCollections.size());
+        builder.withDetail("entities", current.changes.entities);
+        builder.withDetail("entitiesAdded", current.changes.added);
+        builder.withDetail("entitiesChanged", current.changes.changed);
+        builder.withDetail("entitiesRemoved", current.changes.removed);
+        builder.withDetail("collectionsReused", current.changes.reused);
+        if (sourceChangeDetector != null) {
+            builder.withDetail("refreshesSkipped", skippedRefreshes);
+            builder.withDetail("changeRefreshes", getChangeRefreshCount());
         }
+        builder.withDetail("lastRefreshed", current.lastRefreshed.toString());
+        builder.withDetail("age", age.toString());
+        
+        if (!refreshInterval.isZero()) {
+            builder.withDetail("nextRefresh", String.valueOf(refreshScheduler.getNextRefresh()));
+
+            /*
+             * Work out whether a refresh has succeeded recently, or if we're running
+             * in a degraded mode with out-of-date collections.
+             */
+            final var ageThreshold = refreshInterval.multipliedBy(2);
+            if (age.compareTo(ageThreshold) > 0) {
+                builder.status("DEGRADED");
+            }
+        }
+
+        return builder.build();
     }
 
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.metadata.ItemMetadata;
+
+/**
+ * Item metadata recording the content digest of an item's serialized form.
+ *
+ * An {@link ItemCollectionLibrary} with an item serializer attaches this to each item it
+ * indexes. Items with the same digest serialize identically, so anything derived only from
+ * an item's serialized form can be reused across refreshes for as long as its digest is
+ * unchanged.
+ */
+public final class ItemDigest implements ItemMetadata {
+
+    /** The digest, as a hex string. */
+    @Nonnull
+    private final String digest;
+
+    /**
+     * Constructor.
+     *
+     * @param value the digest, as a hex string
+     */
+    public ItemDigest(@Nonnull final String value) {
+        digest = value;
+    }
+
+    /**
+     * Returns the digest.
+     *
+     * @return the digest, as a hex string
+     */
+    @Nonnull
+    public String getDigest() {
+        return digest;
+    }
+}
@@ -16,142 +16,39 @@
 
 package uk.org.iay.mdq.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+import com.google.common.cache.CacheStats;
 
-import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemCollectionSerializer;
 import net.shibboleth.metadata.pipeline.Pipeline;
-import net.shibboleth.metadata.pipeline.PipelineProcessingException;
-import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
 
 /**
  * Sources metadata from an {@link ItemCollectionLibrary} and allows lookup on the results.
  *
+ * The properties tuning how results are cached, rendered, stored and served are
+ * inherited from {@link AbstractMetadataService}.
+ *
  * @param <T> item type of the metadata served
  */
-public class MetadataService<T> extends AbstractIdentifiableInitializableComponent {
-    
-    /**
-     * Representation of the result of a query.
-     */
-    public class ServiceResult implements Result {
-
-        /**
-         * The default, uncompressed {@link Representation} for the {@link Result}.
-         *
-         * <p><code>null</code> is used if no results were found.</p>
-         */
-        @Nullable
-        private final Representation representation;
-
-        /** Other compressed {@link Representation}s, generated on demand. */
-        @Nonnull
-        private final Map<String, Representation> representations = new HashMap<>();
-        
-        /**
-         * The identifiers which can be used to retrieve this {@link Result}.
-         * <code>null</code> will be used for the "not found" and "all entities" results.
-         */
-        @Nullable
-        private final Collection<String> identifiers;
-        
-        /** Source generation for this rendered result. */
-        private final long generation;
-        
-        /**
-         * Constructor.
-         * 
-         * @param resultBytes byte array representing the rendered result
-         * @param ids identifiers which can be used to retrieve this result
-         * @param gen source generation for this rendered result
-         */
-        protected ServiceResult(@Nonnull final byte[] resultBytes,
-                @Nullable final Collection<String> ids,
-                final long gen) {
-            representation = new SimpleRepresentation(resultBytes);
-            generation = gen;
-            if (ids != null) {
-                identifiers = new ArrayList<>();
-                identifiers.addAll(ids);
-            } else {
-                identifiers = null;
-            }
-        }
-        
-        /**
-         * Constructor.
-         * 
-         * Represent a query for which no results were found.
-         */
-        protected ServiceResult() {
-            representation = null;
-            identifiers = null;
-            generation = 0;
-        }
-        
-        /**
-         * Returns the source generation for this rendered result.
-         * 
-         * @return the source generation
-         */
-        public long getGeneration() {
-            return generation;
-        }
-        
-        @Override
-        public boolean isNotFound() {
-            return representation == null;
-        }
-
-        @Override
-        @Nonnull
-        public Representation getRepresentation() {
-            return representation;
-        }
-
-        @Override
-        @Nonnull
-        public synchronized Representation getGZIPRepresentation() {
-            final String encoding = GZIPRepresentation.ENCODING;
-            if (!representations.containsKey(encoding)) {
-                representations.put(encoding, new GZIPRepresentation(representation.getBytes()));
-            }
-            return representations.get(encoding);
-        }
-
-        @Override
-        @Nonnull
-        public synchronized Representation getDeflateRepresentation() {
-            final String encoding = DeflateRepresentation.ENCODING;
-            if (!representations.containsKey(encoding)) {
-                representations.put(encoding, new DeflateRepresentation(representation.getBytes()));
-            }
-            return representations.get(encoding);
-        }
-
-        @Override
-        @Nullable
-        public Collection<String> getIdentifiers() {
-            return identifiers;
-        }
-
-    }
+public class MetadataService<T> extends AbstractMetadataService<T>
+    implements HealthIndicator {
     
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(MetadataService.class);
@@ -172,11 +69,40 @@ public class MetadataService<T> extends AbstractIdentifiableInitializableCompone
      */
     private ItemCollectionSerializer<T> serializer;
 
-    /** Cache of {@link Result}s, indexed by identifier. */
-    private Map<String, ServiceResult> resultCache = new HashMap<>();
-    
-    /** Lock covering the result cache. */
-    private Lock cacheLock;
+    /**
+     * Cache of {@link Result}s, indexed by the content digest of the {@link IdentifiedItemCollection}
+     * they were rendered from.
+     *
+     * A cached result remains valid across library refreshes for as long as its collection's
+     * digest is unchanged. Results for collections which are no longer current are discarded
+     * after each refresh.
+     */
+    private ResultCache resultCache;
+
+    /** Compresses and persists results, once the service has been initialized. */
+    private BackgroundProcessor background;
+
+    /** Loads results into the {@link #resultCache}, once the service has been initialized. */
+    private ResultLoader<T> loader;
+
+    /** Answers queries, once the service has been initialized. */
+    private QueryResults<T> queryResults;
+
+    /** Performs warm-ups, or <code>null</code> if warm-up is disabled. */
+    @Nullable
+    private WarmUpScheduler<T> warmUpScheduler;
+
+    /** Renders results again ahead of expiry, or <code>null</code> if they are not rendered again. */
+    @Nullable
+    private ResultRerenderer<T> rerenderer;
+
+    /** Limits the renders performed on behalf of queries, or <code>null</code> if they are not limited. */
+    @Nullable
+    private RenderLimiter renderLimiter;
+
+    /** Listener through which the library notifies us of refreshes. */
+    @Nonnull
+    private final ItemCollectionLibrary.RefreshListener<T> refreshListener = this::collectionsIndexed;
 
     /**
      * Sets the {@link ItemCollectionLibrary} used to acquire new metadata.
@@ -209,46 +135,55 @@ public class MetadataService<T> extends AbstractIdentifiableInitializableCompone
     }
 
     /**
-     * Clones an {@link Item} {@link Collection} so that its elements can be mutated
-     * without changing the originals.
-     * 
-     * @param collection {@link Collection} of {@link Item}s to clone
-     * 
-     * @return cloned {@link Collection} of {@link Item}s
+     * Returns statistics for the result cache.
+     *
+     * @return result cache statistics
      */
-    private List<Item<T>> cloneItemCollection(@Nonnull final List<Item<T>> collection) {
-        final List<Item<T>> newItems = new ArrayList<>();
-        for (final Item<T> item : collection) {
-            newItems.add(item.copy());
-        }
-        return newItems;
+    @Nonnull
+    public CacheStats getCacheStats() {
+        return resultCache.stats();
     }
-    
+
     /**
-     * Render a {@link Collection} of {@link Item}s representing the result of a query.
-     * 
-     * @param items query result to render
-     * 
-     * @return rendered query result
+     * Returns the number of callers which have waited for a render started by
+     * another caller rather than performing their own.
+     *
+     * @return the number of coalesced render requests
      */
-    private byte[] renderCollection(@Nonnull final List<Item<T>> items) {
-        try {
-            log.debug("rendering collection of {} elements", items.size());
-            renderPipeline.execute(items);
-            log.debug("items rendered, resulting collection has {} elements", items.size());
-            try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-                serializer.serializeCollection(items, os);
-                return os.toByteArray();
-            }
-        } catch (final IOException e) {
-            log.debug("problem with output stream: " + e.getMessage());
-            return null;
-        } catch (final PipelineProcessingException e) {
-            log.debug("problem with render pipeline: " + e.getMessage());
-            return null;
-        }
+    public long getCoalescedRenderCount() {
+        return resultCache.getCoalescedCount();
     }
-    
+
+    /**
+     * Returns the number of stale results served while the current result was rendered.
+     *
+     * @return the number of stale results served
+     */
+    public long getStaleResultCount() {
+        final QueryResults<T> queries = queryResults;
+        return queries == null ? 0 : queries.getStaleCount();
+    }
+
+    /**
+     * Returns the number of query renders rejected because too many were in progress.
+     *
+     * @return the number of renders rejected
+     */
+    public long getRejectedRenderCount() {
+        final RenderLimiter limiter = renderLimiter;
+        return limiter == null ? 0 : limiter.getRejectedCount();
+    }
+
+    /**
+     * Returns the number of results rendered again ahead of expiry.
+     *
+     * @return the number of results rendered again
+     */
+    public long getRerenderedResultCount() {
+        final ResultRerenderer<T> rerender = rerenderer;
+        return rerender == null ? 0 : rerender.getCount();
+    }
+
     /**
      * Query for metadata for all known entities.
      * 
@@ -274,45 +209,62 @@ public class MetadataService<T> extends AbstractIdentifiableInitializableCompone
         if (identifiedItemCollection == null) {
             return new ServiceResult();
         }
-        
-        // Check to see if the cache contains a rendered form for this query
-        cacheLock.lock();
-        try {
-            final ServiceResult cachedResult = resultCache.get(identifier);
-            if (cachedResult != null) {
-                if (cachedResult.getGeneration() == identifiedItemCollection.getGeneration()) {
-                    // Generation of cached result matches; still valid
-                    log.debug("cache hit for {}", identifier);
-                    return cachedResult;
-                } else {
-                    // Generation of cached result does not match; invalidate
-                    log.debug("cache invalidation for {}", identifier);
-                    resultCache.remove(identifier);
-                }
-            }
-        } finally {
-            cacheLock.unlock();
+
+        return queryResults.get(identifier, identifiedItemCollection);
+    }
+
+    /**
+     * Updates the weight of a result's cache entry after its size has changed.
+     *
+     * @param result the result whose size has changed
+     */
+    private void updateCacheWeight(@Nonnull final ServiceResult result) {
+        // the cache is discarded when the service is destroyed
+        final ResultCache cache = resultCache;
+        if (cache != null) {
+            cache.updateWeight(result);
         }
-        
-        /*
-         * If the result we want isn't in the cache, render the item collection.
-         */
-        final Collection<String> identifiers = identifiedItemCollection.getIdentifiers();
-        final byte[] bytes = renderCollection(cloneItemCollection(identifiedItemCollection.getItems()));
-        final ServiceResult result = new ServiceResult(bytes, identifiers, identifiedItemCollection.getGeneration());
-        
-        /*
-         * Write the result into the cache for each of its
-         * potential identifiers.
-         */
-        cacheLock.lock();
-        try {
-            for (final String id : identifiers) {
-                resultCache.put(id, result);
-            }
-            return result;
-        } finally {
-            cacheLock.unlock();
+    }
+
+    /**
+     * Respond to the library having indexed a new set of collections.
+     *
+     * Cached results are retained only if they belong to the new collections or to the
+     * collections still being served until the new ones are published; results for any
+     * other collections can never be requested again.
+     *
+     * @param collections the new collections, indexed by identifier
+     */
+    private void collectionsIndexed(@Nonnull final Map<String, IdentifiedItemCollection<T>> collections) {
+        final Set<String> digests = new HashSet<>();
+        for (final IdentifiedItemCollection<T> collection : collections.values()) {
+            digests.add(collection.getDigest());
+        }
+        for (final IdentifiedItemCollection<T> collection :
+                itemCollectionLibrary.getIdentifiedItemCollections().values()) {
+            digests.add(collection.getDigest());
+        }
+        log.debug("discarded {} superseded results", resultCache.retainAll(digests));
+        background.retain(digests);
+
+        if (warmUpScheduler != null) {
+            warmUpScheduler.warmUp(collections, isWarmUpBeforePublish());
+        }
+
+        // the current collections are about to be superseded by the new ones
+        queryResults.supersede(itemCollectionLibrary.getIdentifiedItemCollections());
+    }
+
+    /**
+     * Render a collection, and generate its compressed representations if required,
+     * as part of a warm-up.
+     *
+     * @param collection the collection to render
+     */
+    private void warmUpRender(@Nonnull final IdentifiedItemCollection<T> collection) {
+        final ServiceResult result = loader.get(null, collection);
+        if (isWarmUpCompression()) {
+            background.compress(result);
         }
     }
 
@@ -320,12 +272,7 @@ public class MetadataService<T> extends AbstractIdentifiableInitializableCompone
      * Invalidate our result cache.
      */
     public void clearCache() {
-        cacheLock.lock();
-        try {
-            resultCache = new HashMap<>();
-        } finally {
-            cacheLock.unlock();
-        }
+        resultCache.invalidateAll();
     }
 
     /** {@inheritDoc} */
@@ -345,17 +292,175 @@ public class MetadataService<T> extends AbstractIdentifiableInitializableCompone
             throw new ComponentInitializationException("serializer must be supplied");
         }
 
-        cacheLock = new ReentrantLock();
+        resultCache = new ResultCache(getMaximumCacheSize(), isSoftCacheValues());
+
+        background = new BackgroundProcessor(getId(),
+                isCompression() ? new RepresentationCompressor(getCompressionLevels()) : null,
+                openResultStore(), maximumStoredAge(), this::updateCacheWeight);
+        final CollectionRenderer<T> renderer = new CollectionRenderer<>(renderPipeline, serializer,
+                openAggregateSpool(), getAggregateAssembler(), getSharedItemsMinimum());
+        loader = new ResultLoader<>(resultCache, renderer, background, isOffHeapRepresentations());
+        startExecutors();
+
+        itemCollectionLibrary.addRefreshListener(refreshListener);
+
+        if (warmUpScheduler != null) {
+            // the library has already been populated, so warm up its current contents
+            warmUpScheduler.warmUp(itemCollectionLibrary.getIdentifiedItemCollections(), isWarmUpBeforePublish());
+        }
+    }
+
+    /**
+     * Open the store in which rendered results are persisted, if enabled.
+     *
+     * @return the result store, or <code>null</code> if results are not persisted
+     *
+     * @throws ComponentInitializationException if the store can not be opened
+     */
+    @Nullable
+    private DiskResultStore openResultStore() throws ComponentInitializationException {
+        if (getResultStoreDirectory() == null) {
+            return null;
+        }
+        try {
+            return new DiskResultStore(Path.of(getResultStoreDirectory()),
+                    DiskResultStore.fingerprint(getRenderConfiguration(), getRenderConfigurationResources()));
+        } catch (final IOException e) {
+            throw new ComponentInitializationException("could not open result store", e);
+        }
+    }
+
+    /**
+     * Returns the greatest age at which a persisted result may be restored.
+     *
+     * An older result would be rendered again by the {@link #rerenderer} soon after being
+     * restored, or would already have expired.
+     *
+     * @return the greatest age, or <code>null</code> if results do not expire
+     */
+    @Nullable
+    private Duration maximumStoredAge() {
+        if (getValidityWindow().isZero()) {
+            return null;
+        }
+        if (getRerenderFraction() > 0) {
+            return Duration.ofNanos((long) (getValidityWindow().toNanos() * getRerenderFraction()));
+        }
+        return getValidityWindow();
+    }
+
+    /**
+     * Open the directory to which the all-entities aggregate is spooled, if enabled.
+     *
+     * @return the spool directory, or <code>null</code> if the aggregate is serialized in memory
+     *
+     * @throws ComponentInitializationException if the directory can not be opened
+     */
+    @Nullable
+    private Path openAggregateSpool() throws ComponentInitializationException {
+        if (getAggregateSpoolDirectory() == null) {
+            return null;
+        }
+        try {
+            final Path spool = Files.createDirectories(Path.of(getAggregateSpoolDirectory()));
+            SpooledRepresentation.deleteSpoolFiles(spool);
+            return spool;
+        } catch (final IOException e) {
+            throw new ComponentInitializationException("could not open aggregate spool directory", e);
+        }
+    }
+
+    /**
+     * Start the executors required by the configured properties.
+     */
+    private void startExecutors() {
+        if (getMaxConcurrentRenders() > 0) {
+            renderLimiter = new RenderLimiter(getMaxConcurrentRenders(), getMaxQueuedRenders(),
+                    getRenderQueueTimeout());
+        }
+        queryResults = new QueryResults<>(getId(), loader, resultCache, getMaxStaleness(), renderLimiter,
+                getRenderRetryAfter());
+
+        if (!getValidityWindow().isZero() && getRerenderFraction() > 0) {
+            rerenderer = new ResultRerenderer<>(getId(), getValidityWindow(), getRerenderFraction(), resultCache,
+                    () -> itemCollectionLibrary.getIdentifiedItemCollections().values(), loader::rerender);
+        }
+
+        if (isWarmUp()) {
+            warmUpScheduler = new WarmUpScheduler<>(getId(), getWarmUpParallelism(),
+                    collection -> resultCache.contains(collection.getDigest()), this::warmUpRender);
+        }
     }
 
     /** {@inheritDoc} */
     @Override
     protected void doDestroy() {
+        if (itemCollectionLibrary != null) {
+            itemCollectionLibrary.removeRefreshListener(refreshListener);
+        }
+        if (warmUpScheduler != null) {
+            warmUpScheduler.shutdown();
+            warmUpScheduler = null;
+        }
+        if (queryResults != null) {
+            queryResults.shutdown();
+            queryResults = null;
+        }
+        if (rerenderer != null) {
+            rerenderer.shutdown();
+            rerenderer = null;
+        }
+        renderLimiter = null;
+        if (background != null) {
+            background.shutdown();
+            background = null;
+        }
+        loader = null;
         renderPipeline = null;
         serializer = null;
-        resultCache = null;
-        cacheLock = null;
+        if (resultCache != null) {
+            // release any off-heap storage now rather than waiting for the garbage collector
+            resultCache.invalidateAll();
+            resultCache = null;
+        }
         super.doDestroy();
     }
 
+    @Override
+    public Health health() {
+        final Health.Builder builder = new Health.Builder();
+
+        // return immediately if the component is not active
+        if (isDestroyed() || !isInitialized()) {
+            return builder.down().build();
+        }
+
+        final CacheStats stats = resultCache.stats();
+        builder.up();
+        builder.withDetail("cachedResults", resultCache.size());
+        builder.withDetail("maximumCacheSize", getMaximumCacheSize());
+        builder.withDetail("cacheHits", stats.hitCount());
+        builder.withDetail("cacheMisses", stats.missCount());
+        builder.withDetail("cacheEvictions", stats.evictionCount());
+        builder.withDetail("coalescedRenders", resultCache.getCoalescedCount());
+        builder.withDetail("staleResults", getStaleResultCount());
+        builder.withDetail("rerenderedResults", getRerenderedResultCount());
+        final RenderLimiter limiter = renderLimiter;
+        if (limiter != null) {
+            builder.withDetail("activeRenders", limiter.getActive());
+            builder.withDetail("queuedRenders", limiter.getQueued());
+            builder.withDetail("rejectedRenders", limiter.getRejectedCount());
+        }
+        if (isOffHeapRepresentations()) {
+            builder.withDetail("offHeapBytes", OffHeapRepresentation.getAllocatedBytes());
+        }
+        final WarmUpScheduler<T> scheduler = warmUpScheduler;
+        final WarmUp operation = scheduler == null ? null : scheduler.getCurrent();
+        if (operation != null) {
+            builder.withDetail("warmUp", operation.getDetails());
+        }
+        return builder.build();
+    }
+
+
 }
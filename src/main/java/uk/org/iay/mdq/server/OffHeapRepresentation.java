@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Representation} whose content is held in a direct {@link ByteBuffer},
+ * outside the Java heap.
+ *
+ * The content is reference counted. The creator holds the initial reference, and the
+ * buffer is freed as soon as the last reference is released rather than when the
+ * garbage collector finds it unreachable. Using the content after that is an error.
+ */
+public class OffHeapRepresentation implements Representation {
+
+    /** Class logger. */
+    private static Logger log = LoggerFactory.getLogger(OffHeapRepresentation.class);
+
+    /** Total size of the content of all unreleased instances. */
+    private static final AtomicLong ALLOCATED_BYTES = new AtomicLong();
+
+    /**
+     * Handle on <code>sun.misc.Unsafe.invokeCleaner</code>, bound to the <code>Unsafe</code> instance,
+     * or <code>null</code> if it is not available and buffers must be left to the garbage collector.
+     */
+    @Nullable
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    /** The content. */
+    @Nonnull
+    private final ByteBuffer buffer;
+
+    /** <code>ETag</code> value for this representation. */
+    @Nonnull
+    private final String etag;
+
+    /** Content encoding of this representation, or <code>null</code>. */
+    @Nullable
+    private final String contentEncoding;
+
+    /** Number of references held to the content. */
+    @Nonnull
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Constructor.
+     *
+     * Copies the content of another {@link Representation}.
+     *
+     * @param source the {@link Representation} to copy
+     */
+    public OffHeapRepresentation(@Nonnull final Representation source) {
+        final ByteBuffer content = source.getByteBuffer();
+        buffer = ByteBuffer.allocateDirect(content.remaining());
+        buffer.put(content).flip();
+        etag = source.getETag();
+        contentEncoding = source.getContentEncoding();
+        ALLOCATED_BYTES.addAndGet(buffer.capacity());
+    }
+
+    /**
+     * Returns the total size of the content of all instances which have not been released.
+     *
+     * @return the number of bytes allocated
+     */
+    public static long getAllocatedBytes() {
+        return ALLOCATED_BYTES.get();
+    }
+
+    /**
+     * Locate <code>sun.misc.Unsafe.invokeCleaner</code>, which frees a direct buffer immediately.
+     *
+     * @return a handle on the method, or <code>null</code> if it is not available
+     */
+    @Nullable
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            log.warn("direct buffers will be freed by the garbage collector: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Free a direct or mapped buffer immediately, if possible, rather than when the
+     * garbage collector finds it unreachable.
+     *
+     * The buffer, and any buffer derived from it, must not be used afterwards.
+     *
+     * @param directBuffer the buffer to free
+     */
+    static void free(@Nonnull final ByteBuffer directBuffer) {
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invokeExact(directBuffer);
+            } catch (final Throwable e) {
+                log.warn("could not free direct buffer", e);
+            }
+        }
+    }
+
+    /**
+     * Check that the content has not been released.
+     */
+    private void checkLive() {
+        if (references.get() <= 0) {
+            throw new IllegalStateException("representation has been released");
+        }
+    }
+
+    @Override
+    @Nonnull
+    public String getETag() {
+        return etag;
+    }
+
+    @Override
+    @Nullable
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    @Override
+    @Nonnull
+    public byte[] getBytes() {
+        checkLive();
+        final byte[] bytes = new byte[buffer.capacity()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Override
+    @Nonnull
+    public ByteBuffer getByteBuffer() {
+        checkLive();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public int getLength() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public boolean retain() {
+        int count = references.get();
+        while (count > 0) {
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+            count = references.get();
+        }
+        return false;
+    }
+
+    @Override
+    public void release() {
+        final int count = references.decrementAndGet();
+        if (count == 0) {
+            ALLOCATED_BYTES.addAndGet(-buffer.capacity());
+            free(buffer);
+        } else if (count < 0) {
+            throw new IllegalStateException("representation released more often than retained");
+        }
+    }
+
+}
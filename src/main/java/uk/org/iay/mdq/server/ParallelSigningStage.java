@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * A stage which executes a signing stage on each item separately, on a shared pool of threads.
+ *
+ * All renders using this stage share the pool, which places a global limit on the number of
+ * signatures computed at once, however many renders need one. In <code>render.SAML</code> this
+ * stage follows the assembly of the aggregate, so each render passes it a single item; signing
+ * for many entities proceeds in parallel only because they are rendered in parallel, for example
+ * by the service's warm-up threads. Only a collection of several items reaching this stage has
+ * its items signed in parallel.
+ *
+ * Items waiting to be signed are held in a bounded queue. When the queue is full, the
+ * rendering thread signs the item itself, which limits the rate at which further work
+ * is submitted.
+ *
+ * @param <T> the type of item processed
+ */
+public class ParallelSigningStage<T> extends AbstractStage<T> implements HealthIndicator {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ParallelSigningStage.class);
+
+    /** The stage executed on each item. */
+    @Nullable
+    private Stage<T> stage;
+
+    /** Number of threads on which items are signed. */
+    @Positive
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /** Maximum number of items waiting to be signed. */
+    @Positive
+    private int queueCapacity = 1000;
+
+    /** Executor on which items are signed. */
+    private ThreadPoolExecutor executor;
+
+    /** Number of items signed. */
+    @Nonnull
+    private final AtomicLong signedCount = new AtomicLong();
+
+    /** Number of items signed by the rendering thread because the queue was full. */
+    @Nonnull
+    private final AtomicLong callerSignedCount = new AtomicLong();
+
+    /** Total time spent signing items, in nanoseconds. */
+    @Nonnull
+    private final AtomicLong signingNanos = new AtomicLong();
+
+    /** Longest time spent signing a single item, in nanoseconds. */
+    @Nonnull
+    private final LongAccumulator maxSigningNanos = new LongAccumulator(Math::max, 0);
+
+    /** Total time items spent waiting to be signed, in nanoseconds. */
+    @Nonnull
+    private final AtomicLong queueNanos = new AtomicLong();
+
+    /**
+     * Gets the stage executed on each item.
+     *
+     * @return the stage
+     */
+    @Nullable
+    public Stage<T> getStage() {
+        return stage;
+    }
+
+    /**
+     * Sets the stage executed on each item.
+     *
+     * The stage is executed on a collection containing a single item, from several
+     * threads at once.
+     *
+     * @param signingStage the stage
+     */
+    public void setStage(@Nonnull final Stage<T> signingStage) {
+        checkSetterPreconditions();
+        stage = Constraint.isNotNull(signingStage, "stage may not be null");
+    }
+
+    /**
+     * Gets the number of threads on which items are signed.
+     *
+     * @return the number of signing threads
+     */
+    @Positive public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads on which items are signed.
+     *
+     * Defaults to the number of available processors.
+     *
+     * @param threads the number of signing threads
+     */
+    public void setParallelism(@Positive final int threads) {
+        checkSetterPreconditions();
+        if (threads <= 0) {
+            throw new ConstraintViolationException("parallelism must be positive");
+        }
+        parallelism = threads;
+    }
+
+    /**
+     * Gets the maximum number of items waiting to be signed.
+     *
+     * @return the queue capacity
+     */
+    @Positive public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of items waiting to be signed.
+     *
+     * Once this many items are waiting, further items are signed by the rendering thread.
+     * Defaults to 1000.
+     *
+     * @param capacity the queue capacity
+     */
+    public void setQueueCapacity(@Positive final int capacity) {
+        checkSetterPreconditions();
+        if (capacity <= 0) {
+            throw new ConstraintViolationException("queue capacity must be positive");
+        }
+        queueCapacity = capacity;
+    }
+
+    /**
+     * Returns the number of items signed.
+     *
+     * @return the number of items signed
+     */
+    public long getSignedCount() {
+        return signedCount.get();
+    }
+
+    /**
+     * Returns the number of items signed by the rendering thread because the queue was full.
+     *
+     * @return the number of items signed by the rendering thread
+     */
+    public long getCallerSignedCount() {
+        return callerSignedCount.get();
+    }
+
+    @Override
+    protected void doExecute(@Nonnull final List<Item<T>> items) throws StageProcessingException {
+        final List<Future<List<Item<T>>>> futures = new ArrayList<>(items.size());
+        for (final Item<T> item : items) {
+            final long queued = System.nanoTime();
+            futures.add(executor.submit(() -> sign(item, queued)));
+        }
+
+        final List<Item<T>> signed = new ArrayList<>(items.size());
+        try {
+            for (final Future<List<Item<T>>> future : futures) {
+                signed.addAll(future.get());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StageProcessingException("interrupted while signing", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof StageProcessingException cause) {
+                throw cause;
+            }
+            throw new StageProcessingException("signing failed", e.getCause());
+        } finally {
+            for (final Future<List<Item<T>>> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        items.clear();
+        items.addAll(signed);
+    }
+
+    /**
+     * Execute the signing stage on a single item.
+     *
+     * @param item the item to sign
+     * @param queued the value of {@link System#nanoTime()} when the item was queued
+     *
+     * @return the items resulting from the signing stage
+     *
+     * @throws StageProcessingException if the item can not be signed
+     */
+    @Nonnull
+    private List<Item<T>> sign(@Nonnull final Item<T> item, final long queued) throws StageProcessingException {
+        final long start = System.nanoTime();
+        queueNanos.addAndGet(start - queued);
+        final List<Item<T>> result = new ArrayList<>(1);
+        result.add(item);
+        stage.execute(result);
+        final long elapsed = System.nanoTime() - start;
+        signingNanos.addAndGet(elapsed);
+        maxSigningNanos.accumulate(elapsed);
+        signedCount.incrementAndGet();
+        return result;
+    }
+
+    @Override
+    public Health health() {
+        final Health.Builder builder = new Health.Builder();
+
+        // return immediately if the component is not active
+        if (isDestroyed() || !isInitialized()) {
+            return builder.down().build();
+        }
+
+        final long signed = signedCount.get();
+        builder.up();
+        builder.withDetail("parallelism", parallelism);
+        builder.withDetail("queuedItems", executor.getQueue().size());
+        builder.withDetail("activeSigners", executor.getActiveCount());
+        builder.withDetail("signedItems", signed);
+        builder.withDetail("callerSignedItems", callerSignedCount.get());
+        if (signed > 0) {
+            builder.withDetail("meanSigningMillis", TimeUnit.NANOSECONDS.toMillis(signingNanos.get() / signed));
+            builder.withDetail("maxSigningMillis", TimeUnit.NANOSECONDS.toMillis(maxSigningNanos.get()));
+            builder.withDetail("meanQueueMillis", TimeUnit.NANOSECONDS.toMillis(queueNanos.get() / signed));
+        }
+        return builder.build();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (stage == null) {
+            throw new ComponentInitializationException("stage must be supplied");
+        }
+
+        // when the queue is full, or the pool has been shut down, sign in the submitting thread
+        executor = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat(getId() + "-signing-%d").setDaemon(true).build(),
+                (task, pool) -> {
+                    callerSignedCount.incrementAndGet();
+                    task.run();
+                });
+        log.debug("{}: signing on {} threads", getId(), parallelism);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        super.doDestroy();
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers queries with the results for their current collections.
+ *
+ * The renders performed on behalf of queries may be limited by a {@link RenderLimiter}.
+ * A query whose render is not admitted is answered from the superseded generation if
+ * that is allowed, and otherwise with a {@link BusyResult}.
+ *
+ * @param <T> item type of the metadata served
+ */
+final class QueryResults<T> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(QueryResults.class);
+
+    /** Loads the results for collections. */
+    @Nonnull
+    private final ResultLoader<T> loader;
+
+    /** Serves stale results, or <code>null</code> if they may not be served. */
+    @Nullable
+    private final StaleResults<T> staleResults;
+
+    /** Limits the renders performed on behalf of queries, or <code>null</code> if they are not limited. */
+    @Nullable
+    private final RenderLimiter renderLimiter;
+
+    /** Time after which a client whose query render was not admitted is asked to retry. */
+    @Nonnull
+    private final Duration renderRetryAfter;
+
+    /**
+     * Constructor.
+     *
+     * @param name prefix for the names of the revalidation threads
+     * @param resultLoader loads the results for collections
+     * @param cache cache holding both the superseded and the current results
+     * @param maxStaleness maximum time for which a result from a superseded generation may be served,
+     *      or {@link Duration#ZERO} if none may be served
+     * @param limiter limits the renders performed on behalf of queries, or <code>null</code> for no limit
+     * @param retryAfter time after which a client whose query render was not admitted is asked to retry
+     */
+    QueryResults(@Nonnull final String name, @Nonnull final ResultLoader<T> resultLoader,
+            @Nonnull final ResultCache cache, @Nonnull final Duration maxStaleness,
+            @Nullable final RenderLimiter limiter, @Nonnull final Duration retryAfter) {
+        loader = resultLoader;
+        staleResults = maxStaleness.isZero() ? null : new StaleResults<>(name, maxStaleness, cache, loader::get);
+        renderLimiter = limiter;
+        renderRetryAfter = retryAfter;
+    }
+
+    /**
+     * Returns the result for a query.
+     *
+     * @param identifier identifier for which metadata is requested
+     * @param identifiedItemCollection the current collection for that identifier
+     *
+     * @return the rendered result, a stale result, or a {@link BusyResult} if the
+     *      render was not admitted
+     */
+    @Nonnull
+    Result get(@Nonnull final String identifier,
+            @Nonnull final IdentifiedItemCollection<T> identifiedItemCollection) {
+        // Serve the previous generation's result while the current one is rendered, if allowed.
+        if (staleResults != null) {
+            final Result staleResult = staleResults.get(identifier, identifiedItemCollection);
+            if (staleResult != null) {
+                return staleResult;
+            }
+        }
+
+        if (renderLimiter == null) {
+            return loader.get(identifier, identifiedItemCollection);
+        }
+        try {
+            return loader.get(identifier, identifiedItemCollection, renderLimiter);
+        } catch (final RenderLimiter.RejectedException e) {
+            log.debug("render for {} not admitted: {}", identifier, e.getMessage());
+        }
+
+        if (staleResults != null) {
+            final Result staleResult = staleResults.getSuperseded(identifier);
+            if (staleResult != null) {
+                return staleResult;
+            }
+        }
+        return new BusyResult(renderRetryAfter);
+    }
+
+    /**
+     * Record that the current collections are about to be superseded.
+     *
+     * @param previous the collections being superseded, indexed by identifier
+     */
+    void supersede(@Nonnull final Map<String, IdentifiedItemCollection<T>> previous) {
+        if (staleResults != null) {
+            staleResults.supersede(previous);
+        }
+    }
+
+    /**
+     * Returns the number of stale results served.
+     *
+     * @return the number of stale results served
+     */
+    long getStaleCount() {
+        return staleResults == null ? 0 : staleResults.getCount();
+    }
+
+    /**
+     * Stop serving stale results.
+     */
+    void shutdown() {
+        if (staleResults != null) {
+            staleResults.shutdown();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules the refreshes of an {@link ItemCollectionLibrary}: at regular intervals, on demand,
+ * and following changes to the source noticed by its
+ * {@link ItemCollectionLibrary.SourceChangeDetector}.
+ *
+ * Only one refresh is performed at a time.
+ */
+final class RefreshScheduler {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(RefreshScheduler.class);
+
+    /** Performs a refresh. */
+    @Nonnull
+    private final Runnable doRefresh;
+
+    /** Refresh interval, or {@link Duration#ZERO} if refreshes are not scheduled. */
+    @Nonnull
+    private final Duration refreshInterval;
+
+    /** Delay between a change to the source being noticed and the refresh which follows it. */
+    @Nonnull
+    private final Duration changeRefreshDelay;
+
+    /** Minimum interval between refreshes which follow changes to the source. */
+    @Nonnull
+    private final Duration minChangeRefreshInterval;
+
+    /**
+     * Ensures that only one thread can use {@link #doRefresh} at a time. Other threads
+     * wait for that operation to complete, and do not duplicate the work done.
+     */
+    private final Semaphore refreshSemaphore = new Semaphore(1);
+
+    /**
+     * Executor on which to schedule metadata source refreshes.
+     */
+    @Nullable
+    private ScheduledThreadPoolExecutor executor;
+
+    /** Time the next refresh is expected to occur. */
+    private volatile Instant nextRefresh;
+
+    /** Guards {@link #pendingChangeRefresh}, {@link #lastChangeRefresh} and {@link #changePending}. */
+    @Nonnull
+    private final Object changeRefreshLock = new Object();
+
+    /** Refresh scheduled following a change to the source, or <code>null</code>. */
+    @Nullable
+    private ScheduledFuture<?> pendingChangeRefresh;
+
+    /** Value of {@link System#nanoTime()} when the last refresh following a change started. */
+    private long lastChangeRefresh;
+
+    /**
+     * Whether a refresh following a change found another refresh in progress, which may have
+     * read the source before the change; another refresh is scheduled when that one completes.
+     */
+    private boolean changePending;
+
+    /** Number of refreshes performed following changes to the source. */
+    private volatile long changeRefreshes;
+
+    /**
+     * Constructor.
+     *
+     * @param refresh performs a refresh
+     * @param interval refresh interval, or {@link Duration#ZERO} if refreshes are not scheduled
+     * @param changeDelay delay between a change to the source being noticed and the refresh which follows it
+     * @param minChangeInterval minimum interval between refreshes which follow changes to the source
+     */
+    RefreshScheduler(@Nonnull final Runnable refresh, @Nonnull final Duration interval,
+            @Nonnull final Duration changeDelay, @Nonnull final Duration minChangeInterval) {
+        doRefresh = refresh;
+        refreshInterval = interval;
+        changeRefreshDelay = changeDelay;
+        minChangeRefreshInterval = minChangeInterval;
+    }
+
+    /**
+     * Start scheduling refreshes, once the initial refresh has been performed.
+     *
+     * @param detector notices changes to the source, or <code>null</code>
+     */
+    void start(@Nullable final ItemCollectionLibrary.SourceChangeDetector detector) {
+        final ScheduledThreadPoolExecutor exec;
+        synchronized (changeRefreshLock) {
+            lastChangeRefresh = System.nanoTime();
+            if (refreshInterval.isZero() && detector == null) {
+                return;
+            }
+            exec = new ScheduledThreadPoolExecutor(1);
+            executor = exec;
+        }
+
+        // Schedule regular metadata refresh if enabled.
+        if (!refreshInterval.isZero()) {
+            exec.scheduleWithFixedDelay(
+                    new Runnable() {
+
+                        public void run() {
+                            try {
+                                refresh();
+                                computeNextRefresh();
+                            } catch (final Throwable e) {
+                                log.error("uncaught exception in refresh", e);
+                            }
+                        }
+
+                    },
+                    refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+            computeNextRefresh();
+        }
+
+        // refresh soon after any change to the source which can be noticed
+        if (detector != null) {
+            detector.watchSource(this::sourceChanged);
+        }
+    }
+
+    /**
+     * Acquire new metadata by executing the source pipeline.
+     *
+     * If {@link #refresh} is already being executed by another thread, subsequent
+     * callers will wait for the first thread to complete and return without
+     * duplicating the work.
+     */
+    void refresh() {
+        final boolean acquired = refreshSemaphore.tryAcquire();
+        try {
+            /*
+             * If we were *not* able to acquire the semaphore, some other thread
+             * must be refreshing already. Instead of duplicating that work,
+             * wait for it to complete and then exit without doing anything.
+             */
+            if (!acquired) {
+                refreshSemaphore.acquireUninterruptibly();
+                return;
+            }
+
+            doRefresh.run();
+        } finally {
+            releaseRefresh();
+        }
+    }
+
+    /**
+     * Allow another thread to refresh, then schedule a further refresh if the source
+     * changed while the semaphore was held.
+     */
+    private void releaseRefresh() {
+        refreshSemaphore.release();
+        final boolean pending;
+        synchronized (changeRefreshLock) {
+            pending = changePending;
+            changePending = false;
+        }
+        if (pending) {
+            log.debug("source changed during refresh");
+            sourceChanged();
+        }
+    }
+
+    /**
+     * Schedule a refresh following a change to the source, replacing any refresh already
+     * scheduled for an earlier change which has not yet started.
+     */
+    private void sourceChanged() {
+        synchronized (changeRefreshLock) {
+            final ScheduledThreadPoolExecutor exec = executor;
+            if (exec == null) {
+                return;
+            }
+            if (pendingChangeRefresh != null) {
+                pendingChangeRefresh.cancel(false);
+            }
+            final long earliest = lastChangeRefresh + minChangeRefreshInterval.toNanos() - System.nanoTime();
+            final long delay = Math.max(changeRefreshDelay.toNanos(), earliest);
+            log.debug("source changed, refreshing in {}ms", TimeUnit.NANOSECONDS.toMillis(delay));
+            try {
+                pendingChangeRefresh = exec.schedule(this::changeRefresh, delay, TimeUnit.NANOSECONDS);
+            } catch (final RejectedExecutionException e) {
+                // the library is being destroyed
+                pendingChangeRefresh = null;
+            }
+        }
+    }
+
+    /**
+     * Refresh following a change to the source.
+     *
+     * Unlike {@link #refresh}, this does not wait for a refresh already in progress, which
+     * may have read the source before it changed. Instead, it leaves a note for that refresh
+     * to schedule another once it completes. The note is left before the semaphore is tried
+     * so that it cannot be missed by a refresh which completes in between.
+     */
+    private void changeRefresh() {
+        synchronized (changeRefreshLock) {
+            changePending = true;
+        }
+        if (!refreshSemaphore.tryAcquire()) {
+            log.debug("refresh in progress, change refresh deferred");
+            return;
+        }
+        synchronized (changeRefreshLock) {
+            changePending = false;
+            lastChangeRefresh = System.nanoTime();
+        }
+        try {
+            doRefresh.run();
+            changeRefreshes++;
+        } catch (final Throwable e) {
+            log.error("uncaught exception in refresh", e);
+        } finally {
+            releaseRefresh();
+        }
+    }
+
+    /**
+     * Estimate when the next refresh is expected to occur.
+     */
+    private void computeNextRefresh() {
+        final Instant next = Instant.now().plus(refreshInterval);
+        nextRefresh = next;
+        log.debug("next refresh estimated at {}", next);
+    }
+
+    /**
+     * Returns the time the next scheduled refresh is expected to occur.
+     *
+     * @return the time of the next refresh, or <code>null</code> if refreshes are not scheduled
+     */
+    @Nullable
+    Instant getNextRefresh() {
+        return nextRefresh;
+    }
+
+    /**
+     * Returns the number of refreshes performed following changes to the source.
+     *
+     * @return the number of refreshes following changes
+     */
+    long getChangeRefreshCount() {
+        return changeRefreshes;
+    }
+
+    /**
+     * Stop scheduling refreshes, and wait for any refresh in progress on the executor to finish.
+     */
+    void shutdown() {
+        final ScheduledThreadPoolExecutor exec;
+        synchronized (changeRefreshLock) {
+            exec = executor;
+            executor = null;
+        }
+        if (exec != null) {
+            exec.shutdownNow();
+            try {
+                exec.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                log.debug("ignored InterruptedException while winding down executor");
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Limits the number of renders performed at once on behalf of queries.
+ *
+ * A render which can not start immediately waits for one in progress to finish, but
+ * only a limited number of renders may wait at once, and each waits for a limited time.
+ * A render which is not admitted is rejected with a {@link RejectedException}.
+ */
+final class RenderLimiter {
+
+    /**
+     * Thrown when a render is not admitted because too many renders are already
+     * in progress or waiting.
+     */
+    static final class RejectedException extends RuntimeException {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         *
+         * @param message the exception message
+         */
+        RejectedException(@Nonnull final String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /** Maximum number of renders in progress at once. */
+    private final int maxConcurrent;
+
+    /** Maximum number of renders waiting to start. */
+    private final int maxQueued;
+
+    /** Maximum time a render waits to start, in nanoseconds. */
+    private final long maxWaitNanos;
+
+    /** Permits to render, one for each render which may be in progress. */
+    @Nonnull
+    private final Semaphore permits;
+
+    /** Number of renders waiting to start. */
+    @Nonnull
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Number of renders rejected. */
+    @Nonnull
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param concurrent maximum number of renders in progress at once
+     * @param queue maximum number of renders waiting to start
+     * @param maxWait maximum time a render waits to start
+     */
+    RenderLimiter(final int concurrent, final int queue, @Nonnull final Duration maxWait) {
+        maxConcurrent = concurrent;
+        maxQueued = queue;
+        maxWaitNanos = maxWait.toNanos();
+        permits = new Semaphore(concurrent, true);
+    }
+
+    /**
+     * Perform a render once it is admitted.
+     *
+     * @param <R> type of the render's result
+     * @param render the render to perform
+     *
+     * @return the result of the render
+     *
+     * @throws RejectedException if the render is not admitted
+     */
+    <R> R render(@Nonnull final Supplier<R> render) {
+        acquire();
+        try {
+            return render.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Acquire a permit to render, waiting if necessary and allowed.
+     *
+     * @throws RejectedException if no permit can be acquired
+     */
+    private void acquire() {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            throw reject("too many renders waiting");
+        }
+        try {
+            if (!permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+                throw reject("timed out waiting to render");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("interrupted waiting to render");
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Record the rejection of a render.
+     *
+     * @param message the reason for the rejection
+     *
+     * @return the exception to throw
+     */
+    @Nonnull
+    private RejectedException reject(@Nonnull final String message) {
+        rejectedCount.incrementAndGet();
+        return new RejectedException(message);
+    }
+
+    /**
+     * Returns the number of renders in progress.
+     *
+     * @return the number of renders in progress
+     */
+    int getActive() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * Returns the number of renders waiting to start.
+     *
+     * @return the number of renders waiting to start
+     */
+    int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of renders rejected.
+     *
+     * @return the number of renders rejected
+     */
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
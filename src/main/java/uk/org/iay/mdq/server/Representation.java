@@ -16,11 +16,17 @@
 
 package uk.org.iay.mdq.server;
 
+import java.nio.ByteBuffer;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 /**
  * A particular representation of a {@link Result}.
+ *
+ * Some representations hold their content in storage which is released explicitly
+ * rather than by the garbage collector. A caller using the content of such a
+ * representation must bracket that use with {@link #retain} and {@link #release}.
  */
 public interface Representation {
     
@@ -33,11 +39,53 @@ public interface Representation {
     
     /**
      * Gets the {@link Representation} as a byte array.
+     *
+     * This may copy the content; use {@link #getByteBuffer} to avoid that.
      * 
      * @return the {@link Representation} as a byte array.
      */
     @Nonnull public byte[] getBytes();
 
+    /**
+     * Gets the {@link Representation} as a read-only {@link ByteBuffer}.
+     *
+     * The buffer's position and limit may be changed without affecting other callers.
+     *
+     * @return the {@link Representation} as a {@link ByteBuffer}
+     */
+    @Nonnull public default ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(getBytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the length of the {@link Representation} in bytes.
+     *
+     * @return the length of the {@link Representation}
+     */
+    public default int getLength() {
+        return getBytes().length;
+    }
+
+    /**
+     * Acquire a reference to the content of the {@link Representation}, preventing it from
+     * being released until {@link #release} is called.
+     *
+     * @return <code>true</code> if the reference was acquired, or <code>false</code>
+     *      if the content has already been released and can no longer be used
+     */
+    public default boolean retain() {
+        return true;
+    }
+
+    /**
+     * Release a reference to the content of the {@link Representation} acquired by {@link #retain},
+     * or the initial reference held by its creator.
+     *
+     * The content is released when the last reference has been released.
+     */
+    public default void release() {
+    }
+
     /**
      * Explicit content encoding for this representation, if any.
      * 
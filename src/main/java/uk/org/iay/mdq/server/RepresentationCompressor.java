@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Generates compressed {@link Representation}s at configured compression levels.
+ */
+final class RepresentationCompressor {
+
+    /** Content encodings for which compressed representations can be generated, in order of preference. */
+    static final List<String> SUPPORTED_ENCODINGS = List.of(BrotliRepresentation.ENCODING,
+            ZstdRepresentation.ENCODING, GZIPRepresentation.ENCODING, DeflateRepresentation.ENCODING);
+
+    /** Compression level to use for each content encoding. */
+    @Nonnull
+    private final Map<String, Integer> levels;
+
+    /**
+     * Constructor.
+     *
+     * @param compressionLevels compression level to use for each content encoding;
+     *      encodings not included use a default level
+     */
+    RepresentationCompressor(@Nonnull final Map<String, Integer> compressionLevels) {
+        levels = Map.copyOf(compressionLevels);
+    }
+
+    /**
+     * Returns whether a compression level is valid for a content encoding.
+     *
+     * @param encoding one of the {@link #SUPPORTED_ENCODINGS}
+     * @param level the compression level
+     *
+     * @return <code>true</code> if the level is valid
+     */
+    static boolean isValidLevel(@Nonnull final String encoding, final int level) {
+        switch (encoding) {
+            case BrotliRepresentation.ENCODING:
+                return level >= BrotliRepresentation.MIN_LEVEL && level <= BrotliRepresentation.MAX_LEVEL;
+            case ZstdRepresentation.ENCODING:
+                return level >= ZstdRepresentation.MIN_LEVEL && level <= ZstdRepresentation.MAX_LEVEL;
+            default:
+                return level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+        }
+    }
+
+    /**
+     * Returns whether the compressor for a content encoding is available on this platform.
+     *
+     * @param encoding one of the {@link #SUPPORTED_ENCODINGS}
+     *
+     * @return <code>true</code> if the compressor is available
+     */
+    static boolean isAvailable(@Nonnull final String encoding) {
+        switch (encoding) {
+            case BrotliRepresentation.ENCODING:
+                return BrotliRepresentation.isAvailable();
+            case ZstdRepresentation.ENCODING:
+                return ZstdRepresentation.isAvailable();
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns the {@link #SUPPORTED_ENCODINGS} whose compressors are available on this platform.
+     *
+     * @return the available content encodings
+     */
+    @Nonnull
+    static List<String> getAvailableEncodings() {
+        final List<String> encodings = new ArrayList<>();
+        for (final String encoding : SUPPORTED_ENCODINGS) {
+            if (isAvailable(encoding)) {
+                encodings.add(encoding);
+            }
+        }
+        return List.copyOf(encodings);
+    }
+
+    /**
+     * Generate a compressed {@link Representation} at the configured level.
+     *
+     * The uncompressed form is read from its buffer a little at a time, so that a form held
+     * outside the heap, such as a spooled aggregate, is never copied into the heap as a whole.
+     *
+     * @param encoding content encoding of the {@link Representation}
+     * @param content the uncompressed form
+     *
+     * @return the compressed {@link Representation}
+     */
+    @Nonnull
+    Representation compress(@Nonnull final String encoding, @Nonnull final ByteBuffer content) {
+        final Integer level = levels.get(encoding);
+        switch (encoding) {
+            case BrotliRepresentation.ENCODING:
+                return new BrotliRepresentation(content,
+                        level == null ? BrotliRepresentation.DEFAULT_LEVEL : level);
+            case ZstdRepresentation.ENCODING:
+                return new ZstdRepresentation(content, level == null ? ZstdRepresentation.DEFAULT_LEVEL : level);
+            case GZIPRepresentation.ENCODING:
+                return new GZIPRepresentation(content, level == null ? Deflater.DEFAULT_COMPRESSION : level);
+            case DeflateRepresentation.ENCODING:
+                return new DeflateRepresentation(content, level == null ? Deflater.DEFAULT_COMPRESSION : level);
+            default:
+                throw new IllegalArgumentException("unsupported content encoding " + encoding);
+        }
+    }
+}
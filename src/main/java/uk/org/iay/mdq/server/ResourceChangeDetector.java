@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.cryptacular.util.CodecUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Detects changes to the {@link Resource} from which an {@link ItemCollectionLibrary}'s
+ * source pipeline reads its metadata.
+ *
+ * How the resource is checked depends on the kind of resource:
+ *
+ * <ul>
+ * <li>A file is unchanged if its modification time and size are both unchanged. Otherwise,
+ * its contents are digested, so that a file which has been rewritten with the same contents
+ * is still treated as unchanged.</li>
+ * <li>An HTTP or HTTPS resource is requested with <code>If-None-Match</code> and
+ * <code>If-Modified-Since</code> headers carrying the validators returned by the server
+ * the last time. It is unchanged if the server responds with status 304, or returns the same
+ * validators again. The body of any other response is not read.</li>
+ * <li>Any other resource is read and its contents digested.</li>
+ * </ul>
+ *
+ * A file resource is also watched, so that the library can refresh soon after the file
+ * is written or replaced, rather than waiting for its next scheduled refresh. The watch
+ * is on the file's directory, so that it survives the file being atomically replaced.
+ */
+public class ResourceChangeDetector extends AbstractIdentifiableInitializableComponent
+    implements ItemCollectionLibrary.SourceChangeDetector {
+
+    /**
+     * The state of the resource as seen by a single check.
+     *
+     * Fields which do not apply to the kind of resource checked are left unset.
+     */
+    private static final class ResourceState {
+
+        /** Modification time of a file, in milliseconds. */
+        private long modified;
+
+        /** Size of a file. */
+        private long size;
+
+        /** Hex-encoded SHA-1 digest of the contents, or <code>null</code>. */
+        @Nullable
+        private String digest;
+
+        /** <code>ETag</code> header returned by the server, or <code>null</code>. */
+        @Nullable
+        private String etag;
+
+        /** <code>Last-Modified</code> header returned by the server, or <code>null</code>. */
+        @Nullable
+        private String lastModified;
+    }
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ResourceChangeDetector.class);
+
+    /** The resource to check. */
+    @Nullable
+    private Resource resource;
+
+    /** Timeout for connecting to, and reading from, an HTTP server. */
+    @Nonnull @Positive
+    private Duration timeout = Duration.ofSeconds(30);
+
+    /** State of the resource when the source was last refreshed, or <code>null</code>. */
+    @Nullable
+    private ResourceState refreshedState;
+
+    /** State of the resource seen by the most recent check, or <code>null</code>. */
+    @Nullable
+    private ResourceState checkedState;
+
+    /** Watches the directory containing a file resource, or <code>null</code>. */
+    @Nullable
+    private WatchService watchService;
+
+    /**
+     * Gets the resource to check.
+     *
+     * @return the resource
+     */
+    @Nullable
+    public Resource getResource() {
+        return resource;
+    }
+
+    /**
+     * Sets the resource to check.
+     *
+     * This should be the resource read by the first stage of the source pipeline.
+     *
+     * @param source the resource
+     */
+    public void setResource(@Nonnull final Resource source) {
+        checkSetterPreconditions();
+        resource = Constraint.isNotNull(source, "resource may not be null");
+    }
+
+    /**
+     * Gets the timeout for connecting to, and reading from, an HTTP server.
+     *
+     * @return the timeout
+     */
+    @Nonnull @Positive public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the timeout for connecting to, and reading from, an HTTP server.
+     *
+     * @param t the timeout (default 30 seconds)
+     */
+    public void setTimeout(@Nonnull @Positive final Duration t) {
+        checkSetterPreconditions();
+        if (t.isNegative() || t.isZero()) {
+            throw new ConstraintViolationException("timeout must be positive");
+        }
+        timeout = t;
+    }
+
+    @Override
+    public synchronized boolean isSourceChanged() throws IOException {
+        final ResourceState previous = refreshedState;
+        final ResourceState state;
+        final boolean changed;
+        if (resource.isFile()) {
+            state = checkFile(resource.getFile().toPath(), previous);
+            changed = previous == null || !Objects.equals(state.digest, previous.digest);
+        } else if (isHttp(resource)) {
+            state = checkHttp(resource.getURL(), previous);
+            changed = previous == null || (state.etag == null && state.lastModified == null)
+                    || !Objects.equals(state.etag, previous.etag)
+                    || !Objects.equals(state.lastModified, previous.lastModified);
+        } else {
+            state = new ResourceState();
+            try (final InputStream in = resource.getInputStream()) {
+                state.digest = digest(in);
+            }
+            changed = previous == null || !state.digest.equals(previous.digest);
+        }
+        checkedState = state;
+        if (!changed) {
+            // the collections in use still reflect the resource as it is now
+            refreshedState = state;
+        }
+        log.debug("{}: {} {}", getId(), resource.getDescription(), changed ? "may have changed" : "unchanged");
+        return changed;
+    }
+
+    @Override
+    public synchronized void sourceRefreshed() {
+        if (checkedState != null) {
+            refreshedState = checkedState;
+        }
+    }
+
+    @Override
+    public synchronized void watchSource(@Nonnull final Runnable onChange) {
+        if (watchService != null || !resource.isFile()) {
+            return;
+        }
+        final Path file;
+        try {
+            file = resource.getFile().toPath().toAbsolutePath();
+            watchService = file.getFileSystem().newWatchService();
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (final IOException | UnsupportedOperationException e) {
+            log.warn("{}: can not watch {}, relying on scheduled refreshes", getId(),
+                    resource.getDescription(), e);
+            return;
+        }
+
+        final WatchService service = watchService;
+        new ThreadFactoryBuilder().setNameFormat(getId() + "-watch").setDaemon(true).build()
+                .newThread(() -> watch(service, file, onChange)).start();
+        log.debug("{}: watching {}", getId(), file);
+    }
+
+    /**
+     * Watch for changes to a file until the {@link WatchService} is closed.
+     *
+     * @param service the {@link WatchService} registered on the file's directory
+     * @param file the file
+     * @param onChange callback to call when the file may have changed
+     */
+    private void watch(@Nonnull final WatchService service, @Nonnull final Path file,
+            @Nonnull final Runnable onChange) {
+        try {
+            while (true) {
+                final WatchKey key = service.take();
+                boolean changed = false;
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    // events may have been lost, so any of them may have concerned the file
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || file.getFileName().equals(event.context());
+                }
+                if (changed) {
+                    onChange.run();
+                }
+                if (!key.reset()) {
+                    log.warn("{}: directory containing {} can no longer be watched", getId(), file);
+                    return;
+                }
+            }
+        } catch (final ClosedWatchServiceException e) {
+            // the detector has been destroyed
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final RuntimeException e) {
+            log.error("{}: uncaught exception while watching {}", getId(), file, e);
+        }
+    }
+
+    /**
+     * Returns whether a resource is fetched using HTTP or HTTPS.
+     *
+     * @param res the resource
+     *
+     * @return <code>true</code> if the resource has an HTTP or HTTPS URL
+     */
+    private static boolean isHttp(@Nonnull final Resource res) {
+        try {
+            final String protocol = res.getURL().getProtocol();
+            return "http".equals(protocol) || "https".equals(protocol);
+        } catch (final IOException e) {
+            // the resource has no URL
+            return false;
+        }
+    }
+
+    /**
+     * Compute the hex-encoded SHA-1 digest of the contents of a stream.
+     *
+     * @param in the stream
+     *
+     * @return the digest
+     *
+     * @throws IOException if the stream could not be read
+     */
+    @Nonnull
+    private static String digest(@Nonnull final InputStream in) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        try (final DigestInputStream digestIn = new DigestInputStream(in, digest)) {
+            digestIn.transferTo(OutputStream.nullOutputStream());
+        }
+        return CodecUtil.hex(digest.digest());
+    }
+
+    /**
+     * Check a file.
+     *
+     * @param file the file
+     * @param previous the state of the file at the last refresh, or <code>null</code>
+     *
+     * @return the state of the file now
+     *
+     * @throws IOException if the file could not be read
+     */
+    @Nonnull
+    private static ResourceState checkFile(@Nonnull final Path file, @Nullable final ResourceState previous)
+            throws IOException {
+        final ResourceState state = new ResourceState();
+        state.modified = Files.getLastModifiedTime(file).toMillis();
+        state.size = Files.size(file);
+        if (previous != null && previous.modified == state.modified && previous.size == state.size) {
+            // assume that the contents are also unchanged
+            state.digest = previous.digest;
+        } else {
+            try (final InputStream in = Files.newInputStream(file)) {
+                state.digest = digest(in);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Check an HTTP resource using a conditional request.
+     *
+     * @param url the resource's URL
+     * @param previous the state of the resource at the last refresh, or <code>null</code>
+     *
+     * @return the state of the resource now
+     *
+     * @throws IOException if the server could not be contacted, or returned an error
+     */
+    @Nonnull
+    private ResourceState checkHttp(@Nonnull final URL url, @Nullable final ResourceState previous)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout((int) timeout.toMillis());
+            connection.setReadTimeout((int) timeout.toMillis());
+            if (previous != null) {
+                if (previous.etag != null) {
+                    connection.setRequestProperty("If-None-Match", previous.etag);
+                }
+                if (previous.lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+                }
+            }
+            final int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+                return previous;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("unexpected status " + status + " from " + url);
+            }
+            final ResourceState state = new ResourceState();
+            state.etag = connection.getHeaderField("ETag");
+            state.lastModified = connection.getHeaderField("Last-Modified");
+            return state;
+        } finally {
+            // abandons any response body without reading it
+            connection.disconnect();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (resource == null) {
+            throw new ComponentInitializationException("resource must be supplied");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        synchronized (this) {
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (final IOException e) {
+                    log.debug("ignored IOException while closing watch service", e);
+                }
+                watchService = null;
+            }
+        }
+
+        super.doDestroy();
+    }
+
+}
@@ -16,6 +16,8 @@
 
 package uk.org.iay.mdq.server;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Collection;
 
 import javax.annotation.Nonnull;
@@ -61,6 +63,16 @@ public interface Result {
     @Nullable
     public Representation getDeflateRepresentation();
     
+    /**
+     * Returns the compressed {@link Representation}s currently available for the {@link Result}.
+     *
+     * Each has a distinct content encoding.
+     *
+     * @return the available compressed {@link Representation}s
+     */
+    @Nonnull
+    public Collection<Representation> getEncodedRepresentations();
+    
     /**
      * Returns the {@link Collection} of identifiers associated with this {@link Result}.
      * 
@@ -70,5 +82,39 @@ public interface Result {
      */
     @Nullable
     public Collection<String> getIdentifiers();
+
+    /**
+     * Returns whether the {@link Result} was rendered from a superseded generation
+     * of the metadata, and is being served while the current result is rendered.
+     *
+     * @return <code>true</code> if the {@link Result} is stale
+     */
+    public default boolean isStale() {
+        return false;
+    }
+
+    /**
+     * Returns how long the client should wait before retrying the query, if the
+     * {@link Result} could not be rendered because the service was too busy.
+     *
+     * A {@link Result} with a retry time has no content.
+     *
+     * @return the time to wait before retrying, or <code>null</code> if the {@link Result}
+     *      is available
+     */
+    @Nullable
+    public default Duration getRetryAfter() {
+        return null;
+    }
+
+    /**
+     * Returns the time at which the content of the {@link Result} last changed.
+     *
+     * @return the time the content last changed, or <code>null</code> if it is not known
+     */
+    @Nullable
+    public default Instant getLastModified() {
+        return null;
+    }
     
 }
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Cache of {@link ServiceResult}s, indexed by the content digest of the {@link IdentifiedItemCollection}
+ * they were rendered from.
+ *
+ * Callers asking for the same uncached result at the same time share a single load operation.
+ * Results are released when they are removed from the cache.
+ *
+ * A result larger than the cache's maximum size is not cached, or is removed once its size
+ * grows beyond the maximum. Such a result is released only once it is no longer reachable,
+ * as it is still being returned to callers.
+ */
+final class ResultCache {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ResultCache.class);
+
+    /** The underlying cache. */
+    @Nonnull
+    private final Cache<String, ServiceResult> cache;
+
+    /** Maximum total size of the cached results in bytes, or zero for no limit. */
+    private final long maximumWeight;
+
+    /**
+     * Loads currently in progress, indexed by content digest.
+     *
+     * This allows callers asking for the same collection at the same time to share
+     * a single render operation.
+     */
+    @Nonnull
+    private final Map<String, CompletableFuture<ServiceResult>> inFlight = new ConcurrentHashMap<>();
+
+    /** Number of callers which have shared a load started by another caller. */
+    @Nonnull
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param maximumSize maximum total size of the cached results in bytes, or zero for no limit
+     * @param softValues whether results are held through soft references, so that the
+     *      garbage collector can evict them when the heap is under pressure
+     */
+    ResultCache(final long maximumSize, final boolean softValues) {
+        maximumWeight = maximumSize;
+        CacheBuilder<String, ServiceResult> builder = CacheBuilder.newBuilder()
+                .recordStats()
+                .removalListener(this::resultRemoved);
+        if (softValues) {
+            builder = builder.softValues();
+        }
+        if (maximumSize > 0) {
+            builder = builder
+                    .maximumWeight(maximumSize)
+                    .weigher((key, value) ->
+                        (int) Math.min(Integer.MAX_VALUE, value.getSize()))
+                    // A single segment applies the size limit to the cache as a whole.
+                    .concurrencyLevel(1);
+        }
+        cache = builder.build();
+    }
+
+    /**
+     * Returns a cached result, recording a hit or a miss in the cache statistics.
+     *
+     * @param digest content digest of the result's collection
+     *
+     * @return the cached result, or <code>null</code> if there is none
+     */
+    @Nullable
+    ServiceResult getIfPresent(@Nonnull final String digest) {
+        return cache.getIfPresent(digest);
+    }
+
+    /**
+     * Returns a cached result without affecting the cache statistics.
+     *
+     * @param digest content digest of the result's collection
+     *
+     * @return the cached result, or <code>null</code> if there is none
+     */
+    @Nullable
+    ServiceResult peek(@Nonnull final String digest) {
+        return cache.asMap().get(digest);
+    }
+
+    /**
+     * Returns whether a result is cached.
+     *
+     * @param digest content digest of the result's collection
+     *
+     * @return <code>true</code> if the result is cached
+     */
+    boolean contains(@Nonnull final String digest) {
+        return cache.asMap().containsKey(digest);
+    }
+
+    /**
+     * Returns whether a result is too large ever to be held in the cache.
+     *
+     * @param result the result
+     *
+     * @return <code>true</code> if the result is larger than the cache's maximum size
+     */
+    private boolean isTooLarge(@Nonnull final ServiceResult result) {
+        return maximumWeight > 0 && result.getSize() > maximumWeight;
+    }
+
+    /**
+     * Adds a result to the cache.
+     *
+     * A result too large to be cached is not added. It is released once it is no longer
+     * reachable.
+     *
+     * @param digest content digest of the result's collection
+     * @param result the result to cache
+     *
+     * @return <code>true</code> if the result was added to the cache
+     */
+    boolean put(@Nonnull final String digest, @Nonnull final ServiceResult result) {
+        if (isTooLarge(result)) {
+            log.debug("result {} of {} bytes is too large to cache", digest, result.getSize());
+            result.releaseWhenUnreachable();
+            return false;
+        }
+        cache.put(digest, result);
+        return true;
+    }
+
+    /**
+     * Replaces a cached result with a new rendering of the same collection, releasing
+     * the result it replaces.
+     *
+     * @param digest content digest of the results' collection
+     * @param previous the result expected to be cached
+     * @param result the replacement result
+     *
+     * @return <code>true</code> if the result was replaced, or <code>false</code> if
+     *      the previous result is no longer cached or the replacement is too large to cache
+     */
+    boolean replace(@Nonnull final String digest, @Nonnull final ServiceResult previous,
+            @Nonnull final ServiceResult result) {
+        if (isTooLarge(result)) {
+            return false;
+        }
+        if (cache.asMap().replace(digest, previous, result)) {
+            previous.release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the cached results.
+     *
+     * The collection is a view of the cache, and may be iterated while the cache changes.
+     *
+     * @return the cached results
+     */
+    @Nonnull
+    Collection<ServiceResult> results() {
+        return Collections.unmodifiableCollection(cache.asMap().values());
+    }
+
+    /**
+     * Loads a result which is not cached, or waits for a load of the same result
+     * already in progress.
+     *
+     * The loader is expected to {@link #put} the result it produces, so that later
+     * callers find it in the cache.
+     *
+     * @param digest content digest of the result's collection
+     * @param loader produces the result
+     *
+     * @return the loaded result
+     */
+    @Nonnull
+    ServiceResult load(@Nonnull final String digest, @Nonnull final Supplier<ServiceResult> loader) {
+        final CompletableFuture<ServiceResult> future = new CompletableFuture<>();
+        final CompletableFuture<ServiceResult> existing = inFlight.putIfAbsent(digest, future);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            log.debug("waiting for render in progress for {}", digest);
+            try {
+                return existing.join();
+            } catch (final CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            final ServiceResult result = loader.get();
+            future.complete(result);
+            return result;
+        } catch (final RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(digest, future);
+        }
+    }
+
+    /**
+     * Updates the weight of a result's cache entry after its size has changed.
+     *
+     * A result which has grown too large to be cached is removed from the cache, and is
+     * released once it is no longer reachable.
+     *
+     * @param result the result whose size has changed
+     */
+    void updateWeight(@Nonnull final ServiceResult result) {
+        final String digest = result.getDigest();
+        if (digest == null) {
+            return;
+        }
+        if (isTooLarge(result)) {
+            // callers may still be about to use the result, so it must not be released yet
+            result.releaseWhenUnreachable();
+            if (cache.asMap().remove(digest, result)) {
+                log.debug("result {} of {} bytes has grown too large to cache", digest, result.getSize());
+            }
+        } else {
+            // replacing the entry with itself recalculates its weight
+            cache.asMap().replace(digest, result, result);
+        }
+    }
+
+    /**
+     * Discards all results other than those for the given collections.
+     *
+     * @param digests content digests of the collections whose results are retained
+     *
+     * @return the number of results discarded
+     */
+    long retainAll(@Nonnull final Set<String> digests) {
+        final long before = cache.size();
+        cache.asMap().keySet().retainAll(digests);
+        return before - cache.size();
+    }
+
+    /**
+     * Discards all results.
+     */
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Returns the number of cached results.
+     *
+     * @return the number of cached results
+     */
+    long size() {
+        return cache.size();
+    }
+
+    /**
+     * Returns statistics for the cache.
+     *
+     * @return cache statistics
+     */
+    @Nonnull
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Returns the number of callers which have waited for a load started by
+     * another caller rather than performing their own.
+     *
+     * @return the number of coalesced loads
+     */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Release a result which has been removed from the cache.
+     *
+     * A result whose entry is replaced is either still in use, having been replaced by itself
+     * to update its weight, or is released by {@link #replace}. A result whose soft reference
+     * has been cleared is no longer available, but its storage will also be reclaimed by the
+     * garbage collector.
+     *
+     * @param notification describes the removal
+     */
+    private void resultRemoved(@Nonnull final RemovalNotification<String, ServiceResult> notification) {
+        final ServiceResult result = notification.getValue();
+        if (result != null && notification.getCause() != RemovalCause.REPLACED) {
+            result.release();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Instant;
+import java.util.Collections;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the rendered results of {@link IdentifiedItemCollection}s into a {@link ResultCache},
+ * restoring or rendering them as required.
+ *
+ * @param <T> item type of the metadata served
+ */
+final class ResultLoader<T> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ResultLoader.class);
+
+    /**
+     * Cache of results, indexed by the content digest of the {@link IdentifiedItemCollection}
+     * they were rendered from.
+     */
+    @Nonnull
+    private final ResultCache resultCache;
+
+    /** Renders collections. */
+    @Nonnull
+    private final CollectionRenderer<T> renderer;
+
+    /** Restores, compresses and persists results. */
+    @Nonnull
+    private final BackgroundProcessor background;
+
+    /** Whether the representations of rendered results are held outside the Java heap. */
+    private final boolean offHeapRepresentations;
+
+    /**
+     * Constructor.
+     *
+     * @param cache cache into which results are loaded
+     * @param collectionRenderer renders collections
+     * @param processor restores, compresses and persists results
+     * @param offHeap whether the representations of rendered results are held outside the Java heap
+     */
+    ResultLoader(@Nonnull final ResultCache cache, @Nonnull final CollectionRenderer<T> collectionRenderer,
+            @Nonnull final BackgroundProcessor processor, final boolean offHeap) {
+        resultCache = cache;
+        renderer = collectionRenderer;
+        background = processor;
+        offHeapRepresentations = offHeap;
+    }
+
+    /**
+     * Returns the rendered result for an {@link IdentifiedItemCollection}.
+     *
+     * @param identifier identifier for which metadata is requested, used for logging
+     * @param identifiedItemCollection the collection to return the rendered result for
+     *
+     * @return the rendered result for the collection
+     */
+    @Nonnull
+    ServiceResult get(@Nullable final String identifier,
+            @Nonnull final IdentifiedItemCollection<T> identifiedItemCollection) {
+        // Check to see if the cache contains a rendered form for this query
+        final ServiceResult cachedResult = getCached(identifier, identifiedItemCollection);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        /*
+         * If the result we want isn't in the cache, render the item collection,
+         * or wait for a render of the same collection already in progress.
+         */
+        return resultCache.load(identifiedItemCollection.getDigest(),
+                () -> renderAndCache(identifier, identifiedItemCollection));
+    }
+
+    /**
+     * Returns the rendered result for an {@link IdentifiedItemCollection}, rendering it
+     * only if the render is admitted by a {@link RenderLimiter}.
+     *
+     * @param identifier identifier for which metadata is requested, used for logging
+     * @param identifiedItemCollection the collection to return the rendered result for
+     * @param limiter limits the renders performed on behalf of queries
+     *
+     * @return the rendered result for the collection
+     *
+     * @throws RenderLimiter.RejectedException if the render is not admitted
+     */
+    @Nonnull
+    ServiceResult get(@Nonnull final String identifier,
+            @Nonnull final IdentifiedItemCollection<T> identifiedItemCollection,
+            @Nonnull final RenderLimiter limiter) {
+        // cache hits never wait for a render
+        final ServiceResult cachedResult = getCached(identifier, identifiedItemCollection);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        // only the caller performing the render needs to be admitted
+        return resultCache.load(identifiedItemCollection.getDigest(),
+                () -> limiter.render(() -> renderAndCache(identifier, identifiedItemCollection)));
+    }
+
+    /**
+     * Look for a cached result for a query.
+     *
+     * @param identifier identifier for which metadata is requested
+     * @param identifiedItemCollection the current collection for that identifier
+     *
+     * @return the cached result, or <code>null</code> if there is no cached result
+     */
+    @Nullable
+    private ServiceResult getCached(@Nullable final String identifier,
+            @Nonnull final IdentifiedItemCollection<T> identifiedItemCollection) {
+        final ServiceResult cachedResult = resultCache.getIfPresent(identifiedItemCollection.getDigest());
+        if (cachedResult != null) {
+            log.debug("cache hit for {}", identifier);
+        }
+        return cachedResult;
+    }
+
+    /**
+     * Move a newly generated {@link Representation} to the configured storage.
+     *
+     * @param rep the {@link Representation} to store
+     *
+     * @return the stored {@link Representation}
+     */
+    @Nonnull
+    private Representation store(@Nonnull final Representation rep) {
+        // content already outside the heap, such as a spooled aggregate, stays where it is
+        return offHeapRepresentations && !rep.getByteBuffer().isDirect() ? new OffHeapRepresentation(rep) : rep;
+    }
+
+    /**
+     * Render an {@link IdentifiedItemCollection} and write the result into the cache
+     * for each of its identifiers.
+     *
+     * The caller must be the only caller loading this collection's result into
+     * the {@link #resultCache}.
+     *
+     * @param identifier identifier for which metadata is requested
+     * @param identifiedItemCollection the collection to render
+     *
+     * @return the rendered result
+     */
+    @Nonnull
+    private ServiceResult renderAndCache(@Nullable final String identifier,
+            @Nonnull final IdentifiedItemCollection<T> identifiedItemCollection) {
+        /*
+         * Another caller may have completed a render of this collection between
+         * our cache check and our registration as the rendering caller.
+         */
+        final ServiceResult cachedResult = resultCache.peek(identifiedItemCollection.getDigest());
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        final boolean persistent = identifiedItemCollection.isContentDigest();
+        final ServiceResult restoredResult = background.restore(identifiedItemCollection, this::store);
+        if (restoredResult != null) {
+            log.debug("restored stored result for {}", identifier);
+            if (resultCache.put(identifiedItemCollection.getDigest(), restoredResult)) {
+                background.process(restoredResult, persistent, true);
+            }
+            return restoredResult;
+        }
+
+        final Instant rendered = Instant.now();
+        final Representation rep = renderer.render(identifiedItemCollection);
+        if (rep == null) {
+            // not cached, so that the next query for the collection tries again
+            log.warn("could not render {}", identifiedItemCollection.getIdentifiers());
+            return new ServiceResult();
+        }
+        final ServiceResult result = new ServiceResult(rep, Collections.emptyList(), identifiedItemCollection,
+                rendered, this::store);
+        // a result too large to cache is served without compressing or persisting it
+        if (resultCache.put(identifiedItemCollection.getDigest(), result)) {
+            background.process(result, persistent, false);
+        }
+        return result;
+    }
+
+    /**
+     * Render an {@link IdentifiedItemCollection} again, replacing its cached result.
+     *
+     * Nothing is done if the collection has no cached result, and the cached result is
+     * kept if the collection can not be rendered.
+     *
+     * @param identifiedItemCollection the collection to render
+     */
+    void rerender(@Nonnull final IdentifiedItemCollection<T> identifiedItemCollection) {
+        final String digest = identifiedItemCollection.getDigest();
+        final ServiceResult previous = resultCache.peek(digest);
+        if (previous == null) {
+            return;
+        }
+
+        final Instant rendered = Instant.now();
+        final Representation rep = renderer.render(identifiedItemCollection);
+        if (rep == null) {
+            log.warn("could not render {} again, keeping previous result", identifiedItemCollection.getIdentifiers());
+            return;
+        }
+        final ServiceResult result = new ServiceResult(rep, Collections.emptyList(), identifiedItemCollection,
+                rendered, this::store);
+        if (resultCache.replace(digest, previous, result)) {
+            background.process(result, identifiedItemCollection.isContentDigest(), false);
+        } else {
+            // the previous result has been discarded or this one is too large to cache,
+            // so this one is no longer wanted
+            result.release();
+        }
+    }
+}
@@ -16,11 +16,30 @@
 
 package uk.org.iay.mdq.server;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.ee10.servlet.HttpOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.servlet.View;
@@ -29,9 +48,23 @@ import com.google.common.net.HttpHeaders;
 
 /**
  * Render a query result from the raw result with a given content type.
+ *
+ * Conditional requests are answered with a <code>304 Not Modified</code> response if the client
+ * already holds the result's content. An entity tag supplied in <code>If-None-Match</code> is
+ * compared with the tags of all the result's representations, so a client holding one content
+ * coding is not sent the content again just because a different one would now be selected.
+ *
+ * Byte ranges of the selected representation may be requested, so that an interrupted
+ * transfer can be resumed.
  */
 public class ResultRawView implements View {
 
+    /** Response header indicating whether the result served was stale. */
+    public static final String STALE_HEADER = "X-MDQ-Stale";
+
+    /** Pattern matching an entity tag, capturing the tag without any weakness indicator. */
+    private static final Pattern ENTITY_TAG = Pattern.compile("(?:W/)?(\"[^\"]*\")");
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(ResultRawView.class);
 
@@ -63,22 +96,184 @@ public class ResultRawView implements View {
             return;
         }
 
+        if (result.getRetryAfter() != null) {
+            sendBusy(result, response);
+            return;
+        }
+
         // select the representation to provide
-        Representation rep = null;
-        final String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
-        if (acceptEncoding != null) {
-            if (acceptEncoding.contains("gzip")) {
-                rep = result.getGZIPRepresentation();
-            } else if (acceptEncoding.contains("compress")) {
-                rep = result.getDeflateRepresentation();
+        final AcceptEncoding acceptEncoding = new AcceptEncoding(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        final Representation rep = acceptEncoding.select(result);
+
+        final Representation held = heldRepresentation(result, rep, request);
+        if (held != null) {
+            log.debug("not modified; client holds {}", held.getETag());
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            setRepresentationHeaders(result, held, response);
+            return;
+        }
+
+        if (!rep.retain()) {
+            // evicted since it was selected; the client can retry against the new cache entry
+            response.setHeader(HttpHeaders.RETRY_AFTER, "0");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        try {
+            write(request, result, rep, response);
+        } finally {
+            rep.release();
+        }
+    }
+
+    /**
+     * Answer a query whose {@link Result} could not be rendered because the service was
+     * too busy, asking the client to retry later.
+     *
+     * @param result the busy {@link Result}
+     * @param response the response to send
+     *
+     * @throws IOException if the response cannot be sent
+     */
+    static void sendBusy(@Nonnull final Result result, @Nonnull final HttpServletResponse response)
+            throws IOException {
+        setRetryAfter(result, response);
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Set the status of the response to a query whose {@link Result} could not be rendered
+     * because the service was too busy, for views such as the HTML templates which describe
+     * the result but cannot set the status themselves.
+     *
+     * @param result the {@link Result} of the query, or <code>null</code>
+     * @param response the response to the query
+     */
+    static void markBusy(@Nullable final Result result, @Nonnull final HttpServletResponse response) {
+        if (result != null && result.getRetryAfter() != null) {
+            setRetryAfter(result, response);
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Set the <code>Retry-After</code> header for a busy {@link Result}.
+     *
+     * @param result the busy {@link Result}
+     * @param response the response to set the header on
+     */
+    private static void setRetryAfter(@Nonnull final Result result, @Nonnull final HttpServletResponse response) {
+        // Retry-After is a whole number of seconds, so round up
+        final Duration retryAfter = result.getRetryAfter();
+        final long seconds = retryAfter.getSeconds() + (retryAfter.getNano() > 0 ? 1 : 0);
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(seconds));
+    }
+
+    /**
+     * Evaluate the request's preconditions to determine whether the client already holds
+     * the content of a {@link Result}.
+     *
+     * As required by RFC 9110, <code>If-Modified-Since</code> is only considered in the
+     * absence of <code>If-None-Match</code>, and entity tags are compared weakly.
+     *
+     * @param result the {@link Result} being rendered
+     * @param selected the {@link Representation} selected for the response
+     * @param request the request being answered
+     *
+     * @return the {@link Representation} the client holds, or <code>null</code> if the
+     *      content must be sent
+     */
+    @Nullable
+    private Representation heldRepresentation(@Nonnull final Result result, @Nonnull final Representation selected,
+            @Nonnull final HttpServletRequest request) {
+        final List<String> ifNoneMatch = Collections.list(request.getHeaders(HttpHeaders.IF_NONE_MATCH));
+        if (!ifNoneMatch.isEmpty()) {
+            return matchingRepresentation(result, selected, ifNoneMatch);
+        }
+
+        final Instant lastModified = result.getLastModified();
+        if (lastModified != null) {
+            try {
+                final long since = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+                if (since >= 0 && lastModified.toEpochMilli() <= since) {
+                    return selected;
+                }
+            } catch (final IllegalArgumentException e) {
+                // an invalid date is ignored
+                log.debug("ignored invalid If-Modified-Since: {}", e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the {@link Representation} of a {@link Result} matching any of the entity tags
+     * in <code>If-None-Match</code> header fields.
+     *
+     * @param result the {@link Result} being rendered
+     * @param selected the {@link Representation} selected for the response
+     * @param ifNoneMatch values of the <code>If-None-Match</code> header fields
+     *
+     * @return the matching {@link Representation}, or <code>null</code> if none matches
+     */
+    @Nullable
+    private Representation matchingRepresentation(@Nonnull final Result result,
+            @Nonnull final Representation selected, @Nonnull final List<String> ifNoneMatch) {
+        final Set<String> tags = new HashSet<>();
+        for (final String header : ifNoneMatch) {
+            if ("*".equals(header.strip())) {
+                return selected;
+            }
+            final Matcher matcher = ENTITY_TAG.matcher(header);
+            while (matcher.find()) {
+                tags.add(matcher.group(1));
             }
         }
-        
-        // default to the normal representation
-        if (rep == null) {
-            rep = result.getRepresentation();
+        final List<Representation> reps = new ArrayList<>();
+        reps.add(selected);
+        reps.add(result.getRepresentation());
+        reps.addAll(result.getEncodedRepresentations());
+        for (final Representation rep : reps) {
+            if (tags.contains(rep.getETag())) {
+                return rep;
+            }
         }
-        
+        return null;
+    }
+
+    /**
+     * Set the headers describing a {@link Representation}, sent with both full
+     * and <code>304 Not Modified</code> responses.
+     *
+     * @param result the {@link Result} being rendered
+     * @param rep the {@link Representation} described
+     * @param response the response to set the headers on
+     */
+    private void setRepresentationHeaders(@Nonnull final Result result, @Nonnull final Representation rep,
+            @Nonnull final HttpServletResponse response) {
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        response.setHeader(HttpHeaders.ETAG, rep.getETag());
+        final Instant lastModified = result.getLastModified();
+        if (lastModified != null) {
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified.toEpochMilli());
+        }
+        response.setHeader(STALE_HEADER, Boolean.toString(result.isStale()));
+    }
+
+    /**
+     * Write a retained {@link Representation} of a {@link Result} to the response,
+     * or those parts of it requested by a <code>Range</code> header field.
+     *
+     * @param request the request being answered
+     * @param result the {@link Result} being rendered
+     * @param rep the selected {@link Representation}
+     * @param response the response to write to
+     *
+     * @throws IOException if the response cannot be written
+     */
+    private void write(@Nonnull final HttpServletRequest request, @Nonnull final Result result,
+            @Nonnull final Representation rep, @Nonnull final HttpServletResponse response) throws IOException {
+
         // Set response headers
         String contentEncoding = rep.getContentEncoding();
         if (contentEncoding != null) {
@@ -88,13 +283,133 @@ public class ResultRawView implements View {
             contentEncoding = "normal";
         }
         response.setContentType(getContentType());
-        response.setContentLength(rep.getBytes().length);
-        response.setHeader(HttpHeaders.ETAG, rep.getETag());
-        
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        setRepresentationHeaders(result, rep, response);
+
+        final ByteRanges ranges = requestedRanges(request, rep);
+        if (ranges.isRequested()) {
+            writeRanges(ranges, rep, response);
+            return;
+        }
+
         log.debug("selected ({}) representation is {} bytes",
-                contentEncoding, rep.getBytes().length);
-        
-        response.getOutputStream().write(rep.getBytes());
+                contentEncoding, rep.getLength());
+        response.setContentLength(rep.getLength());
+        writeContent(response.getOutputStream(), rep, 0, rep.getLength(), true);
+    }
+
+    /**
+     * Determine the ranges of a {@link Representation} requested by the client.
+     *
+     * Ranges are only honoured if any <code>If-Range</code> header field carries the
+     * {@link Representation}'s entity tag; an HTTP date is never sufficient, as the
+     * modification time is not a strong validator.
+     *
+     * @param request the request being answered
+     * @param rep the selected {@link Representation}
+     *
+     * @return the requested ranges
+     */
+    @Nonnull
+    private ByteRanges requestedRanges(@Nonnull final HttpServletRequest request,
+            @Nonnull final Representation rep) {
+        final String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        final boolean current = ifRange == null || rep.getETag().equals(ifRange.strip());
+        if (!current || !"GET".equals(request.getMethod())) {
+            return new ByteRanges(null, rep.getLength());
+        }
+        return new ByteRanges(request.getHeader(HttpHeaders.RANGE), rep.getLength());
+    }
+
+    /**
+     * Write the requested ranges of a {@link Representation} as a partial response.
+     *
+     * @param ranges the requested ranges
+     * @param rep the selected {@link Representation}
+     * @param response the response to write to
+     *
+     * @throws IOException if the response cannot be written
+     */
+    private void writeRanges(@Nonnull final ByteRanges ranges, @Nonnull final Representation rep,
+            @Nonnull final HttpServletResponse response) throws IOException {
+        if (!ranges.isSatisfiable()) {
+            log.debug("requested ranges are not satisfiable");
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + rep.getLength());
+            response.setContentLength(0);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        final List<ByteRanges.Range> parts = ranges.getRanges();
+        if (parts.size() == 1) {
+            final ByteRanges.Range range = parts.get(0);
+            log.debug("sending range {}", range.toContentRange(rep.getLength()));
+            response.setHeader(HttpHeaders.CONTENT_RANGE, range.toContentRange(rep.getLength()));
+            response.setContentLength((int) range.getLength());
+            writeContent(response.getOutputStream(), rep, (int) range.getFirst(), (int) range.getLength(), true);
+            return;
+        }
+
+        // each range is sent as one part of a multipart/byteranges body
+        log.debug("sending {} ranges", parts.size());
+        final String boundary = UUID.randomUUID().toString().replace("-", "");
+        final List<byte[]> partHeaders = new ArrayList<>();
+        final byte[] partEnd = "\r\n".getBytes(StandardCharsets.US_ASCII);
+        final byte[] bodyEnd = ("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long length = bodyEnd.length;
+        for (final ByteRanges.Range range : parts) {
+            final byte[] partHeader = ("--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + getContentType() + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + range.toContentRange(rep.getLength()) + "\r\n"
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            length += partHeader.length + range.getLength() + partEnd.length;
+        }
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(length);
+
+        final ServletOutputStream out = response.getOutputStream();
+        for (int i = 0; i < parts.size(); i++) {
+            final ByteRanges.Range range = parts.get(i);
+            out.write(partHeaders.get(i));
+            writeContent(out, rep, (int) range.getFirst(), (int) range.getLength(), false);
+            out.write(partEnd);
+        }
+        out.write(bodyEnd);
+    }
+
+    /**
+     * Write part of the content of a {@link Representation}.
+     *
+     * @param out the stream to write to
+     * @param rep the {@link Representation} to write from
+     * @param offset offset of the first byte to write
+     * @param length number of bytes to write
+     * @param complete whether this completes the response body
+     *
+     * @throws IOException if the content cannot be written
+     */
+    private void writeContent(@Nonnull final ServletOutputStream out, @Nonnull final Representation rep,
+            final int offset, final int length, final boolean complete) throws IOException {
+        final ByteBuffer buffer = rep.getByteBuffer().slice(offset, length);
+        if (!buffer.isDirect()) {
+            /*
+             * Heap content is best written from its array: the socket layer would otherwise
+             * copy a heap buffer into a temporary direct buffer of the same size.
+             */
+            out.write(rep.getBytes(), offset, length);
+        } else if (out instanceof HttpOutput) {
+            // hand the buffer straight to Jetty, which writes it to the connection without copying
+            if (complete) {
+                ((HttpOutput) out).sendContent(buffer);
+            } else {
+                ((HttpOutput) out).write(buffer);
+            }
+        } else {
+            // copies the content through a small buffer rather than materialising it as a byte array
+            Channels.newChannel(out).write(buffer);
+        }
     }
 
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Renders cached results again in the background as they approach the end of their
+ * validity window, so that results for collections which have not changed do not
+ * age towards expiry.
+ *
+ * Each result becomes due a given fraction of the way through its validity window,
+ * plus a delay of up to a quarter of the remainder of the window which is derived from
+ * the result's digest. Results rendered at the same time therefore become due at
+ * different times, and are rendered again one at a time.
+ *
+ * @param <T> item type of the metadata served
+ */
+final class ResultRerenderer<T> {
+
+    /** Longest interval between checks for results which are due. */
+    private static final Duration MAX_SCAN_INTERVAL = Duration.ofMinutes(1);
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ResultRerenderer.class);
+
+    /** Age after which every result is due, in nanoseconds. */
+    private final long thresholdNanos;
+
+    /** Longest additional delay before a result is due, in nanoseconds. */
+    private final long jitterNanos;
+
+    /** Cache holding the results. */
+    @Nonnull
+    private final ResultCache resultCache;
+
+    /** Supplies the current collections, from which results are rendered again. */
+    @Nonnull
+    private final Supplier<Collection<IdentifiedItemCollection<T>>> collections;
+
+    /** Renders a collection again, replacing its cached result. */
+    @Nonnull
+    private final Consumer<IdentifiedItemCollection<T>> render;
+
+    /** Executor on which the cache is checked for results which are due. */
+    @Nonnull
+    private final ScheduledExecutorService scanExecutor;
+
+    /** Executor on which results are rendered again. */
+    @Nonnull
+    private final ExecutorService renderExecutor;
+
+    /** Content digests of the collections waiting to be rendered again. */
+    @Nonnull
+    private final Set<String> rerendering = ConcurrentHashMap.newKeySet();
+
+    /** Number of results rendered again. */
+    @Nonnull
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param name prefix for the names of the threads
+     * @param validity validity window of a rendered result
+     * @param fraction fraction of the validity window after which a result is rendered again
+     * @param cache cache holding the results
+     * @param current supplies the current collections
+     * @param renderer renders a collection again, replacing its cached result
+     */
+    ResultRerenderer(@Nonnull final String name, @Nonnull final Duration validity, final double fraction,
+            @Nonnull final ResultCache cache, @Nonnull final Supplier<Collection<IdentifiedItemCollection<T>>> current,
+            @Nonnull final Consumer<IdentifiedItemCollection<T>> renderer) {
+        final long validityNanos = validity.toNanos();
+        thresholdNanos = (long) (validityNanos * fraction);
+        jitterNanos = (validityNanos - thresholdNanos) / 4;
+        resultCache = cache;
+        collections = current;
+        render = renderer;
+
+        scanExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-rerender-scan").setDaemon(true).build());
+        renderExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-rerender").setDaemon(true).build());
+
+        // check often enough that no result is left long after it falls due
+        final long intervalNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1),
+                Math.min(MAX_SCAN_INTERVAL.toNanos(), thresholdNanos / 100));
+        scanExecutor.scheduleWithFixedDelay(this::scan, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the time at which a result is due to be rendered again.
+     *
+     * @param result the result
+     *
+     * @return the time at which the result is due, or <code>null</code> if it is never due
+     */
+    @Nullable
+    private Instant dueTime(@Nonnull final ServiceResult result) {
+        final Instant rendered = result.getRendered();
+        final String digest = result.getDigest();
+        if (rendered == null || digest == null) {
+            return null;
+        }
+        final double spread = (digest.hashCode() & Integer.MAX_VALUE) / (double) Integer.MAX_VALUE;
+        return rendered.plusNanos(thresholdNanos + (long) (jitterNanos * spread));
+    }
+
+    /**
+     * Check the cache for results which are due, and queue each of them to be rendered again.
+     */
+    private void scan() {
+        try {
+            final Instant now = Instant.now();
+            Map<String, IdentifiedItemCollection<T>> byDigest = null;
+            for (final ServiceResult result : resultCache.results()) {
+                final Instant due = dueTime(result);
+                if (due == null || now.isBefore(due)) {
+                    continue;
+                }
+                if (byDigest == null) {
+                    byDigest = new HashMap<>();
+                    for (final IdentifiedItemCollection<T> collection : collections.get()) {
+                        byDigest.putIfAbsent(collection.getDigest(), collection);
+                    }
+                }
+                // results for superseded collections are left to be discarded
+                final IdentifiedItemCollection<T> collection = byDigest.get(result.getDigest());
+                if (collection != null) {
+                    rerender(collection);
+                }
+            }
+        } catch (final RuntimeException e) {
+            // an exception would prevent any further scans
+            log.warn("re-render scan failed", e);
+        }
+    }
+
+    /**
+     * Render an {@link IdentifiedItemCollection} again in the background, unless it is
+     * already waiting to be rendered.
+     *
+     * @param collection the collection to render
+     */
+    private void rerender(@Nonnull final IdentifiedItemCollection<T> collection) {
+        final String digest = collection.getDigest();
+        if (!rerendering.add(digest)) {
+            return;
+        }
+        try {
+            renderExecutor.execute(() -> {
+                try {
+                    log.debug("rendering {} again ahead of expiry", collection.getIdentifiers());
+                    render.accept(collection);
+                    count.incrementAndGet();
+                } catch (final RuntimeException e) {
+                    log.warn("background re-render failed for {}", collection.getIdentifiers(), e);
+                } finally {
+                    rerendering.remove(digest);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            rerendering.remove(digest);
+        }
+    }
+
+    /**
+     * Returns the number of results rendered again.
+     *
+     * @return the number of results rendered again
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Stop rendering results again.
+     */
+    void shutdown() {
+        scanExecutor.shutdownNow();
+        renderExecutor.shutdownNow();
+    }
+}
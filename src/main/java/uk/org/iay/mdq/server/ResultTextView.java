@@ -30,6 +30,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.http.MediaType;
 import org.springframework.web.servlet.View;
 
+import com.google.common.net.HttpHeaders;
+
 /**
  * Render a query result in a text format for diagnostic purposes.
  */
@@ -55,13 +57,28 @@ public class ResultTextView implements View {
             return;
         }
 
+        if (result.getRetryAfter() != null) {
+            ResultRawView.sendBusy(result, response);
+            return;
+        }
+
+        final Representation norm = result.getRepresentation();
+        if (!norm.retain()) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, "0");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        final byte[] bytes;
+        try {
+            bytes = norm.getBytes();
+        } finally {
+            norm.release();
+        }
+
         final OutputStream out = response.getOutputStream();
 
         response.setContentType(new MediaType("text", "plain", Charset.forName("UTF-8")).toString());
         final Writer w = new OutputStreamWriter(out, Charset.forName("UTF-8"));
-
-        final Representation norm = result.getRepresentation();
-        final byte[] bytes = norm.getBytes();
         w.write("Query result is:\n");
         w.write("   " + bytes.length + " bytes\n");
         w.write("   ETag is " + norm.getETag() + "\n");
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.lang.ref.Cleaner;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Representation of the result of a query, as rendered and cached by a {@link MetadataService}.
+ */
+class ServiceResult implements Result {
+
+    /** Releases results which are no longer owned by the cache once they are unreachable. */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * The default, uncompressed {@link Representation} for the {@link Result}.
+     *
+     * <p><code>null</code> is used if no results were found.</p>
+     */
+    @Nullable
+    private final Representation representation;
+
+    /**
+     * Compressed {@link Representation}s, indexed by content encoding.
+     *
+     * These are generated in the background after the result is rendered.
+     */
+    @Nonnull
+    private final Map<String, Representation> representations = new ConcurrentHashMap<>();
+
+    /** Whether the {@link Representation}s of this result have been released. */
+    @Nonnull
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /** Whether this result is released when it becomes unreachable, rather than by {@link #release}. */
+    @Nonnull
+    private final AtomicBoolean unowned = new AtomicBoolean();
+
+    /**
+     * The identifiers which can be used to retrieve this {@link Result}.
+     * <code>null</code> will be used for the "not found" and "all entities" results.
+     */
+    @Nullable
+    private final Collection<String> identifiers;
+    
+    /** Source generation for this rendered result. */
+    private final long generation;
+
+    /**
+     * Content digest of the {@link IdentifiedItemCollection} this result was rendered from,
+     * which is also its key in the result cache.
+     *
+     * <code>null</code> is used for the "not found" result.
+     */
+    @Nullable
+    private final String digest;
+
+    /**
+     * Time at which the content of this result last changed: the later of the time the content
+     * of the collection it was rendered from last changed and the time it was rendered, as each
+     * rendering has its own <code>validUntil</code> and signature.
+     *
+     * <code>null</code> is used for the "not found" result.
+     */
+    @Nullable
+    private final Instant lastModified;
+
+    /**
+     * Time at which this result was rendered.
+     *
+     * <code>null</code> is used for the "not found" result.
+     */
+    @Nullable
+    private final Instant rendered;
+
+    /**
+     * Moves each newly generated {@link Representation} to the storage used for the result.
+     *
+     * <code>null</code> is used for the "not found" result.
+     */
+    @Nullable
+    private final UnaryOperator<Representation> storage;
+    
+    /**
+     * Constructor.
+     *
+     * @param rep the uncompressed {@link Representation} of the result
+     * @param encoded compressed {@link Representation}s already available for the result
+     * @param collection {@link IdentifiedItemCollection} the result was rendered from
+     * @param renderTime time at which the result was rendered
+     * @param store moves each newly generated {@link Representation} to the storage used for the result
+     */
+    ServiceResult(@Nonnull final Representation rep, @Nonnull final Collection<Representation> encoded,
+            @Nonnull final IdentifiedItemCollection<?> collection, @Nonnull final Instant renderTime,
+            @Nonnull final UnaryOperator<Representation> store) {
+        storage = store;
+        rendered = renderTime;
+        representation = store.apply(rep);
+        for (final Representation encodedRep : encoded) {
+            representations.put(encodedRep.getContentEncoding(), store.apply(encodedRep));
+        }
+        generation = collection.getGeneration();
+        digest = collection.getDigest();
+        // HTTP dates have a resolution of one second
+        final Instant renderSecond = renderTime.truncatedTo(ChronoUnit.SECONDS);
+        lastModified = renderSecond.isAfter(collection.getLastModified())
+                ? renderSecond : collection.getLastModified();
+        final Collection<String> ids = collection.getIdentifiers();
+        if (ids != null) {
+            identifiers = new ArrayList<>();
+            identifiers.addAll(ids);
+        } else {
+            identifiers = null;
+        }
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * Represent a query for which no results were found.
+     */
+    ServiceResult() {
+        representation = null;
+        identifiers = null;
+        generation = 0;
+        digest = null;
+        lastModified = null;
+        rendered = null;
+        storage = null;
+    }
+    
+    /**
+     * Returns the source generation for this rendered result.
+     * 
+     * @return the source generation
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the content digest of the collection this result was rendered from.
+     *
+     * @return the content digest, or <code>null</code> for the "not found" result
+     */
+    @Nullable
+    public String getDigest() {
+        return digest;
+    }
+
+    @Override
+    @Nullable
+    public Instant getLastModified() {
+        return lastModified;
+    }
+    
+    /**
+     * Returns the time at which this result was rendered.
+     *
+     * @return the time at which this result was rendered, or <code>null</code> for the
+     *      "not found" result
+     */
+    @Nullable
+    public Instant getRendered() {
+        return rendered;
+    }
+
+    @Override
+    public boolean isNotFound() {
+        return representation == null;
+    }
+
+    @Override
+    @Nonnull
+    public Representation getRepresentation() {
+        return representation;
+    }
+
+    /**
+     * Returns the total size of all of the {@link Representation}s generated so far
+     * for this result.
+     *
+     * @return the total size in bytes
+     */
+    public long getSize() {
+        if (representation == null) {
+            return 0;
+        }
+        long size = representation.getLength();
+        for (final Representation rep : representations.values()) {
+            size += rep.getLength();
+        }
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p><code>null</code> is returned until the compressed form has been generated.</p>
+     */
+    @Override
+    @Nullable
+    public Representation getGZIPRepresentation() {
+        return representations.get(GZIPRepresentation.ENCODING);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p><code>null</code> is returned until the compressed form has been generated.</p>
+     */
+    @Override
+    @Nullable
+    public Representation getDeflateRepresentation() {
+        return representations.get(DeflateRepresentation.ENCODING);
+    }
+
+    /**
+     * Generates any compressed {@link Representation}s which do not yet exist.
+     *
+     * Generating a new {@link Representation} changes the size of the result, which
+     * is reported so that the result's cache entry can reflect its new weight.
+     * If several threads compress the same result at the same time, each form
+     * is only generated once.
+     *
+     * @param encodings the content encodings to generate
+     * @param compressor generates each compressed {@link Representation}
+     * @param resized called each time the size of the result changes
+     *
+     * @return <code>true</code> if any {@link Representation} was generated
+     */
+    boolean compress(@Nonnull final List<String> encodings, @Nonnull final RepresentationCompressor compressor,
+            @Nonnull final Consumer<ServiceResult> resized) {
+        if (representation == null || !representation.retain()) {
+            return false;
+        }
+        boolean generated = false;
+        try {
+            for (final String encoding : encodings) {
+                if (!representations.containsKey(encoding)) {
+                    representations.computeIfAbsent(encoding,
+                            e -> storage.apply(compressor.compress(e, representation.getByteBuffer())));
+                    resized.accept(this);
+                    generated = true;
+                }
+            }
+        } finally {
+            representation.release();
+        }
+        if (released.get()) {
+            // released while we were compressing; don't leave anything we added behind
+            releaseEncodedRepresentations(representations);
+        }
+        return generated;
+    }
+
+    /**
+     * Writes the result to a persistent store.
+     *
+     * Nothing is written if the result has already been released.
+     *
+     * @param store the store to write the result to
+     */
+    void persist(@Nonnull final DiskResultStore store) {
+        if (representation == null || !representation.retain()) {
+            return;
+        }
+        final List<Representation> encoded = new ArrayList<>();
+        try {
+            for (final Representation rep : representations.values()) {
+                if (rep.retain()) {
+                    encoded.add(rep);
+                }
+            }
+            store.write(digest, representation, encoded, rendered);
+        } finally {
+            representation.release();
+            encoded.forEach(Representation::release);
+        }
+    }
+
+    /**
+     * Releases the {@link Representation}s of this result once it can no longer be
+     * returned by the service.
+     *
+     * Callers which have already retained a {@link Representation} can continue to use it
+     * until they release it.
+     */
+    void release() {
+        if (!unowned.get()) {
+            releaseRepresentations(released, representation, representations);
+        }
+    }
+
+    /**
+     * Arranges for the {@link Representation}s of this result to be released once the result
+     * itself is no longer reachable, rather than by {@link #release}.
+     *
+     * This is used for a result which can not be cached, or can no longer be cached, but
+     * which may still be in the hands of callers which have not yet retained a
+     * {@link Representation}.
+     */
+    void releaseWhenUnreachable() {
+        if (representation != null && unowned.compareAndSet(false, true)) {
+            // the cleaning action must not refer to this result, or it would never become unreachable
+            final AtomicBoolean releasedFlag = released;
+            final Representation rep = representation;
+            final Map<String, Representation> reps = representations;
+            CLEANER.register(this, () -> releaseRepresentations(releasedFlag, rep, reps));
+        }
+    }
+
+    /**
+     * Releases the {@link Representation}s of a result, unless they have already been released.
+     *
+     * @param released whether the {@link Representation}s have been released
+     * @param representation the uncompressed {@link Representation}, or <code>null</code>
+     * @param representations the compressed {@link Representation}s
+     */
+    private static void releaseRepresentations(@Nonnull final AtomicBoolean released,
+            @Nullable final Representation representation,
+            @Nonnull final Map<String, Representation> representations) {
+        if (representation != null && released.compareAndSet(false, true)) {
+            representation.release();
+            releaseEncodedRepresentations(representations);
+        }
+    }
+
+    /**
+     * Releases each compressed {@link Representation}, removing it from the result.
+     *
+     * @param representations the compressed {@link Representation}s
+     */
+    private static void releaseEncodedRepresentations(@Nonnull final Map<String, Representation> representations) {
+        for (final Map.Entry<String, Representation> entry : representations.entrySet()) {
+            // removal succeeds only once for each representation
+            if (representations.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().release();
+            }
+        }
+    }
+
+    @Override
+    @Nonnull
+    public Collection<Representation> getEncodedRepresentations() {
+        return Collections.unmodifiableCollection(representations.values());
+    }
+
+    @Override
+    @Nullable
+    public Collection<String> getIdentifiers() {
+        return identifiers;
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.cryptacular.util.CodecUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Representation} whose content is written to a spool file as it is generated,
+ * and then mapped into memory from that file.
+ *
+ * The content is never held in the Java heap as a whole, so the memory needed to generate
+ * it does not depend on its size. The content is reference counted in the same way as that
+ * of an {@link OffHeapRepresentation}: the spool file is unmapped and deleted as soon as the
+ * last reference is released.
+ */
+public class SpooledRepresentation implements Representation {
+
+    /**
+     * Writes the content of a {@link SpooledRepresentation}.
+     */
+    @FunctionalInterface
+    public interface ContentWriter {
+
+        /**
+         * Write the content to an output stream.
+         *
+         * @param out the output stream to write to
+         *
+         * @throws IOException if the content can not be written
+         */
+        void write(@Nonnull OutputStream out) throws IOException;
+    }
+
+    /** Prefix for the names of spool files. */
+    private static final String PREFIX = "spool-";
+
+    /** Suffix for the names of spool files. */
+    private static final String SUFFIX = ".tmp";
+
+    /** Size of the buffer used when writing a spool file. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Class logger. */
+    private static Logger log = LoggerFactory.getLogger(SpooledRepresentation.class);
+
+    /** The spool file holding the content. */
+    @Nonnull
+    private final Path file;
+
+    /** The content, mapped from the spool file. */
+    @Nonnull
+    private final MappedByteBuffer buffer;
+
+    /** <code>ETag</code> value for this representation. */
+    @Nonnull
+    private final String etag;
+
+    /** Number of references held to the content. */
+    @Nonnull
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Constructor.
+     *
+     * @param directory directory in which to create the spool file
+     * @param writer writes the content of the representation
+     *
+     * @throws IOException if the spool file can not be written
+     */
+    public SpooledRepresentation(@Nonnull final Path directory, @Nonnull final ContentWriter writer)
+            throws IOException {
+        file = Files.createTempFile(directory, PREFIX, SUFFIX);
+        try {
+            final MessageDigest digest = newDigest();
+            try (OutputStream out = new BufferedOutputStream(
+                    new DigestOutputStream(Files.newOutputStream(file), digest), BUFFER_SIZE)) {
+                writer.write(out);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("spooled representation is too large to map");
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            etag = "\"" + CodecUtil.hex(digest.digest()) + "\"";
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Create a digest for the content, to be used as its <code>ETag</code>.
+     *
+     * This is the same digest as used by {@link BaseRepresentation}, so that the content
+     * has the same <code>ETag</code> whether or not it is spooled.
+     *
+     * @return a new SHA-1 {@link MessageDigest}
+     */
+    @Nonnull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Delete any spool files left in a directory by a previous process.
+     *
+     * @param directory the spool directory
+     *
+     * @throws IOException if the directory can not be read
+     */
+    public static void deleteSpoolFiles(@Nonnull final Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (final Path spool : files) {
+                log.debug("deleting abandoned spool file {}", spool);
+                Files.deleteIfExists(spool);
+            }
+        }
+    }
+
+    /**
+     * Check that the content has not been released.
+     */
+    private void checkLive() {
+        if (references.get() <= 0) {
+            throw new IllegalStateException("representation has been released");
+        }
+    }
+
+    @Override
+    @Nonnull
+    public String getETag() {
+        return etag;
+    }
+
+    @Override
+    @Nullable
+    public String getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    @Nonnull
+    public byte[] getBytes() {
+        checkLive();
+        final byte[] bytes = new byte[buffer.capacity()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Override
+    @Nonnull
+    public ByteBuffer getByteBuffer() {
+        checkLive();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public int getLength() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public boolean retain() {
+        int count = references.get();
+        while (count > 0) {
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+            count = references.get();
+        }
+        return false;
+    }
+
+    @Override
+    public void release() {
+        final int count = references.decrementAndGet();
+        if (count == 0) {
+            // unmap first: some platforms will not delete a file which is still mapped
+            OffHeapRepresentation.free(buffer);
+            try {
+                Files.deleteIfExists(file);
+            } catch (final IOException e) {
+                log.warn("could not delete spool file {}", file, e);
+            }
+        } else if (count < 0) {
+            throw new IllegalStateException("representation released more often than retained");
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Instant;
+import java.util.Collection;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Result} from a superseded generation, served while the current result is rendered.
+ */
+final class StaleResult implements Result {
+
+    /** The superseded result being served. */
+    @Nonnull
+    private final Result result;
+
+    /**
+     * Constructor.
+     *
+     * @param superseded the superseded result to serve
+     */
+    StaleResult(@Nonnull final Result superseded) {
+        result = superseded;
+    }
+
+    @Override
+    public boolean isNotFound() {
+        return result.isNotFound();
+    }
+
+    @Override
+    @Nonnull
+    public Representation getRepresentation() {
+        return result.getRepresentation();
+    }
+
+    @Override
+    @Nullable
+    public Representation getGZIPRepresentation() {
+        return result.getGZIPRepresentation();
+    }
+
+    @Override
+    @Nullable
+    public Representation getDeflateRepresentation() {
+        return result.getDeflateRepresentation();
+    }
+
+    @Override
+    @Nonnull
+    public Collection<Representation> getEncodedRepresentations() {
+        return result.getEncodedRepresentations();
+    }
+
+    @Override
+    @Nullable
+    public Collection<String> getIdentifiers() {
+        return result.getIdentifiers();
+    }
+
+    @Override
+    @Nullable
+    public Instant getLastModified() {
+        return result.getLastModified();
+    }
+
+    @Override
+    public boolean isStale() {
+        return true;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Serves results from a superseded generation while the current results are rendered
+ * in the background.
+ *
+ * @param <T> item type of the metadata served
+ */
+final class StaleResults<T> {
+
+    /**
+     * The collections superseded by the most recent refresh of the library.
+     */
+    private final class SupersededCollections {
+
+        /** The superseded collections, indexed by identifier. */
+        @Nonnull
+        private final Map<String, IdentifiedItemCollection<T>> collections;
+
+        /** Time after which results for the superseded collections may no longer be served. */
+        @Nonnull
+        private final Instant expires;
+
+        /**
+         * Constructor.
+         *
+         * @param previous the superseded collections, indexed by identifier
+         * @param expiry time after which results for the collections may no longer be served
+         */
+        SupersededCollections(@Nonnull final Map<String, IdentifiedItemCollection<T>> previous,
+                @Nonnull final Instant expiry) {
+            collections = previous;
+            expires = expiry;
+        }
+    }
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(StaleResults.class);
+
+    /** Maximum time for which a result from a superseded generation may be served. */
+    @Nonnull
+    private final Duration maxStaleness;
+
+    /** Cache holding both the superseded and the current results. */
+    @Nonnull
+    private final ResultCache resultCache;
+
+    /** Renders the current result for a collection, and caches it. */
+    @Nonnull
+    private final BiConsumer<String, IdentifiedItemCollection<T>> render;
+
+    /** Executor on which stale results are revalidated. */
+    @Nonnull
+    private final ExecutorService revalidationExecutor;
+
+    /** Content digests of the collections being revalidated. */
+    @Nonnull
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+    /** The collections superseded by the most recent refresh, or <code>null</code> if none. */
+    @Nullable
+    private volatile SupersededCollections superseded;
+
+    /** Number of stale results served. */
+    @Nonnull
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param name prefix for the names of the revalidation threads
+     * @param staleness maximum time for which a result from a superseded generation may be served
+     * @param cache cache holding both the superseded and the current results
+     * @param renderer renders the current result for a collection, given the identifier
+     *      requested, and caches it
+     */
+    StaleResults(@Nonnull final String name, @Nonnull final Duration staleness, @Nonnull final ResultCache cache,
+            @Nonnull final BiConsumer<String, IdentifiedItemCollection<T>> renderer) {
+        maxStaleness = staleness;
+        resultCache = cache;
+        render = renderer;
+        revalidationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder().setNameFormat(name + "-revalidate-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Record that the current collections are about to be superseded.
+     *
+     * @param previous the collections being superseded, indexed by identifier
+     */
+    void supersede(@Nonnull final Map<String, IdentifiedItemCollection<T>> previous) {
+        superseded = new SupersededCollections(previous, Instant.now().plus(maxStaleness));
+    }
+
+    /**
+     * Look for a result from the superseded generation to serve while the current
+     * result is rendered in the background.
+     *
+     * @param identifier identifier for which metadata is requested
+     * @param identifiedItemCollection the current collection for that identifier
+     *
+     * @return the stale result, or <code>null</code> if the current result is available
+     *      or no stale result may be served
+     */
+    @Nullable
+    Result get(@Nonnull final String identifier,
+            @Nonnull final IdentifiedItemCollection<T> identifiedItemCollection) {
+        if (resultCache.contains(identifiedItemCollection.getDigest())) {
+            return null;
+        }
+
+        final ServiceResult previousResult = getSupersededResult(identifier);
+        if (previousResult == null) {
+            return null;
+        }
+
+        revalidate(identifier, identifiedItemCollection);
+        count.incrementAndGet();
+        log.debug("serving stale result for {}", identifier);
+        return new StaleResult(previousResult);
+    }
+
+    /**
+     * Look for a result from the superseded generation to serve when the current result
+     * can not be rendered.
+     *
+     * As for {@link #get}, a result is only served within the maximum staleness of the
+     * refresh superseding it.
+     *
+     * @param identifier identifier for which metadata is requested
+     *
+     * @return the stale result, or <code>null</code> if none may be served
+     */
+    @Nullable
+    Result getSuperseded(@Nonnull final String identifier) {
+        final ServiceResult previousResult = getSupersededResult(identifier);
+        if (previousResult == null) {
+            return null;
+        }
+        count.incrementAndGet();
+        log.debug("serving superseded result for {}", identifier);
+        return new StaleResult(previousResult);
+    }
+
+    /**
+     * Returns the cached result for an identifier's superseded collection, if it may
+     * still be served.
+     *
+     * @param identifier identifier for which metadata is requested
+     *
+     * @return the cached result, or <code>null</code> if there is none or the collections
+     *      were superseded more than the maximum staleness ago
+     */
+    @Nullable
+    private ServiceResult getSupersededResult(@Nonnull final String identifier) {
+        final SupersededCollections previous = superseded;
+        if (previous == null || Instant.now().isAfter(previous.expires)) {
+            return null;
+        }
+        final IdentifiedItemCollection<T> previousCollection = previous.collections.get(identifier);
+        if (previousCollection == null) {
+            return null;
+        }
+        return resultCache.peek(previousCollection.getDigest());
+    }
+
+    /**
+     * Render an {@link IdentifiedItemCollection} in the background, unless it is already
+     * being revalidated.
+     *
+     * @param identifier identifier for which metadata is requested, used for logging
+     * @param identifiedItemCollection the collection to render
+     */
+    private void revalidate(@Nonnull final String identifier,
+            @Nonnull final IdentifiedItemCollection<T> identifiedItemCollection) {
+        final String digest = identifiedItemCollection.getDigest();
+        if (!revalidating.add(digest)) {
+            return;
+        }
+        try {
+            revalidationExecutor.execute(() -> {
+                try {
+                    render.accept(identifier, identifiedItemCollection);
+                } catch (final RuntimeException e) {
+                    log.warn("background render failed for {}", identifier, e);
+                } finally {
+                    revalidating.remove(digest);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            revalidating.remove(digest);
+        }
+    }
+
+    /**
+     * Returns the number of stale results served.
+     *
+     * @return the number of stale results served
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Stop revalidating results, and forget the superseded collections.
+     */
+    void shutdown() {
+        revalidationExecutor.shutdownNow();
+        superseded = null;
+    }
+}
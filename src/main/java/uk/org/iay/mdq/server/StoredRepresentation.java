@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Representation} restored from a {@link DiskResultStore}.
+ */
+public class StoredRepresentation extends BaseRepresentation {
+
+    /** Content encoding of the representation, or <code>null</code> if it is not encoded. */
+    @Nullable
+    private final String contentEncoding;
+
+    /**
+     * Constructor.
+     *
+     * @param repBytes <code>byte</code> array constituting this representation
+     * @param encoding content encoding of the representation, or <code>null</code>
+     */
+    protected StoredRepresentation(@Nonnull final byte[] repBytes, @Nullable final String encoding) {
+        super(repBytes);
+        contentEncoding = encoding;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+}
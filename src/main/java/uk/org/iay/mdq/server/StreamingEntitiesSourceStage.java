@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * A source stage which reads a SAML metadata aggregate from a {@link Resource} and
+ * produces an item for each <code>EntityDescriptor</code> within it.
+ *
+ * This has the same effect as a <code>DOMResourceSourceStage</code> followed by an
+ * <code>EntitiesDescriptorDisassemblerStage</code>, but the aggregate is read as a stream
+ * and only one entity's DOM is built at a time. Memory used while acquiring the aggregate
+ * is therefore proportional to the largest entity, rather than to the whole aggregate.
+ *
+ * Each entity's document element declares all of the namespaces in scope at that point
+ * in the aggregate, so that prefixes used in attribute values and element content still
+ * resolve. An entity without its own <code>mdrpi:RegistrationInfo</code> is given a copy
+ * of the one in the <code>Extensions</code> of the nearest enclosing
+ * <code>EntitiesDescriptor</code> which has one.
+ *
+ * As the aggregate is never held as a whole, its signature can not be verified by a
+ * later stage. This stage is intended for aggregates from a trusted source.
+ */
+public class StreamingEntitiesSourceStage extends AbstractStage<Element> {
+
+    /** Namespace of the SAML metadata registration and publication information extensions. */
+    private static final String MDRPI_NS = "urn:oasis:names:tc:SAML:metadata:rpi";
+
+    /** Namespace of XML digital signatures. */
+    private static final String XMLDSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    /** Name of the <code>EntitiesDescriptor</code> element. */
+    private static final QName ENTITIES_DESCRIPTOR = new QName(SAMLMetadataSupport.MD_NS, "EntitiesDescriptor");
+
+    /** Name of the <code>EntityDescriptor</code> element. */
+    private static final QName ENTITY_DESCRIPTOR = new QName(SAMLMetadataSupport.MD_NS, "EntityDescriptor");
+
+    /** Name of the <code>Extensions</code> element. */
+    private static final QName EXTENSIONS = new QName(SAMLMetadataSupport.MD_NS, "Extensions");
+
+    /** Name of the <code>Signature</code> element. */
+    private static final QName SIGNATURE = new QName(XMLDSIG_NS, "Signature");
+
+    /** Name of the <code>RegistrationInfo</code> element. */
+    private static final QName REGISTRATION_INFO = new QName(MDRPI_NS, "RegistrationInfo");
+
+    /**
+     * An element enclosing the entity currently being read.
+     */
+    private static final class Frame {
+
+        /** Name of the element. */
+        @Nonnull
+        private final QName name;
+
+        /** Namespaces declared on the element, indexed by prefix. */
+        @Nonnull
+        private final Map<String, String> namespaces;
+
+        /**
+         * Registration information declared in the element's extensions, or <code>null</code>.
+         *
+         * This is only ever set for an <code>EntitiesDescriptor</code>.
+         */
+        @Nullable
+        private Element registrationInfo;
+
+        /**
+         * Constructor.
+         *
+         * @param reader reader positioned at the start of the element
+         */
+        Frame(@Nonnull final XMLStreamReader reader) {
+            name = reader.getName();
+            namespaces = new LinkedHashMap<>();
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                namespaces.put(nullToEmpty(reader.getNamespacePrefix(i)), nullToEmpty(reader.getNamespaceURI(i)));
+            }
+        }
+    }
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(StreamingEntitiesSourceStage.class);
+
+    /** The resource from which the aggregate is read. */
+    @Nullable
+    private Resource resource;
+
+    /** Factory for the readers used to stream the aggregate. */
+    private XMLInputFactory inputFactory;
+
+    /** Factory for the builders used to create each entity's document. */
+    private DocumentBuilderFactory documentBuilderFactory;
+
+    /**
+     * Gets the resource from which the aggregate is read.
+     *
+     * @return the resource
+     */
+    @Nullable
+    public Resource getResource() {
+        return resource;
+    }
+
+    /**
+     * Sets the resource from which the aggregate is read.
+     *
+     * @param source the resource
+     */
+    public void setResource(@Nonnull final Resource source) {
+        checkSetterPreconditions();
+        resource = Constraint.isNotNull(source, "resource may not be null");
+    }
+
+    /**
+     * Returns an empty string in place of <code>null</code>.
+     *
+     * StAX implementations differ in whether they return <code>null</code> or an
+     * empty string for a missing prefix or namespace.
+     *
+     * @param s the string
+     *
+     * @return the string, or an empty string if it is <code>null</code>
+     */
+    @Nonnull
+    private static String nullToEmpty(@Nullable final String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * Returns a qualified name from a prefix and a local name.
+     *
+     * @param prefix the prefix, which may be empty or <code>null</code>
+     * @param localName the local name
+     *
+     * @return the qualified name
+     */
+    @Nonnull
+    private static String qualifiedName(@Nullable final String prefix, @Nonnull final String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * Returns the qualified name of the attribute declaring a namespace prefix.
+     *
+     * @param prefix the prefix, which is empty for the default namespace
+     *
+     * @return the qualified name of the attribute
+     */
+    @Nonnull
+    private static String namespaceAttribute(@Nonnull final String prefix) {
+        return prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+    }
+
+    /**
+     * Returns whether a DOM node is an element with a given name.
+     *
+     * @param node the node
+     * @param name the name
+     *
+     * @return <code>true</code> if the node is an element with that name
+     */
+    private static boolean isElement(@Nullable final Node node, @Nonnull final QName name) {
+        return node != null && node.getNodeType() == Node.ELEMENT_NODE
+                && name.getNamespaceURI().equals(node.getNamespaceURI())
+                && name.getLocalPart().equals(node.getLocalName());
+    }
+
+    /**
+     * Returns the first child element of a DOM element.
+     *
+     * @param element the element
+     *
+     * @return the first child element, or <code>null</code> if there is none
+     */
+    @Nullable
+    private static Element firstChildElement(@Nonnull final Element element) {
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next sibling element of a DOM element.
+     *
+     * @param element the element
+     *
+     * @return the next sibling element, or <code>null</code> if there is none
+     */
+    @Nullable
+    private static Element nextSiblingElement(@Nonnull final Element element) {
+        for (Node sibling = element.getNextSibling(); sibling != null; sibling = sibling.getNextSibling()) {
+            if (sibling.getNodeType() == Node.ELEMENT_NODE) {
+                return (Element) sibling;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the namespaces in scope within the element at the top of a stack of frames.
+     *
+     * @param frames the enclosing elements, outermost first
+     *
+     * @return the namespaces in scope, indexed by prefix
+     */
+    @Nonnull
+    private static Map<String, String> namespacesInScope(@Nonnull final List<Frame> frames) {
+        final Map<String, String> namespaces = new LinkedHashMap<>();
+        for (final Frame frame : frames) {
+            namespaces.putAll(frame.namespaces);
+        }
+        return namespaces;
+    }
+
+    /**
+     * Returns the registration information which applies within the element at the top
+     * of a stack of frames.
+     *
+     * @param frames the enclosing elements, outermost first
+     *
+     * @return the registration information, or <code>null</code> if there is none
+     */
+    @Nullable
+    private static Element inheritedRegistrationInfo(@Nonnull final List<Frame> frames) {
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            if (frames.get(i).registrationInfo != null) {
+                return frames.get(i).registrationInfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Build a DOM element from the element at which a reader is positioned, including
+     * its content.
+     *
+     * On return, the reader is positioned at the end of the element.
+     *
+     * @param reader reader positioned at the start of an element
+     * @param document document to which the new element is added as the document element
+     * @param inherited namespaces in scope at the element's position in the aggregate,
+     *      to be declared on the new element unless it declares them itself
+     *
+     * @return the new element
+     *
+     * @throws XMLStreamException if the aggregate can not be read
+     */
+    @Nonnull
+    private static Element buildElement(@Nonnull final XMLStreamReader reader, @Nonnull final Document document,
+            @Nonnull final Map<String, String> inherited) throws XMLStreamException {
+        Element root = null;
+        Node parent = document;
+        int depth = 0;
+        while (true) {
+            switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    final Element element = document.createElementNS(
+                            reader.getNamespaceURI() == null || reader.getNamespaceURI().isEmpty()
+                                    ? null : reader.getNamespaceURI(),
+                            qualifiedName(reader.getPrefix(), reader.getLocalName()));
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                namespaceAttribute(nullToEmpty(reader.getNamespacePrefix(i))),
+                                nullToEmpty(reader.getNamespaceURI(i)));
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        final String namespace = reader.getAttributeNamespace(i);
+                        element.setAttributeNS(namespace == null || namespace.isEmpty() ? null : namespace,
+                                qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                                reader.getAttributeValue(i));
+                    }
+                    if (root == null) {
+                        root = element;
+                        declareNamespaces(root, inherited);
+                    }
+                    parent.appendChild(element);
+                    parent = element;
+                    depth++;
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    parent = parent.getParentNode();
+                    depth--;
+                    if (depth == 0) {
+                        return root;
+                    }
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    parent.appendChild(document.createTextNode(reader.getText()));
+                    break;
+
+                case XMLStreamConstants.CDATA:
+                    parent.appendChild(document.createCDATASection(reader.getText()));
+                    break;
+
+                case XMLStreamConstants.COMMENT:
+                    parent.appendChild(document.createComment(reader.getText()));
+                    break;
+
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    parent.appendChild(document.createProcessingInstruction(reader.getPITarget(),
+                            reader.getPIData()));
+                    break;
+
+                default:
+                    break;
+            }
+            reader.next();
+        }
+    }
+
+    /**
+     * Declare namespaces on an element, unless it already declares the same prefixes.
+     *
+     * @param element the element
+     * @param namespaces the namespaces to declare, indexed by prefix
+     */
+    private static void declareNamespaces(@Nonnull final Element element,
+            @Nonnull final Map<String, String> namespaces) {
+        for (final Map.Entry<String, String> entry : namespaces.entrySet()) {
+            final String prefix = entry.getKey();
+            // an empty default namespace is the same as no declaration at all
+            if (prefix.isEmpty() && entry.getValue().isEmpty()) {
+                continue;
+            }
+            final String localName = prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : prefix;
+            if (!element.hasAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, localName)) {
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, namespaceAttribute(prefix),
+                        entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Give an entity a copy of inherited registration information, unless it has its own.
+     *
+     * @param entity the entity's <code>EntityDescriptor</code> element
+     * @param registrationInfo the inherited <code>RegistrationInfo</code> element
+     */
+    private static void inheritRegistrationInfo(@Nonnull final Element entity,
+            @Nonnull final Element registrationInfo) {
+        // the Extensions element follows any Signature, and precedes everything else
+        Element first = firstChildElement(entity);
+        if (isElement(first, SIGNATURE)) {
+            first = nextSiblingElement(first);
+        }
+
+        final Element extensions;
+        if (isElement(first, EXTENSIONS)) {
+            extensions = first;
+            for (Element child = firstChildElement(extensions); child != null; child = nextSiblingElement(child)) {
+                if (isElement(child, REGISTRATION_INFO)) {
+                    return;
+                }
+            }
+        } else {
+            final Document document = entity.getOwnerDocument();
+            extensions = document.createElementNS(SAMLMetadataSupport.MD_NS,
+                    qualifiedName(entity.getPrefix(), EXTENSIONS.getLocalPart()));
+            entity.insertBefore(extensions, first);
+        }
+        extensions.appendChild(entity.getOwnerDocument().importNode(registrationInfo, true));
+    }
+
+    @Override
+    protected void doExecute(@Nonnull final List<Item<Element>> items) throws StageProcessingException {
+        final DocumentBuilder documentBuilder;
+        try {
+            documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        } catch (final ParserConfigurationException e) {
+            throw new StageProcessingException("could not create document builder", e);
+        }
+
+        int count = 0;
+        try (final InputStream in = resource.getInputStream()) {
+            final XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                // elements enclosing the current position, outermost first
+                final List<Frame> frames = new ArrayList<>();
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        final QName name = reader.getName();
+                        if (ENTITY_DESCRIPTOR.equals(name)) {
+                            final Document document = documentBuilder.newDocument();
+                            final Element entity = buildElement(reader, document, namespacesInScope(frames));
+                            final Element registrationInfo = inheritedRegistrationInfo(frames);
+                            if (registrationInfo != null) {
+                                inheritRegistrationInfo(entity, registrationInfo);
+                            }
+                            items.add(new DOMElementItem(document));
+                            count++;
+                        } else if (REGISTRATION_INFO.equals(name) && frames.size() >= 2
+                                && EXTENSIONS.equals(frames.get(frames.size() - 1).name)
+                                && ENTITIES_DESCRIPTOR.equals(frames.get(frames.size() - 2).name)) {
+                            frames.get(frames.size() - 2).registrationInfo =
+                                    buildElement(reader, documentBuilder.newDocument(), namespacesInScope(frames));
+                        } else {
+                            frames.add(new Frame(reader));
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        frames.remove(frames.size() - 1);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final IOException | XMLStreamException e) {
+            throw new StageProcessingException("could not read metadata from " + resource.getDescription(), e);
+        }
+        log.debug("{}: read {} entities from {}", getId(), count, resource.getDescription());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (resource == null) {
+            throw new ComponentInitializationException("resource must be supplied");
+        }
+
+        // metadata has no need of a DTD, and external entities are a security risk
+        inputFactory = XMLInputFactory.newFactory();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // deliver each run of text as a single node, as a DOM parser would
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        inputFactory = null;
+        documentBuilderFactory = null;
+        resource = null;
+
+        super.doDestroy();
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress of an operation rendering all of the collections from a refresh in advance.
+ */
+final class WarmUp {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(WarmUp.class);
+
+    /** Number of collections to be rendered. */
+    private final int total;
+
+    /** Number of collections rendered so far. */
+    @Nonnull
+    private final AtomicInteger rendered = new AtomicInteger();
+
+    /** Number of collections which could not be rendered. */
+    @Nonnull
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /** Time the operation started. */
+    @Nonnull
+    private final Instant started = Instant.now();
+
+    /** Time the operation finished, or <code>null</code> if it is still in progress. */
+    @Nullable
+    private volatile Instant finished;
+
+    /** Whether the operation was abandoned before it finished. */
+    private volatile boolean cancelled;
+
+    /** Render tasks submitted for this operation. */
+    @Nonnull
+    private final List<Future<?>> tasks = new ArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param collections number of collections to be rendered
+     */
+    WarmUp(final int collections) {
+        total = collections;
+        if (total == 0) {
+            finished = started;
+        }
+    }
+
+    /**
+     * Submit the render of a collection as part of this operation.
+     *
+     * @param executor the executor on which to render the collection
+     * @param identifiers identifiers of the collection, used for logging
+     * @param render renders the collection
+     */
+    void submit(@Nonnull final ExecutorService executor, @Nonnull final Collection<String> identifiers,
+            @Nonnull final Runnable render) {
+        tasks.add(executor.submit(() -> render(identifiers, render)));
+    }
+
+    /**
+     * Render a collection as part of this operation.
+     *
+     * @param identifiers identifiers of the collection, used for logging
+     * @param render renders the collection
+     */
+    private void render(@Nonnull final Collection<String> identifiers, @Nonnull final Runnable render) {
+        try {
+            render.run();
+        } catch (final RuntimeException e) {
+            log.warn("warm-up render failed for {}", identifiers, e);
+            failed.incrementAndGet();
+        }
+        if (rendered.incrementAndGet() == total) {
+            finished = Instant.now();
+            log.info("warm-up rendered {} collections in {}", total, Duration.between(started, finished));
+        }
+    }
+
+    /**
+     * Wait for all of the renders in this operation to finish.
+     */
+    void await() {
+        for (final Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (final CancellationException | ExecutionException e) {
+                // failures have already been counted by the task itself
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Abandon any renders in this operation which have not yet started.
+     */
+    void cancel() {
+        if (finished == null) {
+            cancelled = true;
+            for (final Future<?> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Describe the progress of this operation.
+     *
+     * @return a map of health details
+     */
+    @Nonnull
+    Map<String, Object> getDetails() {
+        final Map<String, Object> details = new LinkedHashMap<>();
+        final Instant end = finished;
+        details.put("collections", total);
+        details.put("rendered", rendered.get());
+        details.put("failed", failed.get());
+        details.put("started", started.toString());
+        if (end != null) {
+            details.put("duration", Duration.between(started, end).toString());
+        } else {
+            details.put("status", cancelled ? "cancelled" : "in progress");
+        }
+        return details;
+    }
+}
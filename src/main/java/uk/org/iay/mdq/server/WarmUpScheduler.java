@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Renders all of the distinct collections from each refresh in advance, on a pool of
+ * warm-up threads.
+ *
+ * @param <T> item type of the metadata served
+ */
+final class WarmUpScheduler<T> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(WarmUpScheduler.class);
+
+    /** Executor on which warm-up renders are performed. */
+    @Nonnull
+    private final ExecutorService executor;
+
+    /** Tests whether a collection already has a cached result. */
+    @Nonnull
+    private final Predicate<IdentifiedItemCollection<T>> rendered;
+
+    /** Renders a collection as part of a warm-up. */
+    @Nonnull
+    private final Consumer<IdentifiedItemCollection<T>> render;
+
+    /** The most recent warm-up operation, or <code>null</code> if none has been started. */
+    @Nullable
+    private volatile WarmUp current;
+
+    /**
+     * Constructor.
+     *
+     * @param name prefix for the names of the warm-up threads
+     * @param parallelism maximum number of collections rendered in parallel
+     * @param cached tests whether a collection already has a cached result
+     * @param renderer renders a collection as part of a warm-up
+     */
+    WarmUpScheduler(@Nonnull final String name, final int parallelism,
+            @Nonnull final Predicate<IdentifiedItemCollection<T>> cached,
+            @Nonnull final Consumer<IdentifiedItemCollection<T>> renderer) {
+        rendered = cached;
+        render = renderer;
+        executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setNameFormat(name + "-warmup-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Render all of the distinct collections from a refresh in advance.
+     *
+     * Any previous warm-up still in progress is abandoned.
+     *
+     * @param collections the collections to render, indexed by identifier
+     * @param wait whether to wait for all of the renders to complete
+     */
+    void warmUp(@Nonnull final Map<String, IdentifiedItemCollection<T>> collections, final boolean wait) {
+        // aliases share a collection, so only render each collection once
+        final Set<IdentifiedItemCollection<T>> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        distinct.addAll(collections.values());
+
+        // collections unchanged since the last refresh have nothing to render
+        distinct.removeIf(rendered);
+
+        final WarmUp previous = current;
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        final WarmUp operation = new WarmUp(distinct.size());
+        current = operation;
+        log.info("warming up {} collections", distinct.size());
+        for (final IdentifiedItemCollection<T> collection : distinct) {
+            operation.submit(executor, collection.getIdentifiers(), () -> render.accept(collection));
+        }
+
+        if (wait) {
+            operation.await();
+        }
+    }
+
+    /**
+     * Returns the most recent warm-up operation.
+     *
+     * @return the most recent warm-up operation, or <code>null</code> if none has been started
+     */
+    @Nullable
+    WarmUp getCurrent() {
+        return current;
+    }
+
+    /**
+     * Abandon any warm-up in progress, and wait for the warm-up threads to finish.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            log.debug("ignored InterruptedException while winding down executor");
+        }
+    }
+}
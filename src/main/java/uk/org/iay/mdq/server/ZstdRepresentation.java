@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Ian A. Young.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.iay.mdq.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import com.github.luben.zstd.util.Native;
+
+/**
+ * A {@link Representation} constructed by <code>zstd</code> (Zstandard) compression.
+ */
+public class ZstdRepresentation extends BaseRepresentation {
+
+    /** Content encoding for this type of representation. */
+    public static final String ENCODING = "zstd";
+
+    /** Lowest (fastest) compression level supported by the library. */
+    public static final int MIN_LEVEL = -(1 << 17);
+
+    /**
+     * Highest compression level.
+     *
+     * Levels above 19 require more memory to decompress than many clients allow.
+     */
+    public static final int MAX_LEVEL = 19;
+
+    /** Default compression level. */
+    public static final int DEFAULT_LEVEL = 3;
+
+    /** Class logger. */
+    private static Logger log = LoggerFactory.getLogger(ZstdRepresentation.class);
+
+    /**
+     * Constructor.
+     *
+     * @param repBytes the uncompressed representation
+     */
+    protected ZstdRepresentation(@Nonnull final byte[] repBytes) {
+        this(repBytes, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param repBytes the uncompressed representation
+     * @param level compression level, up to {@link #MAX_LEVEL}; negative levels trade
+     *      compression for speed
+     */
+    protected ZstdRepresentation(@Nonnull final byte[] repBytes, final int level) {
+        this(ByteBuffer.wrap(repBytes), level);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param content the uncompressed representation, which may be held outside the heap
+     * @param level compression level, up to {@link #MAX_LEVEL}; negative levels trade
+     *      compression for speed
+     */
+    protected ZstdRepresentation(@Nonnull final ByteBuffer content, final int level) {
+        super(compress(content, level));
+    }
+
+    /**
+     * Compress content, streaming it so that content held outside the heap is not copied into it.
+     *
+     * @param content the uncompressed content
+     * @param level compression level
+     *
+     * @return the compressed content
+     */
+    private static @Nonnull byte[] compress(@Nonnull final ByteBuffer content, final int level) {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream compos = new ZstdOutputStream(baos, level)) {
+            writeContent(content, compos);
+        } catch (final IOException e) {
+            // no partial result is usable, so let the caller do without this representation
+            throw new UncheckedIOException("can not construct compressed representation", e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Returns whether the native Zstandard library is available on this platform.
+     *
+     * @return <code>true</code> if Zstandard compression is available
+     */
+    public static boolean isAvailable() {
+        try {
+            Native.load();
+            return true;
+        } catch (final LinkageError e) {
+            log.warn("Zstandard compression unavailable", e);
+            return false;
+        }
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return ENCODING;
+    }
+    
+}
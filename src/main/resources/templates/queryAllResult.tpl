@@ -10,7 +10,10 @@ html {
     }
     body {
         h1('mdq-server query result')
-        if (result.isNotFound()) {
+        // a busy result has no identifiers or representations; the controller has set the status
+        if (result.getRetryAfter() != null) {
+            p('The service is too busy to answer this query. Please try again shortly.')
+        } else if (result.isNotFound()) {
             p('No results were returned from the query.')
         } else {
             h2('Result Returned')
@@ -30,21 +33,13 @@ html {
 
             h3('Normal Representation')
             Representation norm = result.getRepresentation();
-            p("The default representation has a length of ${norm.getBytes().length}.")
+            p("The default representation has a length of ${norm.getLength()}.")
             p("Its ETag value is ${norm.getETag()}.")
             
-            Representation gzip = result.getGZIPRepresentation();
-            if (gzip != null) {
-                h3('GZIP Representation')
-                p("The GZIPped representation has a length of ${gzip.getBytes().length}.")
-                p("Its ETag value is ${gzip.getETag()}.")
-            }
-            
-            Representation deflate = result.getDeflateRepresentation();
-            if (deflate != null) {
-                h3('Deflated Representation')
-                p("The deflated representation has a length of ${deflate.getBytes().length}.")
-                p("Its ETag value is ${deflate.getETag()}.")
+            result.getEncodedRepresentations().each { encoded ->
+                h3("Representation with ${encoded.getContentEncoding()} Encoding")
+                p("The ${encoded.getContentEncoding()} representation has a length of ${encoded.getLength()}.")
+                p("Its ETag value is ${encoded.getETag()}.")
             }
 
             h2('Rendered Metadata')
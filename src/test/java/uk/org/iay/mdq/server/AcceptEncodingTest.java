@@ -0,0 +1,126 @@
+
+package uk.org.iay.mdq.server;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AcceptEncodingTest {
+
+    /** Compressible content, so that the compressed forms are smaller than the original. */
+    private static final byte[] CONTENT = "<entity/>".repeat(1000).getBytes();
+
+    /**
+     * A result with a fixed set of compressed representations.
+     */
+    private static class FixedResult implements Result {
+
+        private final Representation representation = new SimpleRepresentation(CONTENT);
+
+        private final List<Representation> encoded;
+
+        FixedResult(final Representation... reps) {
+            encoded = List.of(reps);
+        }
+
+        @Override
+        public boolean isNotFound() {
+            return false;
+        }
+
+        @Override
+        public Representation getRepresentation() {
+            return representation;
+        }
+
+        @Override
+        public Representation getGZIPRepresentation() {
+            return null;
+        }
+
+        @Override
+        public Representation getDeflateRepresentation() {
+            return null;
+        }
+
+        @Override
+        public Collection<Representation> getEncodedRepresentations() {
+            return encoded;
+        }
+
+        @Override
+        public Collection<String> getIdentifiers() {
+            return null;
+        }
+    }
+
+    @Test
+    public void testQualities() {
+        final AcceptEncoding ae = new AcceptEncoding("gzip;q=0.5, BR, zstd;q=0, x-gzip;q=0.8");
+        Assert.assertEquals(ae.getQuality("br"), 1.0);
+        Assert.assertEquals(ae.getQuality("gzip"), 0.8);
+        Assert.assertEquals(ae.getQuality("zstd"), 0.0);
+        Assert.assertEquals(ae.getQuality("deflate"), 0.0);
+
+        // identity is acceptable, but less preferred than anything listed
+        Assert.assertTrue(ae.getQuality(AcceptEncoding.IDENTITY) > 0.0);
+        Assert.assertTrue(ae.getQuality(AcceptEncoding.IDENTITY) < 0.001);
+    }
+
+    @Test
+    public void testWildcardAndIdentity() {
+        final AcceptEncoding any = new AcceptEncoding("deflate, *;q=0.1");
+        Assert.assertEquals(any.getQuality("deflate"), 1.0);
+        Assert.assertEquals(any.getQuality("br"), 0.1);
+        Assert.assertEquals(any.getQuality(AcceptEncoding.IDENTITY), 0.1);
+
+        Assert.assertEquals(new AcceptEncoding("gzip, identity;q=0").getQuality(AcceptEncoding.IDENTITY), 0.0);
+        Assert.assertEquals(new AcceptEncoding("*;q=0").getQuality(AcceptEncoding.IDENTITY), 0.0);
+
+        // an empty header allows only the identity coding
+        final AcceptEncoding empty = new AcceptEncoding("");
+        Assert.assertEquals(empty.getQuality("gzip"), 0.0);
+        Assert.assertTrue(empty.getQuality(AcceptEncoding.IDENTITY) > 0.0);
+
+        // so does an absent header
+        final AcceptEncoding absent = new AcceptEncoding(null);
+        Assert.assertEquals(absent.getQuality("gzip"), 0.0);
+        Assert.assertEquals(absent.getQuality("br"), 0.0);
+        Assert.assertTrue(absent.getQuality(AcceptEncoding.IDENTITY) > 0.0);
+    }
+
+    @Test
+    public void testInvalidQualities() {
+        final AcceptEncoding ae = new AcceptEncoding("gzip;q=2, br;q=0.1234, deflate;q=0.25");
+        Assert.assertEquals(ae.getQuality("gzip"), 0.0);
+        Assert.assertEquals(ae.getQuality("br"), 0.0);
+        Assert.assertEquals(ae.getQuality("deflate"), 0.25);
+    }
+
+    @Test
+    public void testSelect() {
+        final Representation gzip = new GZIPRepresentation(CONTENT, 1);
+        final Representation deflate = new DeflateRepresentation(CONTENT, 9);
+        final Result result = new FixedResult(gzip, deflate);
+        Assert.assertTrue(deflate.getBytes().length < gzip.getBytes().length);
+
+        // smallest of equal quality
+        Assert.assertSame(new AcceptEncoding("gzip, deflate").select(result), deflate);
+
+        // highest quality, regardless of size
+        Assert.assertSame(new AcceptEncoding("gzip, deflate;q=0.5").select(result), gzip);
+
+        // identity is only preferred to a compressed form of lower quality if it is listed
+        Assert.assertSame(new AcceptEncoding("gzip;q=0.5").select(result), gzip);
+        Assert.assertSame(new AcceptEncoding("identity, gzip;q=0.5").select(result), result.getRepresentation());
+
+        // nothing acceptable, so fall back to identity
+        Assert.assertSame(new AcceptEncoding("br, identity;q=0").select(result), result.getRepresentation());
+        // a client sending no header is sent the uncompressed form
+        Assert.assertSame(new AcceptEncoding(null).select(result), result.getRepresentation());
+        final Result uncompressed = new FixedResult();
+        Assert.assertSame(new AcceptEncoding(null).select(uncompressed), uncompressed.getRepresentation());
+    }
+}
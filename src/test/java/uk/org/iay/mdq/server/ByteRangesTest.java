@@ -0,0 +1,57 @@
+package uk.org.iay.mdq.server;
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ByteRangesTest {
+
+    private static String describe(final ByteRanges ranges) {
+        final StringBuilder b = new StringBuilder();
+        for (final ByteRanges.Range range : ranges.getRanges()) {
+            b.append(range.getFirst()).append('-').append(range.getLast()).append(' ');
+        }
+        return b.toString().trim();
+    }
+
+    @Test
+    public void testSingleRanges() {
+        Assert.assertEquals(describe(new ByteRanges("bytes=0-99", 1000)), "0-99");
+        Assert.assertEquals(describe(new ByteRanges("bytes=500-", 1000)), "500-999");
+        Assert.assertEquals(describe(new ByteRanges("bytes=-100", 1000)), "900-999");
+        Assert.assertEquals(describe(new ByteRanges("bytes=-2000", 1000)), "0-999");
+        Assert.assertEquals(describe(new ByteRanges("bytes=900-2000", 1000)), "900-999");
+        Assert.assertEquals(new ByteRanges("bytes=0-99", 1000).getRanges().get(0).toContentRange(1000),
+                "bytes 0-99/1000");
+    }
+
+    @Test
+    public void testMultipleRanges() {
+        // sorted and coalesced where overlapping or adjacent
+        Assert.assertEquals(describe(new ByteRanges("bytes=500-599, 0-9, 5-19, 20-29", 1000)), "0-29 500-599");
+
+        final StringBuilder many = new StringBuilder("bytes=");
+        for (int i = 0; i <= ByteRanges.MAX_RANGES; i++) {
+            many.append(i * 10).append('-').append(i * 10 + 1).append(',');
+        }
+        Assert.assertFalse(new ByteRanges(many.toString(), 1000).isRequested());
+    }
+
+    @Test
+    public void testInvalidAndUnsatisfiable() {
+        for (final String header : List.of("items=0-1", "bytes=", "bytes=abc", "bytes=5-1", "bytes=1-2-3",
+                "bytes=+1-2")) {
+            Assert.assertFalse(new ByteRanges(header, 1000).isRequested(), header);
+        }
+        Assert.assertFalse(new ByteRanges(null, 1000).isRequested());
+
+        final ByteRanges beyond = new ByteRanges("bytes=1000-", 1000);
+        Assert.assertTrue(beyond.isRequested());
+        Assert.assertFalse(beyond.isSatisfiable());
+        Assert.assertFalse(new ByteRanges("bytes=-0", 1000).isSatisfiable());
+
+        // one satisfiable range is enough
+        Assert.assertEquals(describe(new ByteRanges("bytes=2000-3000, 0-0", 1000)), "0-0");
+    }
+}
@@ -0,0 +1,153 @@
+
+package uk.org.iay.mdq.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemSerializer;
+import net.shibboleth.metadata.SimpleItemCollectionSerializer;
+import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StaticItemSourceStage;
+import net.shibboleth.metadata.testing.MockItem;
+
+/**
+ * Measures the throughput of {@link MetadataService#get} when every query is a cache hit.
+ *
+ * Run {@link #main} from the test classpath to measure throughput at thread counts
+ * from one up to the number of available processors. With no locks on the hit path,
+ * throughput should scale close to linearly with the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheHitBenchmark {
+
+    @Param({"10000"})
+    public int entities;
+
+    private ItemCollectionLibrary<String> library;
+
+    private MetadataService<String> service;
+
+    private String[] ids;
+
+    @Setup
+    public void setUp() throws Exception {
+        // per-query debug logging would otherwise dominate the measurement
+        ((Logger) LoggerFactory.getLogger(MetadataService.class.getPackageName())).setLevel(Level.INFO);
+
+        final List<Item<String>> items = new ArrayList<>();
+        ids = new String[entities];
+        for (int i = 0; i < entities; i++) {
+            ids[i] = "https://entity" + i + ".example.org/";
+            final Item<String> item = new MockItem("<entity" + i + "/>");
+            item.getItemMetadata().put(new ItemId(ids[i]));
+            items.add(item);
+        }
+
+        final StaticItemSourceStage<String> source = new StaticItemSourceStage<>();
+        source.setId("source");
+        source.setSourceItems(items);
+        source.initialize();
+        final List<Stage<String>> stages = new ArrayList<>();
+        stages.add(source);
+        final SimplePipeline<String> sourcePipeline = new SimplePipeline<>();
+        sourcePipeline.setId("sourcePipeline");
+        sourcePipeline.setStages(stages);
+        sourcePipeline.initialize();
+
+        library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(sourcePipeline);
+        library.initialize();
+
+        final SimplePipeline<String> renderPipeline = new SimplePipeline<>();
+        renderPipeline.setId("render");
+        renderPipeline.initialize();
+
+        service = new MetadataService<>();
+        service.setId("service");
+        service.setItemCollectionLibrary(library);
+        service.setRenderPipeline(renderPipeline);
+        service.setSerializer(new SimpleItemCollectionSerializer<>(new ItemSerializer<String>(){
+            public void serialize(@Nonnull Item<String> item, @Nonnull OutputStream output) {
+                try {
+                    output.write(item.unwrap().getBytes());
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }}));
+        service.initialize();
+
+        // populate the cache so that every query in the benchmark is a hit
+        for (final String id : ids) {
+            service.get(id);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.destroy();
+        library.destroy();
+    }
+
+    @Benchmark
+    public Result cacheHit() {
+        return service.get(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        double single = 0;
+        final StringBuilder summary = new StringBuilder();
+        for (int threads = 1; threads <= processors; threads *= 2) {
+            final Options options = new OptionsBuilder()
+                    .include(CacheHitBenchmark.class.getName() + ".cacheHit")
+                    .threads(threads)
+                    .build();
+            final Collection<RunResult> results = new Runner(options).run();
+            final double score = results.iterator().next().getPrimaryResult().getScore();
+            if (threads == 1) {
+                single = score;
+            }
+            summary.append(String.format("threads=%-3d %12.1f ops/us  speedup %.2fx%n",
+                    threads, score, score / single));
+        }
+        System.out.print(summary);
+    }
+}
@@ -0,0 +1,94 @@
+
+package uk.org.iay.mdq.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemSerializer;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+
+public class FragmentAggregateAssemblerTest {
+
+    private static class TransformerSerializer implements ItemSerializer<Element> {
+        public void serialize(@Nonnull final Item<Element> item, @Nonnull final OutputStream output) {
+            try {
+                TransformerFactory.newInstance().newTransformer()
+                    .transform(new DOMSource(item.unwrap().getOwnerDocument()), new StreamResult(output));
+            } catch (final TransformerException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private Document parse(final byte[] bytes) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(bytes));
+    }
+
+    private Item<Element> entity(final String entityID, final String digest) throws Exception {
+        final Document document = parse(("<md:EntityDescriptor xmlns:md=\"" + SAMLMetadataSupport.MD_NS
+                + "\" entityID=\"" + entityID + "\"/>").getBytes());
+        final Item<Element> item = new DOMElementItem(document);
+        item.getItemMetadata().put(new ItemDigest(digest));
+        return item;
+    }
+
+    private byte[] assemble(final FragmentAggregateAssembler assembler, final List<Item<Element>> items)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assembler.assemble(items, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testAssemble() throws Exception {
+        final FragmentAggregateAssembler assembler = new FragmentAggregateAssembler();
+        assembler.setId("assembler");
+        assembler.setSerializer(new TransformerSerializer());
+        assembler.initialize();
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(entity("https://one.example.org/", "1111"));
+        items.add(entity("https://two.example.org/", "2222"));
+
+        final Element aggregate = parse(assemble(assembler, items)).getDocumentElement();
+        Assert.assertEquals(aggregate.getLocalName(), "EntitiesDescriptor");
+        final var entities = aggregate.getElementsByTagNameNS(SAMLMetadataSupport.MD_NS, "EntityDescriptor");
+        Assert.assertEquals(entities.getLength(), 2);
+        Assert.assertEquals(((Element) entities.item(1)).getAttribute("entityID"), "https://two.example.org/");
+        Assert.assertEquals(assembler.getSerializedCount(), 2);
+        Assert.assertEquals(assembler.getReusedCount(), 0);
+
+        // only the changed entity is serialized again
+        items.set(1, entity("https://three.example.org/", "3333"));
+        final Element second = parse(assemble(assembler, items)).getDocumentElement();
+        final var secondEntities = second.getElementsByTagNameNS(SAMLMetadataSupport.MD_NS, "EntityDescriptor");
+        Assert.assertEquals(secondEntities.getLength(), 2);
+        Assert.assertEquals(((Element) secondEntities.item(1)).getAttribute("entityID"),
+                "https://three.example.org/");
+        Assert.assertEquals(assembler.getSerializedCount(), 3);
+        Assert.assertEquals(assembler.getReusedCount(), 1);
+
+        assembler.destroy();
+    }
+
+}
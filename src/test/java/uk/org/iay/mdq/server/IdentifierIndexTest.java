@@ -0,0 +1,92 @@
+package uk.org.iay.mdq.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cryptacular.util.CodecUtil;
+import org.cryptacular.util.HashUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class IdentifierIndexTest {
+
+    private static byte[] sha1(final String id) {
+        return HashUtil.sha1(id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSHA1Identifier() {
+        Assert.assertTrue(IdentifierIndex.isSHA1Identifier("{sha1}" + "0123456789abcdef".repeat(2) + "01234567"));
+        Assert.assertTrue(IdentifierIndex.isSHA1Identifier("{sha1}" + "0123456789ABCDEF".repeat(2) + "01234567"));
+        Assert.assertFalse(IdentifierIndex.isSHA1Identifier(null));
+        Assert.assertFalse(IdentifierIndex.isSHA1Identifier("{sha1}" + "0".repeat(39)));
+        Assert.assertFalse(IdentifierIndex.isSHA1Identifier("{sha1}" + "0".repeat(41)));
+        Assert.assertFalse(IdentifierIndex.isSHA1Identifier("{sha1}" + "0".repeat(39) + "g"));
+        Assert.assertFalse(IdentifierIndex.isSHA1Identifier("{sha2}" + "0".repeat(40)));
+
+        final byte[] hash = sha1("https://idp.example.org/");
+        Assert.assertEquals(IdentifierIndex.sha1Identifier(hash, 0), "{sha1}" + CodecUtil.hex(hash));
+    }
+
+    @Test
+    public void testLookup() {
+        final IdentifierIndex.Builder<String> builder = new IdentifierIndex.Builder<>();
+        final Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            final String id = "https://entity" + i + ".example.org/";
+            Assert.assertTrue(builder.putIfAbsent(id, "entity" + i));
+            Assert.assertTrue(builder.putIfAbsent(sha1(id), "entity" + i));
+            expected.put(id, "entity" + i);
+            expected.put("{sha1}" + CodecUtil.hex(sha1(id)), "entity" + i);
+        }
+        builder.put("tag", "tagged");
+        builder.put(null, "all");
+        expected.put("tag", "tagged");
+        expected.put(null, "all");
+
+        // neither form of an existing identifier may be added again
+        Assert.assertFalse(builder.putIfAbsent("https://entity0.example.org/", "other"));
+        Assert.assertFalse(builder.putIfAbsent(sha1("https://entity0.example.org/"), "other"));
+        Assert.assertFalse(builder.putIfAbsent("{sha1}" + CodecUtil.hex(sha1("https://entity0.example.org/")),
+                "other"));
+
+        final IdentifierIndex<String> index = builder.build();
+        Assert.assertEquals(index.size(), 2002);
+        Assert.assertEquals(index, expected);
+        for (final Map.Entry<String, String> entry : expected.entrySet()) {
+            Assert.assertEquals(index.get(entry.getKey()), entry.getValue());
+        }
+
+        // hexadecimal digits are not case sensitive
+        final String upper = "{sha1}" + CodecUtil.hex(sha1("https://entity1.example.org/")).toUpperCase();
+        Assert.assertEquals(index.get(upper), "entity1");
+
+        Assert.assertNull(index.get("{sha1}" + "0".repeat(40)));
+        Assert.assertNull(index.get("https://missing.example.org/"));
+        Assert.assertFalse(index.containsKey("{sha1}" + "0".repeat(40)));
+    }
+
+    @Test
+    public void testReplace() {
+        final IdentifierIndex.Builder<String> builder = new IdentifierIndex.Builder<>();
+        final String id = "{sha1}" + CodecUtil.hex(sha1("https://idp.example.org/"));
+        builder.put(id, "first");
+        builder.put(id, "second");
+        final IdentifierIndex<String> index = builder.build();
+        Assert.assertEquals(index.size(), 1);
+        Assert.assertEquals(index.get(id), "second");
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testImmutable() {
+        new IdentifierIndex.Builder<String>().build().put("id", "value");
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testBuildOnce() {
+        final IdentifierIndex.Builder<String> builder = new IdentifierIndex.Builder<>();
+        builder.build();
+        builder.put("id", "value");
+    }
+}
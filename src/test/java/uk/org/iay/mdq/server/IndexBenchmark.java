@@ -0,0 +1,131 @@
+package uk.org.iay.mdq.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemTag;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.DOMElementSerializer;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StaticItemSourceStage;
+
+/**
+ * Measures the time taken by {@link ItemCollectionLibrary#refresh} to index collections
+ * of various sizes, with items digested on one thread or on one thread per processor.
+ *
+ * The source pipeline supplies the same items on every refresh, so the measurement is
+ * dominated by indexing rather than by acquiring metadata.
+ *
+ * Run {@link #main} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBenchmark {
+
+    @Param({"1000", "10000", "80000"})
+    public int entities;
+
+    @Param({"1", "0"})
+    public int parallelism;
+
+    private ItemCollectionLibrary<Element> library;
+
+    @Setup
+    public void setUp() throws Exception {
+        // per-refresh logging would otherwise be included in the measurement
+        ((Logger) LoggerFactory.getLogger(MetadataService.class.getPackageName())).setLevel(Level.WARN);
+
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final DocumentBuilder builder = factory.newDocumentBuilder();
+
+        final List<Item<Element>> items = new ArrayList<>();
+        for (int i = 0; i < entities; i++) {
+            final Document document = builder.newDocument();
+            final Element entity = document.createElementNS(SAMLMetadataSupport.MD_NS, "md:EntityDescriptor");
+            final String entityID = "https://entity" + i + ".example.org/";
+            entity.setAttributeNS(null, "entityID", entityID);
+            document.appendChild(entity);
+            for (int j = 0; j < 20; j++) {
+                final Element child = document.createElementNS(SAMLMetadataSupport.MD_NS, "md:Extensions");
+                child.setTextContent("content " + j + " of entity " + i);
+                entity.appendChild(child);
+            }
+            final Item<Element> item = new DOMElementItem(document);
+            item.getItemMetadata().put(new ItemId(entityID));
+            item.getItemMetadata().put(new ItemTag("feed" + i % 4));
+            items.add(item);
+        }
+
+        final StaticItemSourceStage<Element> source = new StaticItemSourceStage<>();
+        source.setId("source");
+        source.setSourceItems(items);
+        source.initialize();
+        final List<Stage<Element>> stages = new ArrayList<>();
+        stages.add(source);
+        final SimplePipeline<Element> sourcePipeline = new SimplePipeline<>();
+        sourcePipeline.setId("sourcePipeline");
+        sourcePipeline.setStages(stages);
+        sourcePipeline.initialize();
+
+        library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(sourcePipeline);
+        library.setItemSerializer(new DOMElementSerializer());
+        // zero stands for one thread per processor
+        library.setIndexParallelism(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        library.initialize();
+    }
+
+    @TearDown
+    public void tearDown() {
+        library.destroy();
+    }
+
+    @Benchmark
+    public void refresh() {
+        library.refresh();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(IndexBenchmark.class.getName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -1,18 +1,27 @@
 
 package uk.org.iay.mdq.server;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import javax.annotation.Nonnull;
 
+import org.cryptacular.util.CodecUtil;
+import org.cryptacular.util.HashUtil;
 import org.springframework.boot.actuate.health.Status;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemSerializer;
 import net.shibboleth.metadata.ItemTag;
 import net.shibboleth.metadata.pipeline.AbstractStage;
 import net.shibboleth.metadata.pipeline.SimplePipeline;
@@ -139,12 +148,207 @@ public class ItemCollectionLibraryTest {
         Assert.assertEquals(res2.getGeneration(), all2.getGeneration());
         Assert.assertNotEquals(res1.getGeneration(), res2.getGeneration());
         Assert.assertNotEquals(all1.getGeneration(), all2.getGeneration());
+        // without an item serializer, every refresh changes every digest
+        Assert.assertNotEquals(res1.getDigest(), res2.getDigest());
+        Assert.assertNotEquals(all1.getDigest(), all2.getDigest());
         Assert.assertEquals(1, res2.getItems().size());
         Assert.assertEquals(1, res2.getIdentifiers().size());
         Assert.assertEquals(3, all2.getItems().size());
         Assert.assertEquals(1, all2.getIdentifiers().size());
     }
     
+    /**
+     * A source stage generating a new item for each entity on every execution,
+     * from contents which can be changed between executions.
+     */
+    static class ChangingSourceStage extends AbstractStage<String> {
+
+        /** Contents of each entity, indexed by identifier. */
+        final Map<String, String> entities = new LinkedHashMap<>();
+
+        @Override
+        protected void doExecute(final @Nonnull List<Item<String>> itemCollection) throws StageProcessingException {
+            for (final Map.Entry<String, String> entity : entities.entrySet()) {
+                final Item<String> item = new MockItem(entity.getValue());
+                item.getItemMetadata().put(new ItemId(entity.getKey()));
+                itemCollection.add(item);
+            }
+        }
+    }
+
+    /**
+     * Serializes a {@link MockItem} as its contents.
+     */
+    static class MockItemSerializer implements ItemSerializer<String> {
+
+        @Override
+        public void serialize(@Nonnull final Item<String> item, @Nonnull final OutputStream output)
+                throws IOException {
+            output.write(item.unwrap().getBytes());
+        }
+    }
+
+    @Test
+    public void testContentDigests() throws Exception {
+        final ChangingSourceStage source = new ChangingSourceStage();
+        source.setId("changingSource");
+        source.entities.put("a", "same");
+        source.entities.put("b", "same");
+        source.initialize();
+
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(source));
+        pipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(pipeline);
+        library.setItemSerializer(new MockItemSerializer());
+        library.initialize();
+
+        // identical contents under different identifiers are different collections
+        final IdentifiedItemCollection<String> a1 = library.get("a");
+        final IdentifiedItemCollection<String> b1 = library.get("b");
+        final IdentifiedItemCollection<String> all1 = library.getAll();
+        Assert.assertNotEquals(a1.getDigest(), b1.getDigest());
+
+        // an unchanged refresh changes the generation, but not the digests
+        library.refresh();
+        final IdentifiedItemCollection<String> a2 = library.get("a");
+        Assert.assertNotSame(a2, a1);
+        Assert.assertNotEquals(a2.getGeneration(), a1.getGeneration());
+        Assert.assertEquals(a2.getDigest(), a1.getDigest());
+        Assert.assertEquals(library.get("b").getDigest(), b1.getDigest());
+        Assert.assertEquals(library.getAll().getDigest(), all1.getDigest());
+        Assert.assertEquals(a2.getLastModified(), a1.getLastModified());
+
+        // changing one entity changes only its digest and that of the aggregate
+        Thread.sleep(1000);
+        source.entities.put("b", "different");
+        library.refresh();
+        Assert.assertEquals(library.get("a").getDigest(), a1.getDigest());
+        Assert.assertNotEquals(library.get("b").getDigest(), b1.getDigest());
+        Assert.assertNotEquals(library.getAll().getDigest(), all1.getDigest());
+        Assert.assertEquals(library.get("a").getLastModified(), a1.getLastModified());
+        Assert.assertTrue(library.get("b").getLastModified().isAfter(b1.getLastModified()));
+
+        library.destroy();
+    }
+
+    @Test
+    public void testIncrementalRefresh() throws Exception {
+        final ChangingSourceStage source = new ChangingSourceStage();
+        source.setId("changingSource");
+        source.entities.put("a", "itemA");
+        source.entities.put("b", "itemB");
+        source.entities.put("c", "itemC");
+        source.initialize();
+
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(source));
+        pipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(pipeline);
+        library.setItemSerializer(new MockItemSerializer());
+        library.setIncrementalRefresh(true);
+        library.initialize();
+
+        final IdentifiedItemCollection<String> a1 = library.get("a");
+        final IdentifiedItemCollection<String> b1 = library.get("b");
+        final IdentifiedItemCollection<String> all1 = library.getAll();
+        Assert.assertEquals(library.health().getDetails().get("entitiesAdded"), 3);
+
+        // an unchanged refresh reuses every collection
+        library.refresh();
+        Assert.assertSame(library.get("a"), a1);
+        Assert.assertSame(library.get("b"), b1);
+        Assert.assertSame(library.getAll(), all1);
+        Map<String, Object> details = library.health().getDetails();
+        Assert.assertEquals(details.get("entitiesAdded"), 0);
+        Assert.assertEquals(details.get("entitiesChanged"), 0);
+        Assert.assertEquals(details.get("entitiesRemoved"), 0);
+        Assert.assertEquals(details.get("collectionsReused"), 4);
+
+        // only unchanged collections are reused, and the aggregate holds the reused items
+        source.entities.put("b", "itemB2");
+        source.entities.remove("c");
+        source.entities.put("d", "itemD");
+        library.refresh();
+        Assert.assertSame(library.get("a"), a1);
+        Assert.assertNotSame(library.get("b"), b1);
+        Assert.assertEquals(library.get("b").getItems().get(0).unwrap(), "itemB2");
+        Assert.assertNull(library.get("c"));
+        final List<Item<String>> all = library.getAll().getItems();
+        Assert.assertEquals(all.size(), 3);
+        Assert.assertSame(all.get(0), a1.getItems().get(0));
+        details = library.health().getDetails();
+        Assert.assertEquals(details.get("entities"), 3);
+        Assert.assertEquals(details.get("entitiesAdded"), 1);
+        Assert.assertEquals(details.get("entitiesChanged"), 1);
+        Assert.assertEquals(details.get("entitiesRemoved"), 1);
+        Assert.assertEquals(details.get("collectionsReused"), 1);
+
+        library.destroy();
+    }
+
+    private ItemCollectionLibrary<String> makeIndexedLibrary(final List<Item<String>> items, final int parallelism)
+            throws Exception {
+        final StaticItemSourceStage<String> source = new StaticItemSourceStage<>();
+        source.setId("source");
+        source.setSourceItems(items);
+        source.initialize();
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(source));
+        pipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(pipeline);
+        library.setItemSerializer(new MockItemSerializer());
+        library.setIndexParallelism(parallelism);
+        library.initialize();
+        return library;
+    }
+
+    @Test
+    public void testParallelIndex() throws Exception {
+        final List<Item<String>> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final Item<String> item = new MockItem("item" + i);
+            // every tenth item duplicates the identifier of the item before it
+            item.getItemMetadata().put(new ItemId("id" + (i % 10 == 9 ? i - 1 : i)));
+            item.getItemMetadata().put(new ItemTag("tag" + i % 3));
+            items.add(item);
+        }
+
+        final ItemCollectionLibrary<String> sequential = makeIndexedLibrary(items, 1);
+        final ItemCollectionLibrary<String> parallel = makeIndexedLibrary(items, 4);
+
+        // the first item with a duplicated identifier wins
+        Assert.assertEquals(parallel.get("id8").getItems().get(0).unwrap(), "item8");
+        Assert.assertNull(parallel.get("id9"));
+
+        // the index is the same however many threads built it
+        final Map<String, IdentifiedItemCollection<String>> expected = sequential.getIdentifiedItemCollections();
+        final Map<String, IdentifiedItemCollection<String>> actual = parallel.getIdentifiedItemCollections();
+        Assert.assertEquals(actual.keySet(), expected.keySet());
+        for (final Map.Entry<String, IdentifiedItemCollection<String>> entry : expected.entrySet()) {
+            Assert.assertEquals(actual.get(entry.getKey()).getDigest(), entry.getValue().getDigest());
+        }
+        final List<Item<String>> tagged = parallel.get("tag1").getItems();
+        Assert.assertEquals(tagged.size(), 333);
+        Assert.assertEquals(tagged.get(0).unwrap(), "item1");
+        Assert.assertEquals(tagged.get(332).unwrap(), "item997");
+
+        sequential.destroy();
+        parallel.destroy();
+    }
+
     /**
      * A stage which throws an NPE after a certain number of calls.
      *
@@ -167,6 +371,249 @@ public class ItemCollectionLibraryTest {
         }
     }
     
+    @Test
+    public void testSHA1Identifiers() throws Exception {
+        final Item<String> item1 = new MockItem("item1");
+        item1.getItemMetadata().put(new ItemId("https://idp.example.org/"));
+        final Item<String> item2 = new MockItem("item2");
+        item2.getItemMetadata().put(new ItemId("https://sp.example.org/"));
+        // this item's source has already added the {sha1} form of its identifier
+        final String item2Hash = "{sha1}" + CodecUtil.hex(HashUtil.sha1(
+                "https://sp.example.org/".getBytes(StandardCharsets.UTF_8)));
+        item2.getItemMetadata().put(new ItemId(item2Hash));
+
+        final StaticItemSourceStage<String> source = new StaticItemSourceStage<>();
+        source.setId("source");
+        source.setSourceItems(List.of(item1, item2));
+        source.initialize();
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(source));
+        pipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(pipeline);
+        library.setSHA1Identifiers(true);
+        library.initialize();
+
+        final String item1Hash = CodecUtil.hex(HashUtil.sha1(
+                "https://idp.example.org/".getBytes(StandardCharsets.UTF_8)));
+        final IdentifiedItemCollection<String> coll1 = library.get("https://idp.example.org/");
+        Assert.assertSame(library.get("{sha1}" + item1Hash), coll1);
+        Assert.assertSame(library.get("{sha1}" + item1Hash.toUpperCase()), coll1);
+        // the {sha1} form is not added to the collection's identifiers
+        Assert.assertEquals(coll1.getIdentifiers(), List.of("https://idp.example.org/"));
+
+        Assert.assertSame(library.get(item2Hash), library.get("https://sp.example.org/"));
+        Assert.assertNull(library.get("{sha1}" + "0".repeat(40)));
+
+        // two entities, two {sha1} forms and the "all entities" collection
+        final Map<String, IdentifiedItemCollection<String>> collections = library.getIdentifiedItemCollections();
+        Assert.assertEquals(collections.size(), 5);
+        Assert.assertTrue(collections.containsKey("{sha1}" + item1Hash));
+        Assert.assertTrue(collections.keySet().contains(item2Hash));
+
+        library.destroy();
+    }
+
+    /**
+     * Reports whether the source has changed as directed by the test.
+     */
+    private static class StubChangeDetector implements ItemCollectionLibrary.SourceChangeDetector {
+
+        volatile boolean changed = true;
+
+        volatile int checks;
+
+        volatile int refreshes;
+
+        Runnable onChange;
+
+        @Override
+        public boolean isSourceChanged() {
+            checks++;
+            return changed;
+        }
+
+        @Override
+        public void sourceRefreshed() {
+            refreshes++;
+        }
+
+        @Override
+        public void watchSource(final Runnable callback) {
+            onChange = callback;
+        }
+    }
+
+    @Test
+    public void testUnchangedSource() throws Exception {
+        final ChangingSourceStage source = new ChangingSourceStage();
+        source.setId("changingSource");
+        source.entities.put("a", "itemA");
+        source.initialize();
+
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(source));
+        pipeline.initialize();
+
+        final StubChangeDetector detector = new StubChangeDetector();
+        final List<Map<String, IdentifiedItemCollection<String>>> indexed = new ArrayList<>();
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(pipeline);
+        library.setSourceChangeDetector(detector);
+        library.addRefreshListener(indexed::add);
+        library.initialize();
+        Assert.assertEquals(detector.checks, 1);
+        Assert.assertEquals(detector.refreshes, 1);
+        Assert.assertEquals(indexed.size(), 1);
+        final IdentifiedItemCollection<String> a1 = library.get("a");
+
+        // an unchanged source leaves the current collections and generation in place
+        detector.changed = false;
+        source.entities.put("a", "itemA2");
+        library.refresh();
+        Assert.assertEquals(detector.checks, 2);
+        Assert.assertEquals(detector.refreshes, 1);
+        Assert.assertEquals(indexed.size(), 1);
+        Assert.assertSame(library.get("a"), a1);
+        Assert.assertEquals(library.getSkippedRefreshCount(), 1);
+        Assert.assertEquals(library.health().getDetails().get("refreshesSkipped"), 1L);
+
+        // a changed source is refreshed as usual
+        detector.changed = true;
+        library.refresh();
+        Assert.assertEquals(detector.refreshes, 2);
+        Assert.assertEquals(indexed.size(), 2);
+        Assert.assertEquals(library.get("a").getItems().get(0).unwrap(), "itemA2");
+        Assert.assertTrue(library.get("a").getGeneration() > a1.getGeneration());
+        Assert.assertEquals(library.getSkippedRefreshCount(), 1);
+
+        library.destroy();
+    }
+
+    @Test
+    public void testChangeTriggeredRefresh() throws Exception {
+        final ChangingSourceStage source = new ChangingSourceStage();
+        source.setId("changingSource");
+        source.entities.put("a", "itemA");
+        source.initialize();
+
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(source));
+        pipeline.initialize();
+
+        final StubChangeDetector detector = new StubChangeDetector();
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(pipeline);
+        library.setSourceChangeDetector(detector);
+        library.setChangeRefreshDelay(Duration.ofMillis(50));
+        library.setMinChangeRefreshInterval(Duration.ofMillis(500));
+        library.initialize();
+        Assert.assertNotNull(detector.onChange);
+        Assert.assertEquals(detector.refreshes, 1);
+
+        // a burst of changes results in a single refresh, no sooner than the minimum interval
+        source.entities.put("a", "itemA2");
+        for (int i = 0; i < 5; i++) {
+            detector.onChange.run();
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(library.getChangeRefreshCount(), 0);
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (library.getChangeRefreshCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(library.getChangeRefreshCount(), 1);
+        Assert.assertEquals(detector.refreshes, 2);
+        Assert.assertEquals(library.get("a").getItems().get(0).unwrap(), "itemA2");
+        Assert.assertEquals(library.health().getDetails().get("changeRefreshes"), 1L);
+
+        Thread.sleep(200);
+        Assert.assertEquals(library.getChangeRefreshCount(), 1);
+
+        library.destroy();
+    }
+
+    /**
+     * Reads its entities, then waits for the test before returning them.
+     */
+    private static class BlockingSourceStage extends ChangingSourceStage {
+
+        volatile boolean block;
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        final CountDownLatch proceed = new CountDownLatch(1);
+
+        @Override
+        protected void doExecute(final @Nonnull List<Item<String>> itemCollection) throws StageProcessingException {
+            final List<Item<String>> items = new ArrayList<>();
+            super.doExecute(items);
+            if (block) {
+                started.countDown();
+                try {
+                    proceed.await();
+                } catch (final InterruptedException e) {
+                    throw new StageProcessingException(e);
+                }
+            }
+            itemCollection.addAll(items);
+        }
+    }
+
+    @Test
+    public void testChangedDuringRefresh() throws Exception {
+        final BlockingSourceStage source = new BlockingSourceStage();
+        source.setId("blockingSource");
+        source.entities.put("a", "itemA");
+        source.initialize();
+
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(source));
+        pipeline.initialize();
+
+        final StubChangeDetector detector = new StubChangeDetector();
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(pipeline);
+        library.setSourceChangeDetector(detector);
+        library.setChangeRefreshDelay(Duration.ofMillis(10));
+        library.setMinChangeRefreshInterval(Duration.ZERO);
+        library.initialize();
+
+        // start a refresh which reads the source before it changes
+        source.block = true;
+        final Thread refresher = new Thread(library::refresh);
+        refresher.start();
+        source.started.await();
+        source.block = false;
+        source.entities.put("a", "itemA2");
+        detector.onChange.run();
+
+        // the change refresh does not wait for the refresh in progress
+        Thread.sleep(200);
+        Assert.assertEquals(library.getChangeRefreshCount(), 0);
+        source.proceed.countDown();
+        refresher.join();
+
+        // but the change is not lost: another refresh follows the one in progress
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (library.getChangeRefreshCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(library.getChangeRefreshCount(), 1);
+        Assert.assertEquals(library.get("a").getItems().get(0).unwrap(), "itemA2");
+
+        library.destroy();
+    }
+
     @Test
     public void testHealthRefreshing() throws Exception {
         final @Nonnull Duration refreshInterval = Duration.ofMillis(100); // 1/10 second
@@ -1,27 +1,56 @@
 
 package uk.org.iay.mdq.server;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.annotation.Nonnull;
 
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.aayushatharva.brotli4j.decoder.Decoder;
+import com.github.luben.zstd.Zstd;
+import com.google.common.net.HttpHeaders;
+
 import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
 import net.shibboleth.metadata.ItemSerializer;
 import net.shibboleth.metadata.SimpleItemCollectionSerializer;
+import net.shibboleth.metadata.pipeline.AbstractStage;
 import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.pipeline.StaticItemSourceStage;
 import net.shibboleth.metadata.testing.MockItem;
+import net.shibboleth.shared.logic.ConstraintViolationException;
 
 public class MetadataServiceTest {
     
@@ -66,6 +95,7 @@ public class MetadataServiceTest {
         // first call should get the generation 1 result
         final Result r1 = service.get(id);
         Assert.assertEquals("item1".getBytes(), r1.getRepresentation().getBytes());
+        verify(icl).addRefreshListener(any());
         verify(icl).get(id);
         verifyNoMoreInteractions(icl);
 
@@ -84,4 +114,879 @@ public class MetadataServiceTest {
         verify(icl, times(4)).get(id);
         verifyNoMoreInteractions(icl);
     }
+
+    @Test
+    public void testSharedItems() throws Exception {
+        final String id = "id";
+        final List<String> key = new ArrayList<>();
+        key.add(id);
+
+        final Item<String> single = new MockItem("single");
+        final IdentifiedItemCollection<String> coll1 = new IdentifiedItemCollection<>(single, key, 1);
+        final List<Item<String>> pair = new ArrayList<>();
+        pair.add(new MockItem("first"));
+        pair.add(new MockItem("second"));
+        final IdentifiedItemCollection<String> coll2 = new IdentifiedItemCollection<>(pair, key, 2);
+
+        final ItemCollectionLibrary<String> icl = mock(ItemCollectionLibrary.class);
+        when(icl.get(id)).thenReturn(coll1, coll2);
+
+        // records the items the render pipeline is given
+        final List<Item<String>> rendered = new ArrayList<>();
+        final var recorder = new AbstractStage<String>() {
+            @Override
+            protected void doExecute(@Nonnull final List<Item<String>> items) {
+                rendered.addAll(items);
+            }
+        };
+        recorder.setId("recorder");
+        recorder.initialize();
+        final List<Stage<String>> stages = new ArrayList<>();
+        stages.add(recorder);
+        final var renderPipeline = new SimplePipeline<String>();
+        renderPipeline.setId("render");
+        renderPipeline.setStages(stages);
+        renderPipeline.initialize();
+
+        final MetadataService<String> service = new MetadataService<>();
+        service.setId("test");
+        service.setItemCollectionLibrary(icl);
+        service.setRenderPipeline(renderPipeline);
+        service.setSharedItemsMinimum(2);
+        service.setSerializer(new SimpleItemCollectionSerializer<>(new ItemSerializer<String>(){
+            public void serialize(@Nonnull Item<String> item, @Nonnull OutputStream output) {
+                try {
+                    output.write(item.unwrap().getBytes());
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }}));
+        service.initialize();
+
+        // a single item is copied before rendering
+        service.get(id);
+        Assert.assertEquals(rendered.size(), 1);
+        Assert.assertNotSame(rendered.get(0), single);
+
+        // a larger collection is rendered without copying its items
+        rendered.clear();
+        final Result result = service.get(id);
+        Assert.assertEquals(result.getRepresentation().getBytes(), "firstsecond".getBytes());
+        Assert.assertEquals(rendered.size(), 2);
+        Assert.assertSame(rendered.get(0), pair.get(0));
+        Assert.assertSame(rendered.get(1), pair.get(1));
+
+        service.destroy();
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testNegativeSharedItemsMinimum() {
+        new MetadataService<String>().setSharedItemsMinimum(-1);
+    }
+
+    /**
+     * A stage which counts its executions, and blocks each one until released.
+     */
+    static class BlockingStage extends AbstractStage<String> {
+
+        final AtomicInteger executions = new AtomicInteger();
+
+        volatile CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        protected void doExecute(final @Nonnull List<Item<String>> itemCollection) throws StageProcessingException {
+            executions.incrementAndGet();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                throw new StageProcessingException(e);
+            }
+        }
+    }
+
+    private MetadataService<String> makeService(final ItemCollectionLibrary<String> icl,
+            final List<Stage<String>> stages) throws Exception {
+        final var renderPipeline = new SimplePipeline<String>();
+        renderPipeline.setId("render");
+        renderPipeline.setStages(stages);
+        renderPipeline.initialize();
+
+        final MetadataService<String> service = new MetadataService<>();
+        service.setId("test");
+        service.setItemCollectionLibrary(icl);
+        service.setRenderPipeline(renderPipeline);
+        service.setSerializer(new SimpleItemCollectionSerializer<>(new ItemSerializer<String>(){
+            public void serialize(@Nonnull Item<String> item, @Nonnull OutputStream output) {
+                try {
+                    output.write(item.unwrap().getBytes());
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }}));
+        return service;
+    }
+
+    @Test
+    public void testCoalescedRenders() throws Exception {
+        final String id = "id";
+        final List<String> key = new ArrayList<>();
+        key.add(id);
+        final IdentifiedItemCollection<String> coll = new IdentifiedItemCollection<>(new MockItem("item1"), key, 1);
+
+        final ItemCollectionLibrary<String> icl = mock(ItemCollectionLibrary.class);
+        when(icl.get(id)).thenReturn(coll);
+
+        final BlockingStage stage = new BlockingStage();
+        stage.setId("blocking");
+        stage.initialize();
+        final List<Stage<String>> stages = new ArrayList<>();
+        stages.add(stage);
+
+        final MetadataService<String> service = makeService(icl, stages);
+        service.initialize();
+
+        final int callers = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            final List<Future<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                futures.add(executor.submit(() -> service.get(id)));
+            }
+
+            // wait for all but one of the callers to queue behind the first
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (service.getCoalescedRenderCount() < callers - 1) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline, "callers did not coalesce");
+                Thread.sleep(10);
+            }
+            stage.release.countDown();
+
+            final Result first = futures.get(0).get();
+            for (final Future<Result> future : futures) {
+                Assert.assertSame(future.get(), first);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(stage.executions.get(), 1);
+        Assert.assertEquals(service.getCoalescedRenderCount(), callers - 1);
+
+        // a later call is a cache hit
+        service.get(id);
+        Assert.assertEquals(stage.executions.get(), 1);
+    }
+
+    @Test
+    public void testRenderAdmission() throws Exception {
+        final IdentifiedItemCollection<String> coll1 =
+                new IdentifiedItemCollection<>(new MockItem("item1"), List.of("id1"), 1);
+        final IdentifiedItemCollection<String> coll2 =
+                new IdentifiedItemCollection<>(new MockItem("item2"), List.of("id2"), 1);
+
+        final ItemCollectionLibrary<String> icl = mock(ItemCollectionLibrary.class);
+        when(icl.get("id1")).thenReturn(coll1);
+        when(icl.get("id2")).thenReturn(coll2);
+
+        final BlockingStage stage = new BlockingStage();
+        stage.setId("blocking");
+        stage.initialize();
+
+        final MetadataService<String> service = makeService(icl, List.of(stage));
+        service.setMaxConcurrentRenders(1);
+        service.setMaxQueuedRenders(0);
+        service.setRenderRetryAfter(Duration.ofSeconds(3));
+        service.initialize();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // the only permitted render blocks
+            final Future<Result> first = executor.submit(() -> service.get("id1"));
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (stage.executions.get() < 1) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline, "render did not start");
+                Thread.sleep(10);
+            }
+
+            // a query for the same collection waits for it without being admitted
+            final Future<Result> coalesced = executor.submit(() -> service.get("id1"));
+            while (service.getCoalescedRenderCount() < 1) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline, "caller did not coalesce");
+                Thread.sleep(10);
+            }
+
+            // a query needing another render is turned away at once
+            final Result busy = service.get("id2");
+            Assert.assertFalse(busy.isNotFound());
+            Assert.assertEquals(busy.getRetryAfter(), Duration.ofSeconds(3));
+            Assert.assertEquals(service.getRejectedRenderCount(), 1);
+            Assert.assertEquals(service.health().getDetails().get("activeRenders"), 1);
+
+            stage.release.countDown();
+            Assert.assertNull(first.get().getRetryAfter());
+            Assert.assertSame(coalesced.get(), first.get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // cache hits and new renders are served once the limit is no longer reached
+        Assert.assertEquals("item1".getBytes(), service.get("id1").getRepresentation().getBytes());
+        Assert.assertEquals("item2".getBytes(), service.get("id2").getRepresentation().getBytes());
+        Assert.assertEquals(stage.executions.get(), 2);
+
+        service.destroy();
+    }
+
+    @Test
+    public void testRenderFailureNotCached() throws Exception {
+        final IdentifiedItemCollection<String> coll =
+                new IdentifiedItemCollection<>(new MockItem("item1"), List.of("id"), 1);
+        final ItemCollectionLibrary<String> icl = mock(ItemCollectionLibrary.class);
+        when(icl.get("id")).thenReturn(coll);
+
+        // the first render fails
+        final AtomicInteger executions = new AtomicInteger();
+        final var failOnce = new AbstractStage<String>() {
+            @Override
+            protected void doExecute(@Nonnull final List<Item<String>> items) throws StageProcessingException {
+                if (executions.incrementAndGet() == 1) {
+                    throw new StageProcessingException("transient failure");
+                }
+            }
+        };
+        failOnce.setId("failOnce");
+        failOnce.initialize();
+
+        final MetadataService<String> service = makeService(icl, List.of(failOnce));
+        service.initialize();
+
+        Assert.assertTrue(service.get("id").isNotFound());
+        Assert.assertEquals(service.health().getDetails().get("cachedResults"), 0L);
+
+        // the failure is not remembered, so the next query renders the collection again
+        Assert.assertEquals(service.get("id").getRepresentation().getBytes(), "item1".getBytes());
+        Assert.assertEquals(executions.get(), 2);
+
+        service.destroy();
+    }
+
+    @Test
+    public void testCacheSizeLimit() throws Exception {
+        final IdentifiedItemCollection<String> coll1 =
+                new IdentifiedItemCollection<>(new MockItem("item1"), List.of("id1"), 1);
+        final IdentifiedItemCollection<String> coll2 =
+                new IdentifiedItemCollection<>(new MockItem("item2"), List.of("id2"), 1);
+
+        final ItemCollectionLibrary<String> icl = mock(ItemCollectionLibrary.class);
+        when(icl.get("id1")).thenReturn(coll1);
+        when(icl.get("id2")).thenReturn(coll2);
+
+        // room for one five-byte result, but not two; compressed forms would not fit
+        final MetadataService<String> service = makeService(icl, new ArrayList<>());
+        service.setMaximumCacheSize(8);
+        service.setCompression(false);
+        service.initialize();
+
+        service.get("id1");
+        service.get("id1");
+        Assert.assertEquals(service.getCacheStats().hitCount(), 1);
+        Assert.assertEquals(service.getCacheStats().evictionCount(), 0);
+
+        service.get("id2");
+        Assert.assertEquals(service.getCacheStats().evictionCount(), 1);
+
+        // the first result has been evicted, so must be rendered again
+        final Result r = service.get("id1");
+        Assert.assertEquals("item1".getBytes(), r.getRepresentation().getBytes());
+        Assert.assertEquals(service.getCacheStats().missCount(), 3);
+        Assert.assertEquals(service.getCacheStats().evictionCount(), 2);
+    }
+
+    @Test
+    public void testWarmUpBeforePublish() throws Exception {
+        final List<Item<String>> items = new ArrayList<>();
+        for (final String id : List.of("item1", "item2", "item3")) {
+            final Item<String> item = new MockItem(id);
+            item.getItemMetadata().put(new ItemId(id));
+            items.add(item);
+        }
+        final StaticItemSourceStage<String> source = new StaticItemSourceStage<>();
+        source.setId("source");
+        source.setSourceItems(items);
+        source.initialize();
+        final SimplePipeline<String> sourcePipeline = new SimplePipeline<>();
+        sourcePipeline.setId("sourcePipeline");
+        sourcePipeline.setStages(List.of(source));
+        sourcePipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(sourcePipeline);
+        library.initialize();
+
+        // counts renders without blocking them
+        final BlockingStage stage = new BlockingStage();
+        stage.setId("counting");
+        stage.initialize();
+        stage.release.countDown();
+
+        final MetadataService<String> service = makeService(library, List.of(stage));
+        service.setWarmUp(true);
+        service.setWarmUpBeforePublish(true);
+        service.setWarmUpParallelism(2);
+        service.initialize();
+
+        // three entities plus the aggregate are rendered during initialization
+        Assert.assertEquals(stage.executions.get(), 4);
+        final Map<String, Object> details = (Map<String, Object>) service.health().getDetails().get("warmUp");
+        Assert.assertEquals(details.get("collections"), 4);
+        Assert.assertEquals(details.get("rendered"), 4);
+        Assert.assertNotNull(details.get("duration"));
+
+        // queries are all cache hits
+        service.get("item1");
+        service.getAll();
+        Assert.assertEquals(stage.executions.get(), 4);
+
+        // a refresh is completely rendered before it is published
+        library.refresh();
+        Assert.assertEquals(stage.executions.get(), 8);
+        service.get("item2");
+        Assert.assertEquals(stage.executions.get(), 8);
+
+        // the only cache misses were made by the warm-up renders themselves
+        Assert.assertEquals(service.getCacheStats().missCount(), 8);
+        Assert.assertEquals(service.getCacheStats().hitCount(), 3);
+
+        service.destroy();
+        library.destroy();
+    }
+
+    @Test
+    public void testUnchangedResultsSurviveRefresh() throws Exception {
+        final ItemCollectionLibraryTest.ChangingSourceStage source = new ItemCollectionLibraryTest.ChangingSourceStage();
+        source.setId("changingSource");
+        source.entities.put("a", "itemA");
+        source.entities.put("b", "itemB");
+        source.initialize();
+        final SimplePipeline<String> sourcePipeline = new SimplePipeline<>();
+        sourcePipeline.setId("sourcePipeline");
+        sourcePipeline.setStages(List.of(source));
+        sourcePipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(sourcePipeline);
+        library.setItemSerializer(new ItemCollectionLibraryTest.MockItemSerializer());
+        library.initialize();
+
+        // counts renders without blocking them
+        final BlockingStage stage = new BlockingStage();
+        stage.setId("counting");
+        stage.initialize();
+        stage.release.countDown();
+
+        final MetadataService<String> service = makeService(library, List.of(stage));
+        service.initialize();
+
+        service.get("a");
+        service.get("b");
+        service.getAll();
+        Assert.assertEquals(stage.executions.get(), 3);
+
+        // after a refresh changing only "b", the result for "a" is still cached
+        source.entities.put("b", "itemB2");
+        library.refresh();
+        service.get("a");
+        Assert.assertEquals(stage.executions.get(), 3);
+        Assert.assertEquals("itemB2".getBytes(), service.get("b").getRepresentation().getBytes());
+        service.getAll();
+        Assert.assertEquals(stage.executions.get(), 5);
+
+        // results superseded by the previous refresh are discarded by the next one
+        Assert.assertEquals(service.health().getDetails().get("cachedResults"), 5L);
+        library.refresh();
+        Assert.assertEquals(service.health().getDetails().get("cachedResults"), 3L);
+
+        service.destroy();
+        library.destroy();
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        final ItemCollectionLibraryTest.ChangingSourceStage source = new ItemCollectionLibraryTest.ChangingSourceStage();
+        source.setId("changingSource");
+        source.entities.put("a", "itemA");
+        source.initialize();
+        final SimplePipeline<String> sourcePipeline = new SimplePipeline<>();
+        sourcePipeline.setId("sourcePipeline");
+        sourcePipeline.setStages(List.of(source));
+        sourcePipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(sourcePipeline);
+        library.setItemSerializer(new ItemCollectionLibraryTest.MockItemSerializer());
+        library.initialize();
+
+        final BlockingStage stage = new BlockingStage();
+        stage.setId("blocking");
+        stage.initialize();
+        stage.release.countDown();
+
+        final MetadataService<String> service = makeService(library, List.of(stage));
+        service.setMaxStaleness(Duration.ofMinutes(1));
+        service.initialize();
+
+        final Result r1 = service.get("a");
+        Assert.assertFalse(r1.isStale());
+        Assert.assertEquals(stage.executions.get(), 1);
+
+        // block renders of the new generation
+        stage.release = new CountDownLatch(1);
+        source.entities.put("a", "itemA2");
+        library.refresh();
+
+        // the previous result is served while the new one renders in the background
+        final Result r2 = service.get("a");
+        Assert.assertTrue(r2.isStale());
+        Assert.assertEquals("itemA".getBytes(), r2.getRepresentation().getBytes());
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (stage.executions.get() < 2) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "background render did not start");
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(service.get("a").isStale());
+        Assert.assertEquals(service.getStaleResultCount(), 2);
+
+        // once the background render completes, the new result replaces the stale one
+        stage.release.countDown();
+        Result r3 = service.get("a");
+        while (r3.isStale()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "background render did not complete");
+            Thread.sleep(10);
+            r3 = service.get("a");
+        }
+        Assert.assertEquals("itemA2".getBytes(), r3.getRepresentation().getBytes());
+        Assert.assertEquals(stage.executions.get(), 2);
+
+        service.destroy();
+        library.destroy();
+    }
+
+    @Test
+    public void testRejectedRenderStaleness() throws Exception {
+        final ItemCollectionLibraryTest.ChangingSourceStage source = new ItemCollectionLibraryTest.ChangingSourceStage();
+        source.setId("changingSource");
+        source.entities.put("a", "itemA");
+        source.entities.put("b", "itemB");
+        source.initialize();
+        final SimplePipeline<String> sourcePipeline = new SimplePipeline<>();
+        sourcePipeline.setId("sourcePipeline");
+        sourcePipeline.setStages(List.of(source));
+        sourcePipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(sourcePipeline);
+        library.setItemSerializer(new ItemCollectionLibraryTest.MockItemSerializer());
+        library.initialize();
+
+        final BlockingStage stage = new BlockingStage();
+        stage.setId("blocking");
+        stage.initialize();
+        stage.release.countDown();
+
+        final MetadataService<String> service = makeService(library, List.of(stage));
+        service.setMaxStaleness(Duration.ofMillis(200));
+        service.setMaxConcurrentRenders(1);
+        service.setMaxQueuedRenders(0);
+        service.initialize();
+
+        service.get("a");
+        service.get("b");
+        final int renders = stage.executions.get();
+
+        // block renders of the new generation
+        stage.release = new CountDownLatch(1);
+        source.entities.put("a", "itemA2");
+        source.entities.put("b", "itemB2");
+        library.refresh();
+
+        // let the previous generation become too stale to serve
+        Thread.sleep(400);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the only permitted render blocks
+            final Future<Result> first = executor.submit(() -> service.get("a"));
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (stage.executions.get() < renders + 1) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline, "render did not start");
+                Thread.sleep(10);
+            }
+
+            // a rejected render is not answered from the expired generation
+            final Result busy = service.get("b");
+            Assert.assertFalse(busy.isStale());
+            Assert.assertNotNull(busy.getRetryAfter());
+            Assert.assertEquals(service.getRejectedRenderCount(), 1);
+            Assert.assertEquals(service.getStaleResultCount(), 0);
+
+            stage.release.countDown();
+            Assert.assertEquals("itemA2".getBytes(), first.get().getRepresentation().getBytes());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        service.destroy();
+        library.destroy();
+    }
+
+    @Test
+    public void testRerenderAheadOfExpiry() throws Exception {
+        final ItemCollectionLibraryTest.ChangingSourceStage source = new ItemCollectionLibraryTest.ChangingSourceStage();
+        source.setId("changingSource");
+        source.entities.put("a", "itemA");
+        source.initialize();
+        final SimplePipeline<String> sourcePipeline = new SimplePipeline<>();
+        sourcePipeline.setId("sourcePipeline");
+        sourcePipeline.setStages(List.of(source));
+        sourcePipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(sourcePipeline);
+        library.setItemSerializer(new ItemCollectionLibraryTest.MockItemSerializer());
+        library.initialize();
+
+        // counts renders without blocking them
+        final BlockingStage stage = new BlockingStage();
+        stage.setId("counting");
+        stage.initialize();
+        stage.release.countDown();
+
+        // re-rendered no sooner than 1.2s later, so in a later second than the first rendering
+        final MetadataService<String> service = makeService(library, List.of(stage));
+        service.setValidityWindow(Duration.ofMillis(2400));
+        service.setRerenderFraction(0.5);
+        service.initialize();
+
+        final ServiceResult r1 = (ServiceResult) service.get("a");
+        Assert.assertEquals(stage.executions.get(), 1);
+
+        // the cached result is replaced by a new rendering without any query being made
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (service.getRerenderedResultCount() < 1) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "result was not rendered again");
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(stage.executions.get() >= 2);
+        final ServiceResult r2 = (ServiceResult) service.get("a");
+        Assert.assertNotSame(r2, r1);
+        Assert.assertTrue(r2.getRendered().isAfter(r1.getRendered()));
+        Assert.assertEquals("itemA".getBytes(), r2.getRepresentation().getBytes());
+        Assert.assertEquals(service.getCacheStats().missCount(), 1);
+
+        // a client holding the first rendering is sent the new one, even if it only sends If-Modified-Since
+        Assert.assertTrue(r2.getLastModified().isAfter(r1.getLastModified()));
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/entities/a");
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, r1.getLastModified().toEpochMilli());
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        new ResultRawView("application/samlmetadata+xml").render(Map.of("result", r2), request, response);
+        Assert.assertEquals(response.getStatus(), 200);
+        Assert.assertEquals(response.getDateHeader(HttpHeaders.LAST_MODIFIED), r2.getLastModified().toEpochMilli());
+
+        service.destroy();
+        library.destroy();
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testRerenderFractionTooLarge() {
+        new MetadataService<String>().setRerenderFraction(1.0);
+    }
+
+    @Test
+    public void testBackgroundCompression() throws Exception {
+        final String content = "item1 ".repeat(1000);
+        final IdentifiedItemCollection<String> coll =
+                new IdentifiedItemCollection<>(new MockItem(content), List.of("id"), 1);
+        final ItemCollectionLibrary<String> icl = mock(ItemCollectionLibrary.class);
+        when(icl.get("id")).thenReturn(coll);
+
+        final MetadataService<String> service = makeService(icl, new ArrayList<>());
+        service.setCompressionLevels(Map.of(GZIPRepresentation.ENCODING, 1));
+        service.initialize();
+
+        // the compressed forms appear once the background compression has completed
+        final long deadline = System.currentTimeMillis() + 10_000;
+        Result result = service.get("id");
+        while (result.getEncodedRepresentations().size() < 4) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "result was not compressed");
+            Thread.sleep(10);
+            result = service.get("id");
+        }
+
+        final byte[] gzipped = result.getGZIPRepresentation().getBytes();
+        Assert.assertTrue(gzipped.length < content.length());
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            Assert.assertEquals(in.readAllBytes(), content.getBytes());
+        }
+        try (InputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(result.getDeflateRepresentation().getBytes()))) {
+            Assert.assertEquals(in.readAllBytes(), content.getBytes());
+        }
+        for (final Representation rep : result.getEncodedRepresentations()) {
+            if (BrotliRepresentation.ENCODING.equals(rep.getContentEncoding())) {
+                Assert.assertEquals(Decoder.decompress(rep.getBytes()).getDecompressedData(), content.getBytes());
+            } else if (ZstdRepresentation.ENCODING.equals(rep.getContentEncoding())) {
+                Assert.assertEquals(Zstd.decompress(rep.getBytes(), content.length()), content.getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testOffHeapRepresentations() throws Exception {
+        final IdentifiedItemCollection<String> coll =
+                new IdentifiedItemCollection<>(new MockItem("offHeap"), List.of("id"), 1);
+        final ItemCollectionLibrary<String> icl = mock(ItemCollectionLibrary.class);
+        when(icl.get("id")).thenReturn(coll);
+
+        final MetadataService<String> service = makeService(icl, new ArrayList<>());
+        service.setCompression(false);
+        service.setOffHeapRepresentations(true);
+        service.initialize();
+
+        final Representation rep = service.get("id").getRepresentation();
+        Assert.assertTrue(rep.getByteBuffer().isDirect());
+        Assert.assertEquals(rep.getBytes(), "offHeap".getBytes());
+        Assert.assertEquals(rep.getLength(), 7);
+        Assert.assertTrue(OffHeapRepresentation.getAllocatedBytes() >= 7);
+
+        // a reference taken before eviction keeps the content alive until it is released
+        Assert.assertTrue(rep.retain());
+        service.clearCache();
+        Assert.assertEquals(rep.getBytes(), "offHeap".getBytes());
+        rep.release();
+        Assert.assertFalse(rep.retain());
+        try {
+            rep.getByteBuffer();
+            Assert.fail("released representation was usable");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+
+        // a new result is rendered in place of the evicted one
+        Assert.assertEquals(service.get("id").getRepresentation().getBytes(), "offHeap".getBytes());
+        service.destroy();
+    }
+
+    @Test
+    public void testResultTooLargeToCache() throws Exception {
+        final IdentifiedItemCollection<String> coll =
+                new IdentifiedItemCollection<>(new MockItem("offHeap"), List.of("id"), 1);
+        final ItemCollectionLibrary<String> icl = mock(ItemCollectionLibrary.class);
+        when(icl.get("id")).thenReturn(coll);
+
+        // room for the uncompressed result, but not for its compressed forms as well
+        final MetadataService<String> service = makeService(icl, new ArrayList<>());
+        service.setOffHeapRepresentations(true);
+        service.setMaximumCacheSize(16);
+        service.initialize();
+
+        final Result result = service.get("id");
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (!service.health().getDetails().get("cachedResults").equals(0L)) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "result was not removed from the cache");
+            Thread.sleep(10);
+        }
+
+        // the result is still usable by a caller which obtained it before it was removed
+        final Representation rep = result.getRepresentation();
+        Assert.assertTrue(rep.retain());
+        Assert.assertEquals(rep.getBytes(), "offHeap".getBytes());
+        rep.release();
+
+        // a result which can never fit is served without being cached
+        final MetadataService<String> small = makeService(icl, new ArrayList<>());
+        small.setOffHeapRepresentations(true);
+        small.setMaximumCacheSize(4);
+        small.initialize();
+        for (int i = 0; i < 2; i++) {
+            final Representation uncached = small.get("id").getRepresentation();
+            Assert.assertTrue(uncached.retain());
+            Assert.assertEquals(uncached.getBytes(), "offHeap".getBytes());
+            uncached.release();
+        }
+        Assert.assertEquals(small.health().getDetails().get("cachedResults"), 0L);
+
+        small.destroy();
+        service.destroy();
+    }
+
+    @Test
+    public void testAggregateSpooling() throws Exception {
+        final Path directory = Files.createTempDirectory("spool");
+        final Path abandoned = Files.createFile(directory.resolve("spool-abandoned.tmp"));
+        final IdentifiedItemCollection<String> all =
+                new IdentifiedItemCollection<>(List.of(new MockItem("aggregate")), ItemCollectionLibrary.ID_ALL, 1);
+        final IdentifiedItemCollection<String> coll =
+                new IdentifiedItemCollection<>(new MockItem("entity"), List.of("id"), 1);
+        final ItemCollectionLibrary<String> icl = mock(ItemCollectionLibrary.class);
+        when(icl.get(ItemCollectionLibrary.ID_ALL)).thenReturn(all);
+        when(icl.get("id")).thenReturn(coll);
+
+        final MetadataService<String> service = makeService(icl, new ArrayList<>());
+        service.setCompression(false);
+        service.setAggregateSpoolDirectory(directory.toString());
+        service.initialize();
+        Assert.assertFalse(Files.exists(abandoned));
+
+        // only the aggregate is spooled, and it has the same ETag as if it were not
+        Assert.assertFalse(service.get("id").getRepresentation().getByteBuffer().isDirect());
+        final Representation rep = service.getAll().getRepresentation();
+        Assert.assertTrue(rep.getByteBuffer().isDirect());
+        Assert.assertEquals(rep.getBytes(), "aggregate".getBytes());
+        Assert.assertEquals(rep.getLength(), 9);
+        Assert.assertEquals(rep.getETag(), new SimpleRepresentation("aggregate".getBytes()).getETag());
+        try (Stream<Path> files = Files.list(directory)) {
+            Assert.assertEquals(files.count(), 1);
+        }
+
+        // the spool file is deleted once the result is evicted
+        service.clearCache();
+        try (Stream<Path> files = Files.list(directory)) {
+            Assert.assertEquals(files.count(), 0);
+        }
+        service.destroy();
+    }
+
+    @Test
+    public void testCompressionLevelValidation() throws Exception {
+        final MetadataService<String> service = new MetadataService<>();
+        try {
+            service.setCompressionLevels(Map.of(GZIPRepresentation.ENCODING, 10));
+            Assert.fail("invalid level accepted");
+        } catch (final ConstraintViolationException e) {
+            // expected
+        }
+        try {
+            service.setCompressionLevels(Map.of("unknown", 1));
+            Assert.fail("unknown encoding accepted");
+        } catch (final ConstraintViolationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResultStore() throws Exception {
+        final Path directory = Files.createTempDirectory("results");
+        final ItemCollectionLibraryTest.ChangingSourceStage source = new ItemCollectionLibraryTest.ChangingSourceStage();
+        source.setId("changingSource");
+        source.entities.put("a", "itemA ".repeat(100));
+        source.initialize();
+        final SimplePipeline<String> sourcePipeline = new SimplePipeline<>();
+        sourcePipeline.setId("sourcePipeline");
+        sourcePipeline.setStages(List.of(source));
+        sourcePipeline.initialize();
+
+        final ItemCollectionLibrary<String> library = new ItemCollectionLibrary<>();
+        library.setId("library");
+        library.setSourcePipeline(sourcePipeline);
+        library.setItemSerializer(new ItemCollectionLibraryTest.MockItemSerializer());
+        library.initialize();
+
+        final BlockingStage stage = new BlockingStage();
+        stage.setId("counting");
+        stage.initialize();
+        stage.release.countDown();
+
+        // the first service renders the result and stores it in the background
+        final MetadataService<String> service1 = makeService(library, List.of(stage));
+        service1.setResultStoreDirectory(directory.toString());
+        service1.initialize();
+        final Result r1 = service1.get("a");
+        final Path file = directory.resolve(library.get("a").getDigest() + ".result");
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (!Files.exists(file)) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "result was not stored");
+            Thread.sleep(10);
+        }
+        service1.destroy();
+        Assert.assertEquals(stage.executions.get(), 1);
+
+        // a new service restores the result and its compressed forms without rendering
+        final MetadataService<String> service2 = makeService(library, List.of(stage));
+        service2.setResultStoreDirectory(directory.toString());
+        service2.initialize();
+        final Result r2 = service2.get("a");
+        Assert.assertEquals(stage.executions.get(), 1);
+        Assert.assertEquals(r2.getRepresentation().getBytes(), r1.getRepresentation().getBytes());
+        Assert.assertEquals(r2.getRepresentation().getETag(), r1.getRepresentation().getETag());
+        Assert.assertNotNull(r2.getGZIPRepresentation());
+        service2.destroy();
+
+        // a damaged file is discarded and the result rendered again
+        Files.write(file, new byte[] {1, 2, 3});
+        FileTime stored = Files.getLastModifiedTime(file);
+        final MetadataService<String> service3 = makeService(library, List.of(stage));
+        service3.setResultStoreDirectory(directory.toString());
+        service3.initialize();
+        Assert.assertEquals(service3.get("a").getRepresentation().getBytes(), r1.getRepresentation().getBytes());
+        Assert.assertEquals(stage.executions.get(), 2);
+        stored = awaitStored(file, stored);
+        service3.destroy();
+
+        // a result rendered under another configuration is rendered again
+        final MetadataService<String> service4 = makeService(library, List.of(stage));
+        service4.setResultStoreDirectory(directory.toString());
+        service4.setRenderConfiguration("validUntil=P1D");
+        service4.setValidityWindow(Duration.ofDays(1));
+        service4.initialize();
+        service4.get("a");
+        Assert.assertEquals(stage.executions.get(), 3);
+        awaitStored(file, stored);
+        service4.destroy();
+
+        // as is a result too old to restore
+        stored = FileTime.from(Instant.now().minus(Duration.ofDays(2)));
+        Files.setLastModifiedTime(file, stored);
+        final MetadataService<String> service5 = makeService(library, List.of(stage));
+        service5.setResultStoreDirectory(directory.toString());
+        service5.setRenderConfiguration("validUntil=P1D");
+        service5.setValidityWindow(Duration.ofDays(1));
+        service5.initialize();
+        service5.get("a");
+        Assert.assertEquals(stage.executions.get(), 4);
+        awaitStored(file, stored);
+        service5.destroy();
+
+        // a recent result rendered under the same configuration is restored
+        final MetadataService<String> service6 = makeService(library, List.of(stage));
+        service6.setResultStoreDirectory(directory.toString());
+        service6.setRenderConfiguration("validUntil=P1D");
+        service6.setValidityWindow(Duration.ofDays(1));
+        service6.initialize();
+        service6.get("a");
+        Assert.assertEquals(stage.executions.get(), 4);
+        service6.destroy();
+        library.destroy();
+    }
+
+    /**
+     * Wait for a result to be stored in the background, replacing an earlier file.
+     *
+     * @param file the result file
+     * @param previous modification time of the earlier file
+     *
+     * @return modification time of the new file
+     */
+    private static FileTime awaitStored(final Path file, final FileTime previous) throws Exception {
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (!Files.exists(file) || Files.getLastModifiedTime(file).equals(previous)) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "result was not stored");
+            Thread.sleep(10);
+        }
+        return Files.getLastModifiedTime(file);
+    }
 }
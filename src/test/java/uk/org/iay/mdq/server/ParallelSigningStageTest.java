@@ -0,0 +1,197 @@
+package uk.org.iay.mdq.server;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.springframework.boot.actuate.health.Status;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.EntitiesDescriptorAssemblerStage;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.testing.MockItem;
+
+public class ParallelSigningStageTest {
+
+    /**
+     * Records the collections it is given, the threads it runs on and how many
+     * of its executions overlap.
+     */
+    private static class RecordingStage<T> extends AbstractStage<T> {
+
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+
+        final List<Item<T>> seen = Collections.synchronizedList(new ArrayList<>());
+
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        final AtomicInteger active = new AtomicInteger();
+
+        final AtomicInteger maxActive = new AtomicInteger();
+
+        volatile long delayMillis;
+
+        @Override
+        protected void doExecute(final List<Item<T>> items) throws StageProcessingException {
+            sizes.add(items.size());
+            seen.addAll(items);
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(delayMillis);
+                mark(items);
+            } catch (final InterruptedException e) {
+                throw new StageProcessingException(e);
+            } finally {
+                active.decrementAndGet();
+            }
+            threads.add(Thread.currentThread());
+        }
+
+        void mark(final List<Item<T>> items) throws StageProcessingException {
+        }
+    }
+
+    /** Marks each item as signed. */
+    private static class MarkingStage extends RecordingStage<String> {
+
+        @Override
+        void mark(final List<Item<String>> items) throws StageProcessingException {
+            for (int i = 0; i < items.size(); i++) {
+                final Item<String> item = items.get(i);
+                if (item.unwrap().equals("bad")) {
+                    throw new StageProcessingException("can't sign " + item.unwrap());
+                }
+                items.set(i, new MockItem(item.unwrap() + "-signed"));
+            }
+        }
+    }
+
+    private <T> ParallelSigningStage<T> makeStage(final RecordingStage<T> recording, final int parallelism,
+            final int queueCapacity) throws Exception {
+        final ParallelSigningStage<T> stage = new ParallelSigningStage<>();
+        stage.setId("signing");
+        stage.setStage(recording);
+        stage.setParallelism(parallelism);
+        stage.setQueueCapacity(queueCapacity);
+        stage.initialize();
+        return stage;
+    }
+
+    private Item<Element> entity(final String entityID) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final byte[] xml = ("<md:EntityDescriptor xmlns:md=\"" + SAMLMetadataSupport.MD_NS
+                + "\" entityID=\"" + entityID + "\"/>").getBytes();
+        return new DOMElementItem(factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml)));
+    }
+
+    @Test
+    public void testSigning() throws Exception {
+        final MarkingStage marking = new MarkingStage();
+        final ParallelSigningStage<String> stage = makeStage(marking, 4, 2);
+
+        final List<Item<String>> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(new MockItem("item" + i));
+        }
+        stage.execute(items);
+
+        // all items signed one at a time, in their original order
+        Assert.assertEquals(marking.sizes, Collections.nCopies(100, 1));
+        Assert.assertEquals(items.size(), 100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(items.get(i).unwrap(), "item" + i + "-signed");
+        }
+        Assert.assertEquals(stage.getSignedCount(), 100);
+        Assert.assertTrue(marking.threads.contains(Thread.currentThread()) == stage.getCallerSignedCount() > 0);
+        Assert.assertEquals(stage.health().getStatus(), Status.UP);
+        Assert.assertEquals(stage.health().getDetails().get("signedItems"), 100L);
+
+        stage.destroy();
+        Assert.assertEquals(stage.health().getStatus(), Status.DOWN);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final ParallelSigningStage<String> stage = makeStage(new MarkingStage(), 4, 2);
+
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(new MockItem("good"));
+        items.add(new MockItem("bad"));
+        try {
+            stage.execute(items);
+            Assert.fail("expected signing to fail");
+        } catch (final StageProcessingException e) {
+            Assert.assertEquals(e.getMessage(), "can't sign bad");
+        }
+
+        stage.destroy();
+    }
+
+    /**
+     * As in <code>render.SAML</code>, the stage follows assembly of the aggregate,
+     * so each render signs a single item and the pool only limits how many renders
+     * sign at once.
+     */
+    @Test
+    public void testRenderPipeline() throws Exception {
+        final RecordingStage<Element> recording = new RecordingStage<>();
+        recording.delayMillis = 20;
+        final ParallelSigningStage<Element> signing = makeStage(recording, 2, 100);
+
+        final EntitiesDescriptorAssemblerStage assemble = new EntitiesDescriptorAssemblerStage();
+        assemble.setId("assemble");
+        assemble.initialize();
+
+        final SimplePipeline<Element> render = new SimplePipeline<>();
+        render.setId("render");
+        render.setStages(List.of(assemble, signing));
+        render.initialize();
+
+        final int renders = 8;
+        final ExecutorService requests = Executors.newFixedThreadPool(renders);
+        final List<Future<List<Item<Element>>>> results = new ArrayList<>();
+        for (int r = 0; r < renders; r++) {
+            final List<Item<Element>> items = new ArrayList<>();
+            for (int e = 0; e < 3; e++) {
+                items.add(entity("https://entity" + e + ".example.org/render" + r));
+            }
+            results.add(requests.submit(() -> {
+                render.execute(items);
+                return items;
+            }));
+        }
+        for (final Future<List<Item<Element>>> result : results) {
+            Assert.assertEquals(result.get().size(), 1);
+        }
+        requests.shutdown();
+
+        // one assembled item per render, never more signing at once than the pool allows
+        Assert.assertEquals(recording.sizes, Collections.nCopies(renders, 1));
+        for (final Item<Element> item : recording.seen) {
+            Assert.assertEquals(item.unwrap().getLocalName(), "EntitiesDescriptor");
+        }
+        Assert.assertEquals(signing.getSignedCount(), renders);
+        Assert.assertEquals(signing.getCallerSignedCount(), 0);
+        Assert.assertTrue(recording.maxActive.get() <= 2, "at most 2 signing at once");
+
+        signing.destroy();
+    }
+
+}
@@ -1,19 +1,27 @@
 package uk.org.iay.mdq.server;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.mockito.Mockito.doReturn;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.time.Duration;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
 import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import com.google.common.net.HttpHeaders;
 
 @SpringBootTest
 public class QueryResultTemplateTest extends AbstractTestNGSpringContextTests {
@@ -22,6 +30,9 @@ public class QueryResultTemplateTest extends AbstractTestNGSpringContextTests {
     
     @Autowired
     private WebApplicationContext webApplicationContext;
+
+    @SpyBean(name = "metadataService.SAML")
+    private MetadataService<Element> metadataService;
     
     @BeforeMethod
     public void setUp() {
@@ -37,4 +48,24 @@ public class QueryResultTemplateTest extends AbstractTestNGSpringContextTests {
                 .andExpect(content().string(containsString("Identifiers: 1")))
                 .andReturn();
     }
+
+    @Test
+    public void busyHTMLResponse() throws Exception {
+        doReturn(new BusyResult(Duration.ofMillis(2500))).when(metadataService).get("busy");
+        this.mockMvc
+                .perform(get("/entities/busy").accept("text/html"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "3"))
+                .andExpect(content().string(containsString("too busy")));
+    }
+
+    @Test
+    public void busyAllEntitiesHTMLResponse() throws Exception {
+        doReturn(new BusyResult(Duration.ofSeconds(5))).when(metadataService).getAll();
+        this.mockMvc
+                .perform(get("/entities").accept("text/html"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "5"))
+                .andExpect(content().string(containsString("too busy")));
+    }
 }
@@ -0,0 +1,128 @@
+package uk.org.iay.mdq.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.SimpleItemCollectionSerializer;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.DOMElementSerializer;
+import net.shibboleth.metadata.dom.saml.EntitiesDescriptorAssemblerStage;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.Stage;
+
+/**
+ * Measures the allocation made by rendering the all-entities aggregate, with and without
+ * copying each entity before the render pipeline is executed.
+ *
+ * The render pipeline imports the entities into a new <code>EntitiesDescriptor</code>,
+ * as <code>render.SAML</code> does, so copying them beforehand doubles the work.
+ *
+ * Run {@link #main} from the test classpath to report the bytes allocated per render
+ * (<code>gc.alloc.rate.norm</code>) alongside the time taken.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderCopyBenchmark {
+
+    @Param({"10000"})
+    public int entities;
+
+    private IdentifiedItemCollection<Element> collection;
+
+    private CollectionRenderer<Element> copyingRenderer;
+
+    private CollectionRenderer<Element> sharingRenderer;
+
+    @Setup
+    public void setUp() throws Exception {
+        // per-render debug logging would otherwise be included in the measurement
+        ((Logger) LoggerFactory.getLogger(MetadataService.class.getPackageName())).setLevel(Level.INFO);
+
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final DocumentBuilder builder = factory.newDocumentBuilder();
+
+        final List<Item<Element>> items = new ArrayList<>();
+        for (int i = 0; i < entities; i++) {
+            final Document document = builder.newDocument();
+            final Element entity = document.createElementNS(SAMLMetadataSupport.MD_NS, "md:EntityDescriptor");
+            entity.setAttributeNS(null, "entityID", "https://entity" + i + ".example.org/");
+            document.appendChild(entity);
+            for (int j = 0; j < 20; j++) {
+                final Element child = document.createElementNS(SAMLMetadataSupport.MD_NS, "md:Extensions");
+                child.setTextContent("content " + j + " of entity " + i);
+                entity.appendChild(child);
+            }
+            items.add(new DOMElementItem(document));
+        }
+        collection = new IdentifiedItemCollection<>(items, ItemCollectionLibrary.ID_ALL, 1);
+
+        copyingRenderer = makeRenderer(0);
+        sharingRenderer = makeRenderer(2);
+    }
+
+    private CollectionRenderer<Element> makeRenderer(final int sharedItemsMinimum) throws Exception {
+        final EntitiesDescriptorAssemblerStage assemble = new EntitiesDescriptorAssemblerStage();
+        assemble.setId("assemble");
+        assemble.initialize();
+        final List<Stage<Element>> stages = new ArrayList<>();
+        stages.add(assemble);
+        final SimplePipeline<Element> pipeline = new SimplePipeline<>();
+        pipeline.setId("render");
+        pipeline.setStages(stages);
+        pipeline.initialize();
+        return new CollectionRenderer<>(pipeline, new SimpleItemCollectionSerializer<>(new DOMElementSerializer()),
+                null, null, sharedItemsMinimum);
+    }
+
+    @Benchmark
+    public Representation copying() {
+        return copyingRenderer.render(collection);
+    }
+
+    @Benchmark
+    public Representation sharing() {
+        return sharingRenderer.render(collection);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(RenderCopyBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,74 @@
+package uk.org.iay.mdq.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.aayushatharva.brotli4j.decoder.Decoder;
+import com.github.luben.zstd.Zstd;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.testing.MockItem;
+
+public class RepresentationCompressorTest {
+
+    private static byte[] decompress(final Representation rep, final int length) throws Exception {
+        final byte[] compressed = rep.getBytes();
+        switch (rep.getContentEncoding()) {
+            case BrotliRepresentation.ENCODING:
+                return Decoder.decompress(compressed).getDecompressedData();
+            case ZstdRepresentation.ENCODING:
+                return Zstd.decompress(compressed, length);
+            case GZIPRepresentation.ENCODING:
+                try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                    return in.readAllBytes();
+                }
+            default:
+                try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+                    return in.readAllBytes();
+                }
+        }
+    }
+
+    @Test
+    public void testSpooledAggregateNotCopied() throws Exception {
+        final byte[] content = "<EntityDescriptor/>".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+        final Path directory = Files.createTempDirectory("spool");
+
+        // any attempt to copy the whole aggregate into the heap fails the test
+        final SpooledRepresentation spooled = new SpooledRepresentation(directory, out -> out.write(content)) {
+            @Override
+            public byte[] getBytes() {
+                throw new AssertionError("spooled aggregate copied into the heap");
+            }
+        };
+        final Item<String> item = new MockItem("aggregate");
+        final IdentifiedItemCollection<String> all =
+                new IdentifiedItemCollection<>(List.of(item), ItemCollectionLibrary.ID_ALL, 1);
+        final ServiceResult result = new ServiceResult(spooled, Collections.emptyList(), all, Instant.now(),
+                UnaryOperator.identity());
+
+        final List<String> encodings = RepresentationCompressor.getAvailableEncodings();
+        Assert.assertTrue(result.compress(encodings, new RepresentationCompressor(Map.of()), r -> { }));
+        Assert.assertEquals(result.getEncodedRepresentations().size(), encodings.size());
+        for (final Representation rep : result.getEncodedRepresentations()) {
+            Assert.assertTrue(rep.getLength() < content.length, rep.getContentEncoding());
+            Assert.assertEquals(decompress(rep, content.length), content, rep.getContentEncoding());
+        }
+
+        result.release();
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,153 @@
+package uk.org.iay.mdq.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.UrlResource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class ResourceChangeDetectorTest {
+
+    private ResourceChangeDetector makeDetector(final Resource resource) throws Exception {
+        final ResourceChangeDetector detector = new ResourceChangeDetector();
+        detector.setId("detector");
+        detector.setResource(resource);
+        detector.initialize();
+        return detector;
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        final Path file = Files.createTempFile("source", ".xml");
+        try {
+            Files.writeString(file, "<original/>");
+            final ResourceChangeDetector detector = makeDetector(new FileSystemResource(file));
+
+            // nothing is known about the file until it has been refreshed
+            Assert.assertTrue(detector.isSourceChanged());
+            Assert.assertTrue(detector.isSourceChanged());
+            detector.sourceRefreshed();
+            Assert.assertFalse(detector.isSourceChanged());
+
+            // the same contents written again are not a change
+            Files.writeString(file, "<original/>");
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+            Assert.assertFalse(detector.isSourceChanged());
+
+            // different contents of the same size are a change until refreshed
+            final FileTime modified = Files.getLastModifiedTime(file);
+            Files.writeString(file, "<modified/>");
+            Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() + 10_000));
+            Assert.assertTrue(detector.isSourceChanged());
+            Assert.assertTrue(detector.isSourceChanged());
+            detector.sourceRefreshed();
+            Assert.assertFalse(detector.isSourceChanged());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        final Path dir = Files.createTempDirectory("source");
+        final Path file = dir.resolve("metadata.xml");
+        final Path temp = dir.resolve("metadata.xml.new");
+        try {
+            Files.writeString(file, "<original/>");
+            final ResourceChangeDetector detector = makeDetector(new FileSystemResource(file));
+            final CountDownLatch changed = new CountDownLatch(1);
+            detector.watchSource(changed::countDown);
+
+            // replace the file the way a publisher would
+            Files.writeString(temp, "<modified/>");
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Assert.assertTrue(changed.await(30, TimeUnit.SECONDS));
+            detector.destroy();
+        } finally {
+            Files.deleteIfExists(temp);
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testOtherResource() throws Exception {
+        final ResourceChangeDetector detector =
+                makeDetector(new ByteArrayResource("<original/>".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertTrue(detector.isSourceChanged());
+        detector.sourceRefreshed();
+        Assert.assertFalse(detector.isSourceChanged());
+    }
+
+    @Test
+    public void testHttp() throws Exception {
+        final String[] etag = {"\"v1\""};
+        final List<String> conditions = new ArrayList<>();
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/metadata.xml", exchange -> {
+            final String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            conditions.add(ifNoneMatch);
+            exchange.getResponseHeaders().set("ETag", etag[0]);
+            if (etag[0].equals(ifNoneMatch)) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                final byte[] body = "<metadata/>".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            final ResourceChangeDetector detector = makeDetector(new UrlResource("http://127.0.0.1:"
+                    + server.getAddress().getPort() + "/metadata.xml"));
+
+            Assert.assertTrue(detector.isSourceChanged());
+            detector.sourceRefreshed();
+            Assert.assertFalse(detector.isSourceChanged());
+            Assert.assertEquals(conditions, Arrays.asList(null, "\"v1\""));
+
+            // a new ETag is a change until refreshed
+            etag[0] = "\"v2\"";
+            Assert.assertTrue(detector.isSourceChanged());
+            Assert.assertTrue(detector.isSourceChanged());
+            detector.sourceRefreshed();
+            Assert.assertFalse(detector.isSourceChanged());
+            Assert.assertEquals(conditions.get(conditions.size() - 1), "\"v2\"");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testHttpError() throws Exception {
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            makeDetector(new UrlResource("http://127.0.0.1:" + server.getAddress().getPort() + "/metadata.xml"))
+                    .isSourceChanged();
+        } finally {
+            server.stop(0);
+        }
+    }
+}
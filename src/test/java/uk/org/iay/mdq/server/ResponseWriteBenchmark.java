@@ -0,0 +1,239 @@
+
+package uk.org.iay.mdq.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+import com.google.common.net.HttpHeaders;
+
+/**
+ * Compares writing a cached {@link Representation} through {@link ResultRawView}'s fast path with
+ * the previous approach of copying {@link Representation#getBytes} into the servlet output stream.
+ *
+ * Each operation is a complete HTTP request to an embedded Jetty server over the loopback interface,
+ * read and discarded by the benchmark thread. Besides responses per second, the benchmark reports
+ * <code>bytes</code> (response bytes per second) and <code>serverCpu</code> (CPU nanoseconds per
+ * second used by the process other than the benchmark thread, i.e. by the server). Run {@link #main}
+ * for a summary including CPU time per response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=1g")
+public class ResponseWriteBenchmark {
+
+    /** How the response is written. */
+    public enum WriteMode {
+        /** <code>response.getOutputStream().write(rep.getBytes())</code>. */
+        STREAM,
+        /** {@link ResultRawView} with a heap representation. */
+        VIEW_HEAP,
+        /** {@link ResultRawView} with an {@link OffHeapRepresentation}. */
+        VIEW_DIRECT,
+    }
+
+    /** Counters reported alongside the primary result, as rates per second. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long bytes;
+
+        public long serverCpu;
+
+        @Setup(org.openjdk.jmh.annotations.Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            serverCpu = 0;
+        }
+    }
+
+    private static class FixedResult implements Result {
+
+        private final Representation representation;
+
+        FixedResult(final Representation rep) {
+            representation = rep;
+        }
+
+        @Override
+        public boolean isNotFound() {
+            return false;
+        }
+
+        @Override
+        public Representation getRepresentation() {
+            return representation;
+        }
+
+        @Override
+        public Representation getGZIPRepresentation() {
+            return null;
+        }
+
+        @Override
+        public Representation getDeflateRepresentation() {
+            return null;
+        }
+
+        @Override
+        public Collection<Representation> getEncodedRepresentations() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Collection<String> getIdentifiers() {
+            return null;
+        }
+    }
+
+    @Param({"33554432"})
+    public int size;
+
+    @Param({"STREAM", "VIEW_HEAP", "VIEW_DIRECT"})
+    public WriteMode mode;
+
+    private Server server;
+
+    private int port;
+
+    private byte[] request;
+
+    private final byte[] discard = new byte[256 * 1024];
+
+    private final com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @Setup
+    public void setUp() throws Exception {
+        // per-request debug logging would otherwise be part of the measurement
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+        final byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        final Representation heap = new SimpleRepresentation(content);
+        final Result result = new FixedResult(mode == WriteMode.VIEW_DIRECT ? new OffHeapRepresentation(heap) : heap);
+        final ResultRawView view = new ResultRawView("application/samlmetadata+xml");
+
+        final HttpServlet servlet = new HttpServlet() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+                if (mode == WriteMode.STREAM) {
+                    final Representation rep = result.getRepresentation();
+                    resp.setContentType(view.getContentType());
+                    resp.setContentLength(rep.getBytes().length);
+                    resp.setHeader(HttpHeaders.ETAG, rep.getETag());
+                    resp.getOutputStream().write(rep.getBytes());
+                } else {
+                    try {
+                        view.render(Map.of("result", result), req, resp);
+                    } catch (final Exception e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        };
+
+        server = new Server();
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost(InetAddress.getLoopbackAddress().getHostAddress());
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(servlet), "/");
+        server.setHandler(context);
+        server.start();
+        port = connector.getLocalPort();
+
+        request = ("GET /entities HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Benchmark
+    public long response(final Counters counters) throws IOException {
+        final long cpuBefore = os.getProcessCpuTime() - threads.getCurrentThreadCpuTime();
+        long total = 0;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            final OutputStream out = socket.getOutputStream();
+            out.write(request);
+            out.flush();
+            final InputStream in = socket.getInputStream();
+            int n;
+            while ((n = in.read(discard)) >= 0) {
+                total += n;
+            }
+        }
+        counters.bytes += total;
+        counters.serverCpu += os.getProcessCpuTime() - threads.getCurrentThreadCpuTime() - cpuBefore;
+        return total;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(ResponseWriteBenchmark.class.getName() + ".response")
+                .build();
+        final Collection<RunResult> results = new Runner(options).run();
+        final StringBuilder summary = new StringBuilder();
+        for (final RunResult result : results) {
+            final double responses = result.getPrimaryResult().getScore();
+            final double bytes = result.getSecondaryResults().get("bytes").getScore();
+            final double cpu = result.getSecondaryResults().get("serverCpu").getScore();
+            summary.append(String.format("%-12s %8.1f responses/s %10.1f MB/s %10.3f ms server CPU/response%n",
+                    result.getParams().getParam("mode"), responses, bytes / 1e6, cpu / responses / 1e6));
+        }
+        System.out.print(summary);
+    }
+}
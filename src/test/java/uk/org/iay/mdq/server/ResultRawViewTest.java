@@ -0,0 +1,207 @@
+package uk.org.iay.mdq.server;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.net.HttpHeaders;
+
+public class ResultRawViewTest {
+
+    private static final byte[] CONTENT = "<entity/>".repeat(1000).getBytes();
+
+    private static final Instant MODIFIED = Instant.parse("2024-06-01T12:00:00Z");
+
+    /**
+     * A result with a gzip representation and a known modification time.
+     */
+    private static class FixedResult implements Result {
+
+        private final Representation representation = new SimpleRepresentation(CONTENT);
+
+        private final Representation gzip = new GZIPRepresentation(CONTENT);
+
+        @Override
+        public boolean isNotFound() {
+            return false;
+        }
+
+        @Override
+        public Representation getRepresentation() {
+            return representation;
+        }
+
+        @Override
+        public Representation getGZIPRepresentation() {
+            return gzip;
+        }
+
+        @Override
+        public Representation getDeflateRepresentation() {
+            return null;
+        }
+
+        @Override
+        public Collection<Representation> getEncodedRepresentations() {
+            return List.of(gzip);
+        }
+
+        @Override
+        public Collection<String> getIdentifiers() {
+            return null;
+        }
+
+        @Override
+        public Instant getLastModified() {
+            return MODIFIED;
+        }
+    }
+
+    private final FixedResult result = new FixedResult();
+
+    private MockHttpServletResponse render(final MockHttpServletRequest request) throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        new ResultRawView("application/samlmetadata+xml").render(Map.of("result", result), request, response);
+        return response;
+    }
+
+    private MockHttpServletRequest gzipRequest() {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/entities");
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        return request;
+    }
+
+    @Test
+    public void testValidators() throws Exception {
+        final MockHttpServletResponse response = render(gzipRequest());
+        Assert.assertEquals(response.getStatus(), 200);
+        Assert.assertEquals(response.getHeader(HttpHeaders.ETAG), result.gzip.getETag());
+        Assert.assertEquals(response.getDateHeader(HttpHeaders.LAST_MODIFIED), MODIFIED.toEpochMilli());
+        Assert.assertEquals(response.getContentAsByteArray(), result.gzip.getBytes());
+    }
+
+    @Test
+    public void testBusy() throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        new ResultRawView("application/samlmetadata+xml").render(
+                Map.of("result", new BusyResult(Duration.ofMillis(2500))), gzipRequest(), response);
+        Assert.assertEquals(response.getStatus(), 503);
+        Assert.assertEquals(response.getHeader(HttpHeaders.RETRY_AFTER), "3");
+        Assert.assertEquals(response.getContentLength(), 0);
+    }
+
+    @Test
+    public void testIfNoneMatch() throws Exception {
+        // a client holding the gzip form, strongly or weakly tagged, is not sent it again
+        MockHttpServletRequest request = gzipRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, result.gzip.getETag());
+        MockHttpServletResponse response = render(request);
+        Assert.assertEquals(response.getStatus(), 304);
+        Assert.assertEquals(response.getContentLength(), 0);
+        Assert.assertEquals(response.getHeader(HttpHeaders.ETAG), result.gzip.getETag());
+
+        request = gzipRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"other\", W/" + result.gzip.getETag());
+        Assert.assertEquals(render(request).getStatus(), 304);
+
+        // a client holding the uncompressed form is not sent the gzip form of the same content
+        request = gzipRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, result.representation.getETag());
+        response = render(request);
+        Assert.assertEquals(response.getStatus(), 304);
+        Assert.assertEquals(response.getHeader(HttpHeaders.ETAG), result.representation.getETag());
+
+        request = gzipRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "*");
+        Assert.assertEquals(render(request).getStatus(), 304);
+
+        // changed content is sent in full, regardless of If-Modified-Since
+        request = gzipRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"other\"");
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, MODIFIED.toEpochMilli());
+        response = render(request);
+        Assert.assertEquals(response.getStatus(), 200);
+        Assert.assertEquals(response.getContentAsByteArray(), result.gzip.getBytes());
+    }
+
+    @Test
+    public void testIfModifiedSince() throws Exception {
+        MockHttpServletRequest request = gzipRequest();
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, MODIFIED.toEpochMilli());
+        Assert.assertEquals(render(request).getStatus(), 304);
+
+        request = gzipRequest();
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, MODIFIED.minusSeconds(1).toEpochMilli());
+        Assert.assertEquals(render(request).getStatus(), 200);
+
+        request = gzipRequest();
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, "not a date");
+        Assert.assertEquals(render(request).getStatus(), 200);
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        final byte[] gzipped = result.gzip.getBytes();
+
+        MockHttpServletRequest request = gzipRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=10-19");
+        MockHttpServletResponse response = render(request);
+        Assert.assertEquals(response.getStatus(), 206);
+        Assert.assertEquals(response.getHeader(HttpHeaders.CONTENT_RANGE), "bytes 10-19/" + gzipped.length);
+        Assert.assertEquals(response.getContentAsByteArray(), Arrays.copyOfRange(gzipped, 10, 20));
+
+        // resuming against the same representation
+        request = gzipRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=20-");
+        request.addHeader(HttpHeaders.IF_RANGE, result.gzip.getETag());
+        response = render(request);
+        Assert.assertEquals(response.getStatus(), 206);
+        Assert.assertEquals(response.getContentAsByteArray(), Arrays.copyOfRange(gzipped, 20, gzipped.length));
+
+        // the representation has changed since the transfer started, so it is sent in full
+        request = gzipRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=20-");
+        request.addHeader(HttpHeaders.IF_RANGE, result.representation.getETag());
+        response = render(request);
+        Assert.assertEquals(response.getStatus(), 200);
+        Assert.assertEquals(response.getContentAsByteArray(), gzipped);
+
+        request = gzipRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=" + gzipped.length + "-");
+        response = render(request);
+        Assert.assertEquals(response.getStatus(), 416);
+        Assert.assertEquals(response.getHeader(HttpHeaders.CONTENT_RANGE), "bytes */" + gzipped.length);
+    }
+
+    @Test
+    public void testMultipartRanges() throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/entities");
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, AcceptEncoding.IDENTITY);
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-8,18-26");
+        final MockHttpServletResponse response = render(request);
+        Assert.assertEquals(response.getStatus(), 206);
+        final String contentType = response.getContentType();
+        Assert.assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        final String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+        final String body = response.getContentAsString();
+        Assert.assertEquals(response.getContentLength(), body.length());
+        Assert.assertEquals(body, "--" + boundary + "\r\n"
+                + "Content-Type: application/samlmetadata+xml\r\n"
+                + "Content-Range: bytes 0-8/" + CONTENT.length + "\r\n\r\n"
+                + "<entity/>\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Type: application/samlmetadata+xml\r\n"
+                + "Content-Range: bytes 18-26/" + CONTENT.length + "\r\n\r\n"
+                + "<entity/>\r\n"
+                + "--" + boundary + "--\r\n");
+    }
+}
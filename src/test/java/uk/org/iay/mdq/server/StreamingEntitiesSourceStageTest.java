@@ -0,0 +1,129 @@
+package uk.org.iay.mdq.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.core.io.ByteArrayResource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+
+public class StreamingEntitiesSourceStageTest {
+
+    private static final String MDRPI_NS = "urn:oasis:names:tc:SAML:metadata:rpi";
+
+    private static final String AGGREGATE =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<EntitiesDescriptor xmlns=\"urn:oasis:names:tc:SAML:2.0:metadata\"\n"
+            + "    xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\"\n"
+            + "    xmlns:mdrpi=\"urn:oasis:names:tc:SAML:metadata:rpi\"\n"
+            + "    xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"\n"
+            + "    xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n"
+            + "  <!-- aggregate comment -->\n"
+            + "  <EntityDescriptor entityID=\"https://own.example.org/\">\n"
+            + "    <Extensions>\n"
+            + "      <mdrpi:RegistrationInfo registrationAuthority=\"http://own.example.org/\"/>\n"
+            + "    </Extensions>\n"
+            + "    <!-- entity comment -->\n"
+            + "    <SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\"/>\n"
+            + "  </EntityDescriptor>\n"
+            + "  <EntitiesDescriptor Name=\"inner\">\n"
+            + "    <Extensions>\n"
+            + "      <mdrpi:RegistrationInfo registrationAuthority=\"http://inner.example.org/\"/>\n"
+            + "    </Extensions>\n"
+            + "    <EntityDescriptor entityID=\"https://bare.example.org/\">\n"
+            + "      <SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\"/>\n"
+            + "    </EntityDescriptor>\n"
+            + "    <EntityDescriptor entityID=\"https://signed.example.org/\">\n"
+            + "      <ds:Signature/>\n"
+            + "      <Extensions><saml:Attribute xsi:type=\"saml:AttributeType\"/></Extensions>\n"
+            + "    </EntityDescriptor>\n"
+            + "  </EntitiesDescriptor>\n"
+            + "</EntitiesDescriptor>\n";
+
+    private List<Item<Element>> read(final String xml) throws Exception {
+        final StreamingEntitiesSourceStage stage = new StreamingEntitiesSourceStage();
+        stage.setId("source");
+        stage.setResource(new ByteArrayResource(xml.getBytes(StandardCharsets.UTF_8)));
+        stage.initialize();
+        final List<Item<Element>> items = new ArrayList<>();
+        stage.execute(items);
+        stage.destroy();
+        return items;
+    }
+
+    private static String registrationAuthority(final Element entity) {
+        final Element info = (Element) entity.getElementsByTagNameNS(MDRPI_NS, "RegistrationInfo").item(0);
+        return info == null ? null : info.getAttribute("registrationAuthority");
+    }
+
+    private static List<String> children(final Element element) {
+        final List<String> names = new ArrayList<>();
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                names.add(node.getLocalName());
+            } else if (node.getNodeType() == Node.COMMENT_NODE) {
+                names.add("#comment");
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void testEntities() throws Exception {
+        final List<Item<Element>> items = read(AGGREGATE);
+        Assert.assertEquals(items.size(), 3);
+
+        for (final Item<Element> item : items) {
+            final Element entity = item.unwrap();
+            Assert.assertSame(entity, entity.getOwnerDocument().getDocumentElement());
+            Assert.assertEquals(entity.getNamespaceURI(), SAMLMetadataSupport.MD_NS);
+            Assert.assertEquals(entity.getLocalName(), "EntityDescriptor");
+            // namespaces declared on the aggregate are still in scope
+            Assert.assertEquals(entity.lookupNamespaceURI("saml"), "urn:oasis:names:tc:SAML:2.0:assertion");
+            Assert.assertTrue(entity.isDefaultNamespace(SAMLMetadataSupport.MD_NS));
+        }
+
+        final Element own = items.get(0).unwrap();
+        Assert.assertEquals(own.getAttribute("entityID"), "https://own.example.org/");
+        Assert.assertEquals(registrationAuthority(own), "http://own.example.org/");
+        Assert.assertEquals(own.getElementsByTagNameNS(MDRPI_NS, "RegistrationInfo").getLength(), 1);
+        // comments within the entity are kept
+        Assert.assertEquals(children(own), List.of("Extensions", "#comment", "SPSSODescriptor"));
+
+        // an entity with no Extensions inherits the enclosing registration information
+        final Element bare = items.get(1).unwrap();
+        Assert.assertEquals(bare.getAttribute("entityID"), "https://bare.example.org/");
+        Assert.assertEquals(registrationAuthority(bare), "http://inner.example.org/");
+        Assert.assertEquals(children(bare), List.of("Extensions", "SPSSODescriptor"));
+
+        // inherited registration information goes into the existing Extensions, after any Signature
+        final Element signed = items.get(2).unwrap();
+        Assert.assertEquals(registrationAuthority(signed), "http://inner.example.org/");
+        Assert.assertEquals(children(signed), List.of("Signature", "Extensions"));
+        final Element extensions = (Element) signed.getElementsByTagNameNS(SAMLMetadataSupport.MD_NS, "Extensions")
+                .item(0);
+        Assert.assertEquals(children(extensions), List.of("Attribute", "RegistrationInfo"));
+    }
+
+    @Test
+    public void testSingleEntity() throws Exception {
+        final List<Item<Element>> items = read("<md:EntityDescriptor xmlns:md=\"" + SAMLMetadataSupport.MD_NS
+                + "\" entityID=\"https://single.example.org/\"/>");
+        Assert.assertEquals(items.size(), 1);
+        Assert.assertEquals(items.get(0).unwrap().getAttribute("entityID"), "https://single.example.org/");
+        Assert.assertEquals(items.get(0).unwrap().getPrefix(), "md");
+        Assert.assertNull(registrationAuthority(items.get(0).unwrap()));
+    }
+
+    @Test(expectedExceptions = StageProcessingException.class)
+    public void testMalformed() throws Exception {
+        read("<EntitiesDescriptor xmlns=\"" + SAMLMetadataSupport.MD_NS + "\"><EntityDescriptor>");
+    }
+}